@@ -101,6 +101,9 @@ public class Application extends MultiThreadedApplicationAdapter implements Appl
 	@Override
 	public void streamBroadcastClose(IBroadcastStream stream) {
 		log.debug("streamBroadcastClose - stream name: {}", stream.getPublishedName());
+		// forget a stream which was waiting for a viewer
+		SegmenterService segmenter = (SegmenterService) applicationContext.getBean("segmenter.service");
+		segmenter.unregister(stream.getPublishedName());
 		super.streamBroadcastClose(stream);
 	}
 
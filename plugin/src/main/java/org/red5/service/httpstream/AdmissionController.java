@@ -0,0 +1,324 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Keeps the transcoding load within a cpu budget, expressed in cores. The cost of a running stream is its measured video
+ * encode time per picture times its frame rate, plus its measured audio encode time per second; a stream which has not
+ * been measured yet, or has been admitted but not started, counts at its estimate. A new stream is estimated at the default
+ * output size from the video cost per pixel of the running streams with the same encoder profile (or any profile, or a
+ * configured default when nothing runs yet), plus their average audio cost. When the new stream does not fit, the policy
+ * decides:
+ * <ul>
+ * <li>QUEUE - the stream waits and is started, in order, once the budget allows</li>
+ * <li>REJECT - the stream is not transcoded</li>
+ * <li>DEGRADE - the stream is started with the cheaper profile if that fits, otherwise it is rejected</li>
+ * </ul>
+ * Streams already running are never slowed down to make room.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class AdmissionController implements Runnable {
+
+	private static Logger log = Red5LoggerFactory.getLogger(AdmissionController.class);
+
+	public static enum Policy {
+		QUEUE, REJECT, DEGRADE;
+	}
+
+	public static enum Status {
+		ADMITTED, DEGRADED, QUEUED, REJECTED;
+	}
+
+	// pixels per second of a stream at the facade's default output, used until a stream has run
+	private static final double DEFAULT_PIXEL_RATE = 352d * 288d * 20d;
+
+	private final SegmenterService segmenter;
+
+	// cores available to transcoding
+	private double cpuBudget;
+
+	private Policy policy = Policy.QUEUE;
+
+	// profile used for streams admitted under the degrade policy
+	private String degradedProfile = "ultralowlatency";
+
+	// cores assumed for a stream when no stream has been measured yet
+	private double defaultStreamCost = 0.5d;
+
+	// decision taken for each stream, keyed by stream name
+	private final ConcurrentMap<String, Status> statuses = new ConcurrentHashMap<String, Status>();
+
+	// estimated cost of admitted streams, used until their own cost is measured
+	private final Map<String, Double> estimates = new HashMap<String, Double>();
+
+	// starts waiting for room, in arrival order, keyed by stream name
+	private final LinkedHashMap<String, Waiting> queue = new LinkedHashMap<String, Waiting>();
+
+	public AdmissionController(SegmenterService segmenter, double cpuBudget) {
+		this.segmenter = segmenter;
+		this.cpuBudget = cpuBudget;
+	}
+
+	/**
+	 * Decides whether a stream may start now. A queued stream is started later by running the given task.
+	 *
+	 * @param streamName
+	 * @param profileName profile the stream asked for
+	 * @param start starts the stream with the profile it is given, run later if the stream is queued
+	 * @return decision; on DEGRADED the stream should start with {@link #getDegradedProfile()}
+	 */
+	public synchronized Status admit(String streamName, String profileName, Start start) {
+		Status status = statuses.get(streamName);
+		if (status == Status.QUEUED) {
+			// already waiting
+			return status;
+		}
+		double load = getLoad();
+		double cost = estimate(profileName);
+		if (queue.isEmpty() && load + cost <= cpuBudget) {
+			status = Status.ADMITTED;
+		} else {
+			switch (policy) {
+				case QUEUE:
+					queue.put(streamName, new Waiting(profileName, start));
+					status = Status.QUEUED;
+					break;
+				case DEGRADE:
+					cost = estimate(degradedProfile);
+					status = load + cost <= cpuBudget ? Status.DEGRADED : Status.REJECTED;
+					break;
+				default:
+					status = Status.REJECTED;
+			}
+		}
+		log.info("Admission of {} ({}): {} load: {} estimate: {} budget: {}", new Object[] { streamName, profileName, status, load, cost, cpuBudget });
+		statuses.put(streamName, status);
+		if (status == Status.ADMITTED || status == Status.DEGRADED) {
+			estimates.put(streamName, cost);
+		}
+		return status;
+	}
+
+	/**
+	 * Starts queued streams, in order, while they fit the budget. Each is estimated again, since the running streams may have
+	 * been measured meanwhile.
+	 */
+	public void run() {
+		try {
+			while (true) {
+				String streamName;
+				Waiting waiting;
+				synchronized (this) {
+					Iterator<Entry<String, Waiting>> it = queue.entrySet().iterator();
+					if (!it.hasNext()) {
+						break;
+					}
+					Entry<String, Waiting> head = it.next();
+					waiting = head.getValue();
+					double cost = estimate(waiting.profileName);
+					if (getLoad() + cost > cpuBudget) {
+						break;
+					}
+					it.remove();
+					streamName = head.getKey();
+					statuses.put(streamName, Status.ADMITTED);
+					estimates.put(streamName, cost);
+				}
+				log.info("Starting queued stream {}", streamName);
+				waiting.start.start(waiting.profileName);
+			}
+		} catch (Exception e) {
+			log.warn("Exception starting queued streams", e);
+		}
+	}
+
+	/**
+	 * Forgets a stream which stopped or whose publisher left, including a queued start.
+	 *
+	 * @param streamName
+	 */
+	public synchronized void release(String streamName) {
+		statuses.remove(streamName);
+		estimates.remove(streamName);
+		queue.remove(streamName);
+	}
+
+	/**
+	 * @param streamName
+	 * @return decision for the stream or null if none was taken
+	 */
+	public Status getStatus(String streamName) {
+		return statuses.get(streamName);
+	}
+
+	/**
+	 * @return cores used by the running streams and reserved for admitted streams which have not started yet
+	 */
+	public synchronized double getLoad() {
+		double load = 0d;
+		Set<String> running = new HashSet<String>();
+		for (SegmentFacade facade : segmenter.getFacades()) {
+			load += getCost(facade);
+			running.add(facade.getStreamName());
+		}
+		for (Entry<String, Double> entry : estimates.entrySet()) {
+			if (!running.contains(entry.getKey())) {
+				load += entry.getValue();
+			}
+		}
+		return load;
+	}
+
+	/**
+	 * @return number of streams waiting for room
+	 */
+	public synchronized int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the cores used by a stream, measured or, until measured, estimated.
+	 *
+	 * @param facade
+	 * @return cores
+	 */
+	private double getCost(SegmentFacade facade) {
+		if (isMeasured(facade)) {
+			return getVideoCost(facade) + facade.getAudioEncodeLoad();
+		}
+		Double estimate = estimates.get(facade.getStreamName());
+		return estimate != null ? estimate : defaultStreamCost;
+	}
+
+	/**
+	 * Estimates the cores a new stream with the given profile would use.
+	 *
+	 * @param profileName
+	 * @return cores
+	 */
+	private double estimate(String profileName) {
+		double profileCost = 0d, profilePixels = 0d, allCost = 0d, allPixels = 0d, audioCost = 0d;
+		int measured = 0;
+		for (SegmentFacade facade : segmenter.getFacades()) {
+			if (isMeasured(facade)) {
+				audioCost += facade.getAudioEncodeLoad();
+				measured++;
+			}
+			if (facade.getAverageVideoEncodeTime() > 0L && facade.hasVideo()) {
+				double cost = getVideoCost(facade);
+				// measured at the rate pictures are encoded
+				double pixels = facade.getPixelRate() / (facade.getDecimation() + 1);
+				allCost += cost;
+				allPixels += pixels;
+				EncoderProfile profile = facade.getEncoderProfile();
+				if (profile != null && profile.getName().equals(profileName)) {
+					profileCost += cost;
+					profilePixels += pixels;
+				}
+			}
+		}
+		double audio = measured > 0 ? audioCost / measured : 0d;
+		if (profilePixels > 0d) {
+			return profileCost / profilePixels * DEFAULT_PIXEL_RATE + audio;
+		} else if (allPixels > 0d) {
+			return allCost / allPixels * DEFAULT_PIXEL_RATE + audio;
+		}
+		return defaultStreamCost;
+	}
+
+	/**
+	 * @param facade
+	 * @return true once the encode time of the stream has been measured
+	 */
+	private boolean isMeasured(SegmentFacade facade) {
+		return facade.hasVideo() ? facade.getAverageVideoEncodeTime() > 0L : facade.getAudioEncodeLoad() > 0d;
+	}
+
+	/**
+	 * @param facade
+	 * @return cores spent encoding the pictures of a stream, of which load control may drop a share
+	 */
+	private double getVideoCost(SegmentFacade facade) {
+		return facade.hasVideo() ? facade.getAverageVideoEncodeTime() * facade.getEncodedFps() / 1000000000d : 0d;
+	}
+
+	public double getCpuBudget() {
+		return cpuBudget;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public void setPolicy(Policy policy) {
+		this.policy = policy;
+	}
+
+	public String getDegradedProfile() {
+		return degradedProfile;
+	}
+
+	public void setDegradedProfile(String degradedProfile) {
+		this.degradedProfile = degradedProfile;
+	}
+
+	public void setDefaultStreamCost(double defaultStreamCost) {
+		this.defaultStreamCost = defaultStreamCost;
+	}
+
+	/**
+	 * Starts an admitted stream.
+	 */
+	public static interface Start {
+
+		/**
+		 * @param profileName encoder profile to start the stream with
+		 */
+		void start(String profileName);
+
+	}
+
+	private static final class Waiting {
+
+		final String profileName;
+
+		final Start start;
+
+		Waiting(String profileName, Start start) {
+			this.profileName = profileName;
+			this.start = start;
+		}
+
+	}
+
+}
@@ -0,0 +1,163 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Named set of H.264 encoder options. A profile is read from the classpath resource "encoder-[name].properties" next to
+ * this class, layered over the base "mpegts-ipod320.properties" preset unless it names an x264 "preset": the coder options
+ * of the base (subq, refs, trellis, me_range, ...) would override what that preset chooses. Each key other than "bitrate" is handed to the
+ * coder as is (threads, thread_type, rc_lookahead, bf, level, ...), except for the libx264 private options "preset" and
+ * "tune", which are kept apart since not every build lets them be set through the coder.
+ *
+ * Profiles shipped with the plugin:
+ * <ul>
+ * <li>ultralowlatency - zero lookahead, no b-frames, sliced threads</li>
+ * <li>balanced - exactly the previous fixed settings; the default</li>
+ * <li>efficiency - frame threads, long lookahead and b-frames for the best quality per bit at the cost of latency</li>
+ * </ul>
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class EncoderProfile {
+
+	public static final String DEFAULT_PROFILE = "balanced";
+
+	private static final String BASE_PRESET = "mpegts-ipod320.properties";
+
+	private static final String[] PRIVATE_OPTIONS = { "preset", "tune" };
+
+	private final String name;
+
+	// options applied to the coder
+	private final Properties options;
+
+	// libx264 private options, applied on a best effort basis
+	private final Properties privateOptions = new Properties();
+
+	// video bit rate in bits per second
+	private final int videoBitRate;
+
+	private EncoderProfile(String name, Properties options) {
+		this.name = name;
+		this.videoBitRate = Integer.valueOf(options.getProperty("bitrate", "360000"));
+		options.remove("bitrate");
+		for (String key : PRIVATE_OPTIONS) {
+			if (options.containsKey(key)) {
+				privateOptions.setProperty(key, (String) options.remove(key));
+			}
+		}
+		this.options = options;
+	}
+
+	/**
+	 * Loads the named profile from the classpath.
+	 *
+	 * @param name profile name
+	 * @return profile
+	 * @throws IOException if the profile resource does not exist or cannot be read
+	 */
+	public static EncoderProfile load(String name) throws IOException {
+		Properties profile = new Properties();
+		load(profile, "encoder-" + name + ".properties");
+		Properties options = new Properties();
+		if (!profile.containsKey("preset")) {
+			load(options, BASE_PRESET);
+		}
+		options.putAll(profile);
+		return new EncoderProfile(name, options);
+	}
+
+	private static void load(Properties props, String resource) throws IOException {
+		InputStream in = EncoderProfile.class.getResourceAsStream(resource);
+		if (in == null) {
+			throw new IOException("Encoder profile resource not found: " + resource);
+		}
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns a copy of the coder options, since Configuration may be handed the properties from several threads.
+	 *
+	 * @return the options
+	 */
+	public Properties getOptions() {
+		Properties copy = new Properties();
+		copy.putAll(options);
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of the libx264 private options; a coder which does not accept them is left with the other options.
+	 *
+	 * @return the private options
+	 */
+	public Properties getPrivateOptions() {
+		Properties copy = new Properties();
+		copy.putAll(privateOptions);
+		return copy;
+	}
+
+	/**
+	 * Returns the H.264 codec these options produce, as used in a codecs attribute: High when an x264 preset other than
+	 * ultrafast is given, since those presets turn on the 8x8 transform; Main with CABAC or b-frames; Baseline otherwise, at
+	 * the configured level.
+	 *
+	 * @return codec, for instance "avc1.42001e"
+	 */
+	public String getAvcCodec() {
+		String preset = privateOptions.getProperty("preset");
+		int profile;
+		if (preset != null && !"ultrafast".equals(preset)) {
+			profile = 0x64;
+		} else if ("1".equals(options.getProperty("coder")) || Integer.valueOf(options.getProperty("bf", "0")) > 0) {
+			profile = 0x4d;
+		} else {
+			profile = 0x42;
+		}
+		return String.format("avc1.%02x00%02x", profile, Integer.valueOf(options.getProperty("level", "30")));
+	}
+
+	/**
+	 * @return the videoBitRate
+	 */
+	public int getVideoBitRate() {
+		return videoBitRate;
+	}
+
+	@Override
+	public String toString() {
+		return "EncoderProfile [name=" + name + ", videoBitRate=" + videoBitRate + ", options=" + options + ", privateOptions=" + privateOptions + "]";
+	}
+
+}
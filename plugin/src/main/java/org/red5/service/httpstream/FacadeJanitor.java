@@ -0,0 +1,70 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Periodically removes facades which have had neither data from their source nor a viewer for longer than the idle timeout,
+ * releasing their writer, native coders, buffers and segment files. When streams start on request, a facade is also removed
+ * once it has had no viewer for the viewer idle timeout; its stream stays registered and the next viewer starts it again.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class FacadeJanitor implements Runnable {
+
+	private static Logger log = Red5LoggerFactory.getLogger(FacadeJanitor.class);
+
+	private final SegmenterService segmenter;
+
+	// facades evicted so far
+	private long evictions;
+
+	public FacadeJanitor(SegmenterService segmenter) {
+		this.segmenter = segmenter;
+	}
+
+	public void run() {
+		try {
+			for (SegmentFacade facade : segmenter.getFacades()) {
+				if (facade.isIdle()) {
+					log.info("Evicting idle stream {}, last activity: {} ms ago", facade, System.currentTimeMillis() - facade.getLastActivity());
+				} else if (segmenter.isStartStreamOnRequest() && segmenter.isRegistered(facade.getStreamName()) && facade.isViewerIdle(segmenter.getViewerIdleTimeout())) {
+					log.info("Stopping stream {}, no viewers", facade);
+				} else {
+					continue;
+				}
+				if (segmenter.evict(facade)) {
+					evictions++;
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Exception evicting idle streams", e);
+		}
+	}
+
+	/**
+	 * @return facades evicted so far
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+}
@@ -0,0 +1,331 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of media frames bounded by the memory they hold. When adding a video frame would exceed the budget the overload
+ * policy decides what is discarded:
+ * <ul>
+ * <li>DROP_SMART - every other queued video frame is dropped, oldest first, until the incoming frame fits; the queue holds
+ * decoded pictures which are encoded again, so no frame depends on another and the loss is spread evenly over the backlog
+ * rather than freezing the picture</li>
+ * <li>DROP_NEWEST - the incoming frame is refused</li>
+ * <li>BLOCK - the producer waits for room up to the block timeout, then the incoming frame is refused</li>
+ * </ul>
+ * Audio is never dropped; an audio frame is always accepted, even over budget. Frames discarded from the queue are disposed,
+ * a refused frame is left to the caller.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class FrameQueue<T extends FrameQueue.Frame> {
+
+	public static enum OverloadPolicy {
+		DROP_SMART, DROP_NEWEST, BLOCK;
+	}
+
+	/**
+	 * Entry held by the queue.
+	 */
+	public static interface Frame {
+
+		boolean isVideo();
+
+		/**
+		 * @return bytes held by this frame
+		 */
+		int getSize();
+
+		/**
+		 * Called when the overload policy discards a queued frame, so any native memory it holds can be freed.
+		 */
+		void dispose();
+
+	}
+
+	private final ArrayDeque<T> queue = new ArrayDeque<T>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final long maxBytes;
+
+	private final OverloadPolicy policy;
+
+	// longest time a producer waits for room under the block policy, in milliseconds
+	private long blockTimeout = 1000L;
+
+	private long bytes;
+
+	private int videoCount;
+
+	// release a consumer waiting in poll without a frame
+	private boolean woken;
+
+	private long droppedQueued;
+
+	private long droppedNewest;
+
+	public FrameQueue(long maxBytes, OverloadPolicy policy) {
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+	}
+
+	/**
+	 * Adds a frame, applying the overload policy if the memory budget would be exceeded.
+	 *
+	 * @param frame
+	 * @return true if the frame was queued, false if it was dropped
+	 */
+	public boolean add(T frame) {
+		lock.lock();
+		try {
+			if (frame.isVideo()) {
+				if (bytes + frame.getSize() > maxBytes && !makeRoom(frame)) {
+					droppedNewest++;
+					return false;
+				}
+				videoCount++;
+			}
+			queue.add(frame);
+			bytes += frame.getSize();
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Frees room for the given frame according to the policy; called with the lock held.
+	 *
+	 * @param frame
+	 * @return true if the frame fits afterwards
+	 */
+	private boolean makeRoom(T frame) {
+		switch (policy) {
+			case BLOCK:
+				long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+				try {
+					while (bytes + frame.getSize() > maxBytes && nanos > 0L) {
+						nanos = notFull.awaitNanos(nanos);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			case DROP_SMART:
+				// halve the queued video, oldest first, as many times as it takes
+				while (bytes + frame.getSize() > maxBytes && videoCount > 0) {
+					boolean drop = true;
+					for (Iterator<T> it = queue.iterator(); it.hasNext() && bytes + frame.getSize() > maxBytes;) {
+						T queued = it.next();
+						if (queued.isVideo()) {
+							if (drop) {
+								remove(it, queued);
+								droppedQueued++;
+							}
+							drop = !drop;
+						}
+					}
+				}
+				break;
+			default:
+				break;
+		}
+		return bytes + frame.getSize() <= maxBytes;
+	}
+
+	private void remove(Iterator<T> it, T frame) {
+		it.remove();
+		bytes -= frame.getSize();
+		videoCount--;
+		frame.dispose();
+	}
+
+	/**
+	 * Returns the next frame or null if the queue is empty.
+	 *
+	 * @return frame
+	 */
+	public T poll() {
+		lock.lock();
+		try {
+			return take();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the next frame, waiting up to the given time for one to arrive. Returns null if the time elapses or the
+	 * consumer is released with wakeUp.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return frame or null
+	 * @throws InterruptedException
+	 */
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (queue.isEmpty() && !woken && nanos > 0L) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			woken = false;
+			return take();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases a consumer waiting in poll, for instance when there is other work such as audio for it to do.
+	 */
+	public void wakeUp() {
+		lock.lock();
+		try {
+			woken = true;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the head of the queue; called with the lock held.
+	 *
+	 * @return frame or null
+	 */
+	private T take() {
+		T frame = queue.poll();
+		if (frame != null) {
+			bytes -= frame.getSize();
+			if (frame.isVideo()) {
+				videoCount--;
+			}
+			notFull.signal();
+		}
+		return frame;
+	}
+
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return queue.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of video frames queued
+	 */
+	public int getVideoCount() {
+		lock.lock();
+		try {
+			return videoCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return bytes held by the queued frames
+	 */
+	public long getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return queued frames dropped to make room
+	 */
+	public long getDroppedQueued() {
+		lock.lock();
+		try {
+			return droppedQueued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return incoming frames refused for lack of room
+	 */
+	public long getDroppedNewest() {
+		lock.lock();
+		try {
+			return droppedNewest;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return all frames dropped
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return droppedQueued + droppedNewest;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param blockTimeout longest time a producer waits for room under the block policy, in milliseconds
+	 */
+	public void setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	@Override
+	public String toString() {
+		return "FrameQueue [size=" + size() + ", bytes=" + getBytes() + ", maxBytes=" + maxBytes + ", policy=" + policy + ", dropped=" + getDropped() + "]";
+	}
+
+}
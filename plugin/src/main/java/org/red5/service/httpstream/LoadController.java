@@ -0,0 +1,155 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Periodically checks each facade for overload and steps its output quality down or back up. A facade is overloaded when
+ * more video is queued than the allowed queue delay, or when encoding a picture takes most of the time between the pictures
+ * it encodes, which grows with each picture dropped. Each step down drops a larger share of the queued pictures before they
+ * are encoded. A step back up happens only after several consecutive checks with spare capacity at the level above, to avoid
+ * oscillating.
+ *
+ * Overload is handled by decimation only: neither the bit rate nor the resolution is changed, since x264 fixes its rate
+ * control and frame size when the coder is opened and both would require reopening it and restarting the stream.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class LoadController implements Runnable {
+
+	private static Logger log = Red5LoggerFactory.getLogger(LoadController.class);
+
+	// pictures dropped for each one kept, per load level
+	private static final int[] DECIMATION = { 0, 1, 2 };
+
+	public static final int MAX_LEVEL = DECIMATION.length - 1;
+
+	private final SegmenterService segmenter;
+
+	// queued video allowed before a stream is considered overloaded, in milliseconds
+	private long maxQueueDelay = 1000L;
+
+	// share of the frame interval an encode may take before a stream is considered overloaded
+	private double overloadRatio = 0.9d;
+
+	// share of the frame interval under which a stream has spare capacity
+	private double restoreRatio = 0.6d;
+
+	// consecutive checks with spare capacity before a level is restored
+	private int restoreChecks = 5;
+
+	// consecutive checks with spare capacity, keyed by stream name
+	private Map<String, Integer> calmChecks = new HashMap<String, Integer>();
+
+	public LoadController(SegmenterService segmenter) {
+		this.segmenter = segmenter;
+	}
+
+	public void run() {
+		try {
+			if (log.isDebugEnabled()) {
+				log.debug("Executors - readers: {} busy encode threads: {} saturation: {}", new Object[] { segmenter.getIngestActiveCount(), segmenter.getEncodeActiveCount(), segmenter.getEncodeSaturation() });
+			}
+			for (SegmentFacade facade : segmenter.getFacades()) {
+				check(facade);
+			}
+			// forget streams which are gone
+			for (Iterator<String> it = calmChecks.keySet().iterator(); it.hasNext();) {
+				if (!segmenter.isAvailable(it.next())) {
+					it.remove();
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Exception checking load", e);
+		}
+	}
+
+	private void check(SegmentFacade facade) {
+		String name = facade.toString();
+		double fps = facade.getOutputFps();
+		if (fps <= 0d || !facade.hasVideo()) {
+			return;
+		}
+		// frame interval in nanoseconds
+		double frameInterval = 1000000000d / fps;
+		int level = facade.getLoadLevel();
+		// time between encoded pictures at this level, and at the level a restore would return to
+		double encodeInterval = frameInterval * (DECIMATION[level] + 1);
+		double restoreInterval = frameInterval * (DECIMATION[Math.max(level - 1, 0)] + 1);
+		long encodeTime = facade.getAverageVideoEncodeTime();
+		int queued = facade.getQueuedVideoFrames();
+		int maxQueued = (int) Math.max(1, fps * maxQueueDelay / 1000d);
+		if (queued > maxQueued || encodeTime > encodeInterval * overloadRatio) {
+			calmChecks.remove(name);
+			if (level < MAX_LEVEL) {
+				level++;
+				log.info("Overload on {} queued: {} encode time: {} us, degrading to level {}", new Object[] { name, queued, encodeTime / 1000, level });
+				facade.setLoadLevel(level, DECIMATION[level]);
+			}
+		} else if (level > 0 && queued <= maxQueued / 4 && encodeTime < restoreInterval * restoreRatio) {
+			Integer checks = calmChecks.get(name);
+			int calm = checks == null ? 1 : checks + 1;
+			if (calm >= restoreChecks) {
+				calmChecks.remove(name);
+				level--;
+				log.info("Load recovered on {} queued: {} encode time: {} us, restoring to level {}", new Object[] { name, queued, encodeTime / 1000, level });
+				facade.setLoadLevel(level, DECIMATION[level]);
+			} else {
+				calmChecks.put(name, calm);
+			}
+		} else {
+			calmChecks.remove(name);
+		}
+	}
+
+	/**
+	 * @param maxQueueDelay the maxQueueDelay to set
+	 */
+	public void setMaxQueueDelay(long maxQueueDelay) {
+		this.maxQueueDelay = maxQueueDelay;
+	}
+
+	/**
+	 * @param overloadRatio the overloadRatio to set
+	 */
+	public void setOverloadRatio(double overloadRatio) {
+		this.overloadRatio = overloadRatio;
+	}
+
+	/**
+	 * @param restoreRatio the restoreRatio to set
+	 */
+	public void setRestoreRatio(double restoreRatio) {
+		this.restoreRatio = restoreRatio;
+	}
+
+	/**
+	 * @param restoreChecks the restoreChecks to set
+	 */
+	public void setRestoreChecks(int restoreChecks) {
+		this.restoreChecks = restoreChecks;
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stages a stream passes through on its way from the source to the segments, with counters for each of them:
+ * <ul>
+ * <li>DEMUX - reading packets from the source container</li>
+ * <li>DECODE - turning packets into pictures and samples</li>
+ * <li>SCALE - resampling audio and scaling video to the output format, then queueing for the encoder</li>
+ * <li>ENCODE - the native audio and video coders</li>
+ * <li>MUX - interleaving packets and writing them through the output container</li>
+ * <li>STORE - copying transport stream data into the segments</li>
+ * </ul>
+ * DEMUX, DECODE and SCALE run on the thread reading the source, ENCODE, MUX and STORE on the stream's queue worker; the
+ * queue between them is the facade's frame queue and pcm ring, and MUX holds packets in the interleaver. With the queued mux
+ * mode, MUX and STORE move to a task of their own on the ingest executor, behind a bounded queue of encoded packets, so the
+ * boundary between ENCODE and MUX is a second place the pipeline can be split across threads. Each stage reports
+ * the number of items it handled, the time spent in it (excluding nested stages), its backlog where it has a queue in front
+ * of it, and the thread which last ran it.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class MediaPipeline {
+
+	public static enum Stage {
+		DEMUX, DECODE, SCALE, ENCODE, MUX, STORE;
+	}
+
+	/**
+	 * Number of items waiting in front of a stage.
+	 */
+	public static interface Backlog {
+
+		int size();
+
+	}
+
+	private final String name;
+
+	private final StageMetrics[] stages;
+
+	private final long startTime = System.currentTimeMillis();
+
+	public MediaPipeline(String name) {
+		this.name = name;
+		Stage[] values = Stage.values();
+		stages = new StageMetrics[values.length];
+		for (Stage stage : values) {
+			stages[stage.ordinal()] = new StageMetrics(stage);
+		}
+	}
+
+	/**
+	 * Records an item handled by a stage.
+	 *
+	 * @param stage
+	 * @param nanos time spent in the stage
+	 */
+	public void record(Stage stage, long nanos) {
+		stages[stage.ordinal()].record(nanos);
+	}
+
+	public StageMetrics getMetrics(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	public void setBacklog(Stage stage, Backlog backlog) {
+		stages[stage.ordinal()].backlog = backlog;
+	}
+
+	/**
+	 * Returns the stage which has been busy the longest, which is the one to size or move to its own threads first.
+	 *
+	 * @return stage
+	 */
+	public Stage getBottleneck() {
+		StageMetrics busiest = stages[0];
+		for (StageMetrics metrics : stages) {
+			if (metrics.getTotalTime() > busiest.getTotalTime()) {
+				busiest = metrics;
+			}
+		}
+		return busiest.stage;
+	}
+
+	/**
+	 * @return time since the pipeline was created, in milliseconds
+	 */
+	public long getElapsedTime() {
+		return System.currentTimeMillis() - startTime;
+	}
+
+	@Override
+	public String toString() {
+		long elapsed = Math.max(1L, getElapsedTime());
+		StringBuilder sb = new StringBuilder("MediaPipeline [name=").append(name).append(", bottleneck=").append(getBottleneck());
+		for (StageMetrics metrics : stages) {
+			sb.append(", ").append(metrics.stage).append("={count=").append(metrics.getCount());
+			sb.append(", per second=").append(metrics.getCount() * 1000L / elapsed);
+			sb.append(", avg us=").append(metrics.getAverageTime() / 1000L);
+			sb.append(", max us=").append(metrics.getMaxTime() / 1000L);
+			sb.append(", busy %=").append(metrics.getTotalTime() / 10000L / elapsed);
+			sb.append(", backlog=").append(metrics.getBacklog());
+			sb.append(", thread=").append(metrics.getThreadName()).append('}');
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Counters of a single stage.
+	 */
+	public static final class StageMetrics {
+
+		private final Stage stage;
+
+		private final AtomicLong count = new AtomicLong();
+
+		// time spent in the stage, in nanoseconds
+		private final AtomicLong totalTime = new AtomicLong();
+
+		private final AtomicLong maxTime = new AtomicLong();
+
+		// thread which last ran the stage
+		private volatile Thread thread;
+
+		private volatile Backlog backlog;
+
+		StageMetrics(Stage stage) {
+			this.stage = stage;
+		}
+
+		void record(long nanos) {
+			count.incrementAndGet();
+			totalTime.addAndGet(nanos);
+			long max;
+			while (nanos > (max = maxTime.get()) && !maxTime.compareAndSet(max, nanos)) {
+			}
+			thread = Thread.currentThread();
+		}
+
+		public Stage getStage() {
+			return stage;
+		}
+
+		/**
+		 * @return items handled
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return time spent in the stage, in nanoseconds
+		 */
+		public long getTotalTime() {
+			return totalTime.get();
+		}
+
+		/**
+		 * @return average time per item, in nanoseconds
+		 */
+		public long getAverageTime() {
+			long items = count.get();
+			return items > 0 ? totalTime.get() / items : 0L;
+		}
+
+		/**
+		 * @return longest time spent on an item, in nanoseconds
+		 */
+		public long getMaxTime() {
+			return maxTime.get();
+		}
+
+		/**
+		 * @return items waiting in front of the stage, 0 if it has no queue
+		 */
+		public int getBacklog() {
+			Backlog source = backlog;
+			return source != null ? source.size() : 0;
+		}
+
+		/**
+		 * @return name of the thread which last ran the stage, null if it has not run
+		 */
+		public String getThreadName() {
+			Thread last = thread;
+			return last != null ? last.getName() : null;
+		}
+
+	}
+
+}
@@ -57,7 +57,7 @@ public class MuxService {
 		scope.setAttribute("audioStreamName", name);
 		// create a facade
 		SegmenterService segmenter = (SegmenterService) scope.getContext().getBean("segmenter.service");
-		SegmentFacade facade = segmenter.start(name, false);
+		SegmentFacade facade = segmenter.startAudioOnly(name);
 		if (facade != null) {
 			AudioMux mux = new AudioMux(outputSampleRate, true);
 			muxMap.put(scopeName, mux);
@@ -20,17 +20,20 @@ package org.red5.service.httpstream;
 
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.red5.logging.Red5LoggerFactory;
 import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
 import org.red5.stream.util.AudioMux;
-import org.red5.stream.util.BufferUtils;
+import org.red5.stream.util.Mp4BoxParser;
+import org.red5.stream.util.PcmRingBuffer;
+import org.red5.xuggler.NativeObjectPool;
 import org.red5.xuggler.reader.RTMPReader;
 import org.red5.xuggler.tool.SampleRateAdjustTool;
 import org.red5.xuggler.tool.VideoAdjustTool;
@@ -40,7 +43,6 @@ import org.slf4j.Logger;
 import com.xuggle.xuggler.IAudioSamples;
 import com.xuggle.xuggler.IAudioSamples.Format;
 import com.xuggle.xuggler.ICodec;
-import com.xuggle.xuggler.IPixelFormat;
 import com.xuggle.xuggler.IRational;
 import com.xuggle.xuggler.ISimpleMediaFile;
 import com.xuggle.xuggler.IVideoPicture;
@@ -56,6 +58,20 @@ public class SegmentFacade {
 	private static Logger log = Red5LoggerFactory.getLogger(SegmentFacade.class);
 
 	protected final long creationTime;
+
+	// last time data arrived from the source, in milliseconds
+	private volatile long lastIngestTime;
+
+	// last time a viewer asked for the playlist or a segment, in milliseconds
+	private volatile long lastViewerTime;
+
+	// time without activity after which the stream is considered finished, in milliseconds
+	private long idleTimeout = 120000L;
+
+	// guards the writer against being closed by both the worker and dispose
+	private final AtomicBoolean writerClosed = new AtomicBoolean(false);
+
+	private volatile boolean disposed;
 	
 	protected final WeakReference<SegmenterService> segmenterReference;
 
@@ -70,25 +86,38 @@ public class SegmentFacade {
 	// provides audio mux/mix service
 	private AudioMux mux;
 	
-	// queue of segments
-	private ConcurrentLinkedQueue<Segment> segments = new ConcurrentLinkedQueue<Segment>();
+	// segments of the stream, or of its video when the audio is written apart
+	private final SegmentTrack track;
+
+	// segments of the audio, when it is written apart from the video
+	private volatile SegmentTrack audioTrack;
 
-	// queue for data coming from xuggler
-	private ConcurrentLinkedQueue<IQueuedData> dataQueue = new ConcurrentLinkedQueue<IQueuedData>();
+	// queue for video coming from xuggler, bounded by memory
+	private FrameQueue<IQueuedData> dataQueue;
 
-	// lock to protect the segment
-	private final ReentrantLock lock = new ReentrantLock(true);
+	// pcm waiting to be encoded, written straight from the decoded samples
+	private PcmRingBuffer audioRing;
 
-	// segment currently being written to
-	private volatile Segment segment;
+	// memory budget of the data queue in bytes
+	private long maxQueueBytes = 16 * 1024 * 1024;
 
-	// segment index counter
-	private AtomicInteger counter = new AtomicInteger();
+	// what to drop when the data queue is over budget
+	private FrameQueue.OverloadPolicy overloadPolicy = FrameQueue.OverloadPolicy.DROP_SMART;
 
+	// held by a queue worker while it may touch the writer; whoever holds it last after dispose() releases the writer
 	private AtomicBoolean queueWorkerRunning = new AtomicBoolean(false);
 
 	private Future<?> queueWorkerFuture;
 
+	// how often an idle dedicated worker checks whether the stream has ended, in milliseconds
+	private static final long IDLE_CHECK_INTERVAL = 1000L;
+
+	// whether the queue is served by a thread of its own rather than the segmenter's scheduler
+	private boolean dedicatedWorker;
+
+	// the dedicated worker's task on the ingest executor
+	private volatile Future<?> dedicatedWorkerFuture;
+
 	// length of a segment in milliseconds
 	private long segmentTimeLimit;
 
@@ -101,6 +130,9 @@ public class SegmentFacade {
 	// maximum number of segments to keep available per stream
 	private int maxSegmentsPerFacade;
 
+	// container written into the segments
+	private SegmentFormat segmentFormat = SegmentFormat.MPEGTS;
+
 	private String outputAudioCodec;
 
 	private String outputVideoCodec;
@@ -114,18 +146,61 @@ public class SegmentFacade {
 	private int outputAudioChannels = 2;
 
 	private int outputSampleRate = 44100;
+
+	// maximum number of native objects of each type the writer keeps for reuse
+	private int nativePoolSize = 8;
+
+	// media time written between container flushes, in milliseconds
+	private long flushInterval = 200L;
+
+	// whether the mux and store stages run on a task of their own behind a queue of muxQueueSize packets
+	private boolean queuedMux;
+
+	private int muxQueueSize = 64;
+
+	// transport stream packing: PES payload size in bytes, audio packing delay and PCR interval in milliseconds
+	private int pesPayloadSize;
+
+	private long pesMaxDelay;
+
+	private long pcrInterval;
+
+	// h.264 encoder options
+	private EncoderProfile encoderProfile;
+
+	// degradation level set by load control, zero is full quality
+	private volatile int loadLevel;
+
+	// pictures dropped for each one encoded at the current load level
+	private volatile int decimation;
+
+	// counts pictures to decide which ones are dropped
+	private long decimationCounter;
+
+	// number of load level changes
+	private AtomicLong loadAdjustments = new AtomicLong();
+
+	// pictures dropped by load control
+	private AtomicLong decimatedFrames = new AtomicLong();
 	
 	private ICodec audioCodec;
 
 	private ICodec videoCodec;
 
+	// per stage counters of this stream
+	private final MediaPipeline pipeline;
+
 	public SegmentFacade(SegmenterService segmenter, String streamName) {
 		log.debug("Segment facade for: {}", streamName);
 		// created at
 		creationTime = System.currentTimeMillis();
+		lastIngestTime = creationTime;
+		lastViewerTime = creationTime;
 		// set ref to our parent
 		segmenterReference = new WeakReference<SegmenterService>(segmenter);
 		this.streamName = streamName;
+		track = new SegmentTrack(this, streamName);
+		pipeline = new MediaPipeline(streamName);
 	}
 
 	/**
@@ -134,6 +209,7 @@ public class SegmentFacade {
 	public void initReader() {
 		log.debug("Initialize reader for {}", streamName);
 		reader = new RTMPReader("rtmp://127.0.0.1:1935/hlsapp/" + streamName + " live=1 buffer=1");
+		reader.setPipeline(pipeline);
 		// initialize reader
 		reader.init();		
 	}
@@ -143,22 +219,69 @@ public class SegmentFacade {
 	 */
 	public void initWriter() {
 		log.debug("Initialize writer for {}", streamName);
-		// setup our writer
-		writer = new HLSStreamWriter(streamName);
-		// create a description of the output
-		ISimpleMediaFile outputStreamInfo = new SimpleMediaFile();
 		// codecs
 		log.debug("Output codecs - audio: {} video: {}", outputAudioCodec, outputVideoCodec);
 		audioCodec = ICodec.findEncodingCodecByName(outputAudioCodec);
 		if (audioCodec == null || !audioCodec.canEncode()) {
 			log.error("Audio encoding not supported for {}", outputAudioCodec);
 		}
-		videoCodec = ICodec.findEncodingCodecByName(outputVideoCodec);
-		if (videoCodec == null || !videoCodec.canEncode()) {
-			log.error("Video encoding not supported for {}", outputVideoCodec);
+		if (segmentFormat.isAudioOnly()) {
+			// no video stream or encoder at all, and packed audio only carries aac
+			if (audioCodec == null || !ICodec.ID.CODEC_ID_AAC.equals(audioCodec.getID())) {
+				log.warn("{} segments need aac audio, falling back to {} for {}", new Object[] { segmentFormat, SegmentFormat.MPEGTS, streamName });
+				segmentFormat = SegmentFormat.MPEGTS;
+			}
+			videoCodec = null;
+		} else if (outputVideoCodec != null) {
+			videoCodec = ICodec.findEncodingCodecByName(outputVideoCodec);
+			if (videoCodec == null || !videoCodec.canEncode()) {
+				log.error("Video encoding not supported for {}", outputVideoCodec);
+			}
+		}
+		// publish the first segment before anything can be written or read
+		if (track.getSegment() == null) {
+			createSegment();
+		}
+		if (segmentFormat.hasInitSegment() && audioCodec != null && videoCodec != null) {
+			// a track per media type, each in fragments and with an init segment of its own
+			addAudioTrack();
+		}
+		// create the data queue before any data can arrive
+		dataQueue = new FrameQueue<IQueuedData>(maxQueueBytes, overloadPolicy);
+		pipeline.setBacklog(MediaPipeline.Stage.ENCODE, new MediaPipeline.Backlog() {
+			public int size() {
+				// queued pictures plus buffered audio frames
+				int frames = dataQueue.size();
+				int frameLength = writer.getAudioFrameLength();
+				if (audioRing != null && frameLength > 0) {
+					frames += audioRing.available() / frameLength;
+				}
+				return frames;
+			}
+		});
+		pipeline.setBacklog(MediaPipeline.Stage.MUX, new MediaPipeline.Backlog() {
+			public int size() {
+				return writer.getMuxBacklog();
+			}
+		});
+		// setup our writer
+		writer = new HLSStreamWriter(streamName);
+		writer.setNativePoolSize(nativePoolSize);
+		writer.setFlushInterval(flushInterval);
+		if (queuedMux) {
+			writer.setMuxExecutor(segmenterReference.get().getIngestExecutor(), muxQueueSize);
 		}
+		writer.setPesPayloadSize(pesPayloadSize);
+		writer.setPesMaxDelay(pesMaxDelay);
+		writer.setPcrInterval(pcrInterval);
+		writer.setEncoderProfile(encoderProfile);
+		// create a description of the output
+		ISimpleMediaFile outputStreamInfo = new SimpleMediaFile();
 		// audio
 		if (audioCodec != null) {
+			// two seconds of output audio
+			audioRing = new PcmRingBuffer(outputSampleRate * outputAudioChannels * 2);
+			writer.setAudioBuffer(audioRing);
 			outputStreamInfo.setHasAudio(true);
 			outputStreamInfo.setAudioCodec(audioCodec.getID());
 			outputStreamInfo.setAudioChannels(outputAudioChannels);
@@ -210,20 +333,31 @@ public class SegmentFacade {
 			vat.setFacade(this);
 			reader.addListener(vat);
 			// start the reader
-			segmenterReference.get().submitJob(reader);
+			segmenterReference.get().submitIngestJob(reader);
 		}
 		// spawn the queue worker
-		log.debug("Spawning and scheduling the queue worker");
-		queueWorkerFuture = segmenterReference.get().submitJob(new QueueWorker(), 33L);
+		if (dedicatedWorker) {
+			log.debug("Submitting a dedicated queue worker");
+			// the worker holds the queue for as long as it runs
+			queueWorkerRunning.set(true);
+			try {
+				dedicatedWorkerFuture = segmenterReference.get().submitIngestJob(new DedicatedQueueWorker());
+			} catch (RuntimeException e) {
+				queueWorkerRunning.set(false);
+				throw e;
+			}
+		} else {
+			log.debug("Spawning and scheduling the queue worker");
+			queueWorkerFuture = segmenterReference.get().submitJob(new QueueWorker(), 33L);
+		}
 	}
 
 	public int getSegmentCount() {
-		log.trace("Total segments: {}", segments.size());
-		return isComplete() ? segments.size() : (segments.size() > 0 ? segments.size() - 1 : 0);
+		return track.getSegmentCount();
 	}
 
 	public int getActiveSegmentIndex() {
-		return segment.getIndex();
+		return track.getActiveSegmentIndex();
 	}
 
 	/**
@@ -232,7 +366,7 @@ public class SegmentFacade {
 	 * @return
 	 */
 	public boolean isComplete() {
-		return segment != null ? segment.isLast() : false;
+		return track.isComplete();
 	}
 
 	/**
@@ -253,82 +387,66 @@ public class SegmentFacade {
 	}
 	
 	/**
-	 * Whether or not a timeout from the start of streaming has elapsed. This is used in conjunction with
+	 * Whether or not the idle timeout has elapsed since data last arrived. This is used in conjunction with
 	 * isReceivingData() to determine if a stream is alive.
 	 * 
 	 * @return
 	 */
 	private boolean isTimedOut() {
-		return (System.currentTimeMillis() - creationTime) > 120000L; // 2 min timeout
+		return (System.currentTimeMillis() - lastIngestTime) > idleTimeout;
+	}
+
+	/**
+	 * Whether or not the idle timeout has elapsed since the last ingest or viewer activity, after which the facade may be
+	 * disposed.
+	 * 
+	 * @return true if idle
+	 */
+	public boolean isIdle() {
+		return (System.currentTimeMillis() - getLastActivity()) > idleTimeout;
+	}
+
+	/**
+	 * Whether or not the given time has elapsed since a viewer last asked for the stream, or since it was created if none has.
+	 * 
+	 * @param timeout in milliseconds
+	 * @return true if nobody is watching
+	 */
+	public boolean isViewerIdle(long timeout) {
+		return (System.currentTimeMillis() - lastViewerTime) > timeout;
+	}
+
+	/**
+	 * @return last time data arrived or a viewer asked for the stream, in milliseconds
+	 */
+	public long getLastActivity() {
+		return Math.max(lastIngestTime, lastViewerTime);
+	}
+
+	/**
+	 * Records a viewer request for the playlist or a segment.
+	 */
+	public void touchViewer() {
+		lastViewerTime = System.currentTimeMillis();
 	}
 	
 	/**
-	 * Creates and returns a new segment.
+	 * Creates and returns a new segment of the stream's track.
 	 * 
 	 * @return segment
+	 * @see SegmentTrack#createSegment()
 	 */
 	public Segment createSegment() {
-		lock.lock();
-		// clean up current segment if it exists
-		if (segment != null) {
-			log.debug("Close segment {}? Duration: {}", segment.getIndex(), segment.getDuration());
-			// verify that this is not a "new" segment
-			if (segment.getDuration() == 0d) {
-				return segment;
-			}
-			// closing current segment
-			segment.close();
-		}
-		try {
-			log.debug("createSegment for {}", streamName);
-			// create a segment - default is memory mapped
-			segment = new Segment(segmentDirectory, streamName, counter.getAndIncrement(), memoryMapped);
-			// add to the map for lookup
-			if (segments.add(segment)) {
-				log.trace("Segment {} added, total: {}", segment.getIndex(), segments.size());
-			}
-		} finally {
-			lock.unlock();
-		}
-		// enforce segment list length
-		if (segments.size() > maxSegmentsPerFacade) {
-			// get current segments index minus max
-			int index = segment.getIndex() - maxSegmentsPerFacade;
-			for (Segment seg : segments) {
-				if (seg.getIndex() <= index) {
-					log.trace("Removing segment: {}", seg.getIndex());
-					segments.remove(seg);
-					// access to the segment is no longer required
-					seg.dispose();
-				}
-			}
-		}
-		return segment;
+		return track.createSegment();
 	}
 
 	/**
-	 * Returns the active segment.
+	 * Returns the active segment without locking. Once the writer is initialized there is always one.
 	 * 
-	 * @return segment currently being written to
+	 * @return segment currently being written to, null before the first segment is created
 	 */
 	public Segment getSegment() {
-		boolean acquired = false;
-		try {
-			acquired = lock.tryLock(1, TimeUnit.SECONDS);
-			if (acquired) {
-				log.debug("getSegment for {} current segment: {}", streamName, segment);
-				return segment;
-			} else {
-				log.trace("Lock was not acquired within the timeout");
-			}
-		} catch (Exception e) {
-			log.warn("Exception trying lock", e);
-		} finally {
-			if (acquired) {
-				lock.unlock();
-			}
-		}
-		return null;
+		return track.getSegment();
 	}
 
 	/**
@@ -337,47 +455,48 @@ public class SegmentFacade {
 	 * @return segment matching the index or null
 	 */
 	public Segment getSegment(int index) {
-		Segment result = null;
-		if (index < counter.get()) {
-			for (Segment seg : segments) {
-				if (seg.getIndex() == index) {
-					result = seg;
-					break;
-				}
-			}
-		} else {
-			log.warn("No segment available");
-		}
-		return result;
+		return track.getSegment(index);
 	}
 
 	public Segment[] getSegments() {
-		// make room for all but the last / current segment
-		Segment[] segs = new Segment[getSegmentCount()];
-		log.debug("Segments to return: {}", segs.length);
-		if (segs.length > 0) {
-			int s = 0;
-			for (Segment seg : segments) {
-				int idx = seg.getIndex();
-				log.debug("Segment index: {}", idx);
-				try {
-					segs[s++] = seg;
-				} catch (ArrayIndexOutOfBoundsException aiob) {
-					// this happens when we have an active segment
-				}
-			}
-		} else {
-			log.warn("Not enough segments available");
-		}
-		return segs;
+		return track.getSegments();
 	}
 
 	public Segment popSegment() {
-		return segments.poll();
+		return track.popSegment();
+	}
+
+	/**
+	 * @return segments of the stream, or of its video when the audio is written apart
+	 */
+	public SegmentTrack getTrack() {
+		return track;
+	}
+
+	/**
+	 * @return segments of the audio when it is written apart from the video, null otherwise
+	 */
+	public SegmentTrack getAudioTrack() {
+		return audioTrack;
 	}
 
 	/**
-	 * Queue the audio data from non-xuggler source.
+	 * Writes the audio apart from the video from here on, into a track of its own with its first segment created. Must be
+	 * called before the writer is set up.
+	 * 
+	 * @return audio track
+	 */
+	public SegmentTrack addAudioTrack() {
+		if (audioTrack == null) {
+			SegmentTrack added = new SegmentTrack(this, streamName + SegmentTrack.AUDIO_SUFFIX);
+			added.createSegment();
+			audioTrack = added;
+		}
+		return audioTrack;
+	}
+
+	/**
+	 * Queue the audio data from non-xuggler source. The samples are copied into the audio ring.
 	 * 
 	 * @param samples audio data to queue
 	 * @param timeStamp 
@@ -385,11 +504,16 @@ public class SegmentFacade {
 	 */
 	public void queueAudio(short[] samples, long timeStamp, TimeUnit timeUnit) {
 		log.trace("Queue audio");
-		dataQueue.add(new QueuedAudioData(samples, timeStamp, timeUnit));
+		lastIngestTime = System.currentTimeMillis();
+		if (audioRing != null) {
+			writer.setAudioStartTime(timeStamp, timeUnit);
+			audioRing.write(samples, 0, samples.length);
+			signalAudio();
+		}
 	}
 
 	/**
-	 * Queue the audio data from xuggler.
+	 * Queue the audio data from xuggler. The samples are copied once, from the native buffer into the audio ring.
 	 * 
 	 * @param samples audio data to queue
 	 * @param timeStamp 
@@ -397,22 +521,43 @@ public class SegmentFacade {
 	 */
 	public void queueAudio(IAudioSamples samples, long timeStamp, TimeUnit timeUnit) {
 		log.trace("Queue audio");
-		// convert from AudioSamples to short array
+		lastIngestTime = System.currentTimeMillis();
+		// view the native buffer as 16 bit samples, limited to the samples it actually holds
 		ByteBuffer buf = samples.getByteBuffer();
-		byte[] decoded = new byte[buf.limit()];
-		buf.get(decoded);
-		buf.flip();
-		short[] isamples = BufferUtils.byteToShortArray(decoded, 0, decoded.length, true);
-		// queue them up for writing
-		dataQueue.add(new QueuedAudioData(isamples, timeStamp, timeUnit));
+		ShortBuffer pcm = buf.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		pcm.limit((int) (samples.getNumSamples() * samples.getChannels()));
 		// make a copy for group mux if one exists
 		if (mux != null) {
+			short[] isamples = new short[pcm.remaining()];
+			pcm.duplicate().get(isamples);
 			mux.pushData(streamName, isamples);
 		}
+		if (audioRing != null) {
+			writer.setAudioStartTime(timeStamp, timeUnit);
+			audioRing.write(pcm);
+			signalAudio();
+		}
+	}
+
+	/**
+	 * Wakes a dedicated worker once a full audio frame is buffered, so audio is not held back waiting for video.
+	 */
+	private void signalAudio() {
+		if (dedicatedWorkerFuture != null && audioRing.available() >= writer.getAudioFrameLength()) {
+			dataQueue.wakeUp();
+		}
+	}
+
+	/**
+	 * @return number of audio samples discarded because the audio ring was full
+	 */
+	public long getAudioOverruns() {
+		return audioRing != null ? audioRing.getOverruns() : 0L;
 	}
 
 	/**
-	 * Queue the video data from xuggler.
+	 * Queue the video data from xuggler. The picture is not copied; a reference to it is held until it has been encoded, and
+	 * the caller keeps ownership of the one it passed in.
 	 * 
 	 * @param pic video picture to queue
 	 * @param timeStamp 
@@ -420,7 +565,191 @@ public class SegmentFacade {
 	 */
 	public void queueVideo(IVideoPicture pic, long timeStamp, TimeUnit timeUnit) {
 		log.trace("Queue video");
-		dataQueue.add(new QueuedVideoData(pic, timeStamp, timeUnit));
+		lastIngestTime = System.currentTimeMillis();
+		QueuedVideoData video = new QueuedVideoData(pic.copyReference(), false, timeStamp, timeUnit);
+		if (disposed || !dataQueue.add(video)) {
+			log.trace("Video dropped, queue: {}", dataQueue);
+			video.dispose();
+		}
+	}
+
+	/**
+	 * Queue a video picture borrowed from the writer's pool. The facade takes ownership of the picture and returns it to the
+	 * pool once it has been encoded or dropped.
+	 * 
+	 * @param pic video picture to queue
+	 * @param timeStamp 
+	 * @param timeUnit
+	 */
+	public void queuePooledVideo(IVideoPicture pic, long timeStamp, TimeUnit timeUnit) {
+		log.trace("Queue pooled video");
+		lastIngestTime = System.currentTimeMillis();
+		QueuedVideoData video = new QueuedVideoData(pic, true, timeStamp, timeUnit);
+		if (disposed || !dataQueue.add(video)) {
+			log.trace("Video dropped, queue: {}", dataQueue);
+			video.dispose();
+		}
+	}
+
+	/**
+	 * Returns the pool of native objects of the writer, available once the writer is initialized.
+	 * 
+	 * @return pool
+	 */
+	public NativeObjectPool getNativeObjectPool() {
+		return writer.getPool();
+	}
+
+	/**
+	 * Sets the degradation level chosen by load control.
+	 * 
+	 * @param level load level, zero is full quality
+	 * @param decimation pictures to drop for each one encoded
+	 */
+	public void setLoadLevel(int level, int decimation) {
+		if (level != loadLevel) {
+			loadLevel = level;
+			this.decimation = decimation;
+			loadAdjustments.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return per stage counters of this stream
+	 */
+	public MediaPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * @return the data queue, null until the writer is initialized
+	 */
+	public FrameQueue<?> getDataQueue() {
+		return dataQueue;
+	}
+
+	/**
+	 * @return number of frames dropped by the data queue overload policy
+	 */
+	public long getDroppedFrames() {
+		return dataQueue != null ? dataQueue.getDropped() : 0L;
+	}
+
+	/**
+	 * @param maxQueueBytes the maxQueueBytes to set
+	 */
+	public void setMaxQueueBytes(long maxQueueBytes) {
+		this.maxQueueBytes = maxQueueBytes;
+	}
+
+	/**
+	 * @param overloadPolicy the overloadPolicy to set
+	 */
+	public void setOverloadPolicy(FrameQueue.OverloadPolicy overloadPolicy) {
+		this.overloadPolicy = overloadPolicy;
+	}
+
+	/**
+	 * @param idleTimeout time without activity after which the stream is considered finished, in milliseconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public String getStreamName() {
+		return streamName;
+	}
+
+	/**
+	 * @param dedicatedWorker true to serve the queue from a thread of its own instead of polling it every 33 ms
+	 */
+	public void setDedicatedWorker(boolean dedicatedWorker) {
+		this.dedicatedWorker = dedicatedWorker;
+	}
+
+	public int getLoadLevel() {
+		return loadLevel;
+	}
+
+	/**
+	 * @return pictures dropped by load control for each one encoded
+	 */
+	public int getDecimation() {
+		return decimation;
+	}
+
+	/**
+	 * @return number of times load control changed the level of this stream
+	 */
+	public long getLoadAdjustments() {
+		return loadAdjustments.get();
+	}
+
+	/**
+	 * @return number of pictures dropped by load control
+	 */
+	public long getDecimatedFrames() {
+		return decimatedFrames.get();
+	}
+
+	/**
+	 * @return number of video pictures waiting to be encoded
+	 */
+	public int getQueuedVideoFrames() {
+		return dataQueue != null ? dataQueue.getVideoCount() : 0;
+	}
+
+	/**
+	 * @return moving average of the time spent encoding a picture in nanoseconds, or zero before the writer exists
+	 */
+	public long getAverageVideoEncodeTime() {
+		return writer != null ? writer.getAverageVideoEncodeTime() : 0L;
+	}
+
+	/**
+	 * @return cores spent encoding audio, from the moving average of the time per audio frame, or zero until measured
+	 */
+	public double getAudioEncodeLoad() {
+		if (writer == null || audioCodec == null) {
+			return 0d;
+		}
+		long encodeTime = writer.getAverageAudioEncodeTime();
+		int frameLength = writer.getAudioFrameLength();
+		if (encodeTime <= 0L || frameLength == 0) {
+			return 0d;
+		}
+		// frames per second from the interleaved samples per frame
+		return encodeTime * ((double) outputSampleRate * outputAudioChannels / frameLength) / 1000000000d;
+	}
+
+	public boolean hasVideo() {
+		return videoCodec != null;
+	}
+
+	public double getOutputFps() {
+		return outputFps;
+	}
+
+	/**
+	 * @return pictures encoded per second once load control has dropped its share
+	 */
+	public double getEncodedFps() {
+		return outputFps / (decimation + 1);
+	}
+
+	public int getOutputWidth() {
+		return outputWidth;
+	}
+
+	public int getOutputHeight() {
+		return outputHeight;
+	}
+
+	/**
+	 * @return output pixels per second
+	 */
+	public double getPixelRate() {
+		return outputWidth * outputHeight * outputFps;
 	}
 
 	/**
@@ -431,7 +760,7 @@ public class SegmentFacade {
 	}
 
 	/**
-	 * @param outputVideoCodec the outputVideoCodec to set
+	 * @param outputVideoCodec the outputVideoCodec to set, null for a stream without video
 	 */
 	public void setOutputVideoCodec(String outputVideoCodec) {
 		this.outputVideoCodec = outputVideoCodec;
@@ -480,8 +809,71 @@ public class SegmentFacade {
 	}
 
 	/**
-	 * @return the maxSegmentsPerFacade
+	 * @return container written into the segments
+	 */
+	public SegmentFormat getSegmentFormat() {
+		return segmentFormat;
+	}
+
+	/**
+	 * @param segmentFormat container written into the segments, must be set before the first segment is created
+	 */
+	public void setSegmentFormat(SegmentFormat segmentFormat) {
+		this.segmentFormat = segmentFormat;
+	}
+
+	/**
+	 * @return header the segments need to be decoded, null until the writer produced it or if the format has none
 	 */
+	public byte[] getInitSegment() {
+		return track.getInitSegment();
+	}
+
+	public void setInitSegment(byte[] initSegment) {
+		track.setInitSegment(initSegment);
+	}
+
+	/**
+	 * Returns the codecs of the stream as used in a codecs attribute: read from the init segments when the format has them,
+	 * those of each track when the audio is written apart, otherwise derived from the encoder profile and the audio coder.
+	 * 
+	 * @return comma separated codecs, empty if none is known
+	 */
+	public String getCodecs() {
+		byte[] init = track.getInitSegment();
+		if (init != null) {
+			String codecs = Mp4BoxParser.getCodecs(init);
+			SegmentTrack audio = audioTrack;
+			byte[] audioInit = audio != null ? audio.getInitSegment() : null;
+			if (audioInit != null) {
+				String audioCodecs = Mp4BoxParser.getCodecs(audioInit);
+				if (audioCodecs.length() > 0) {
+					codecs = codecs.length() > 0 ? codecs + ',' + audioCodecs : audioCodecs;
+				}
+			}
+			return codecs;
+		}
+		StringBuilder codecs = new StringBuilder();
+		if (videoCodec != null && videoCodec.getID() == ICodec.ID.CODEC_ID_H264 && encoderProfile != null) {
+			codecs.append(encoderProfile.getAvcCodec());
+		}
+		if (audioCodec != null) {
+			String codec = null;
+			if (audioCodec.getID() == ICodec.ID.CODEC_ID_AAC) {
+				codec = "mp4a.40.2";
+			} else if (audioCodec.getID() == ICodec.ID.CODEC_ID_MP3) {
+				codec = "mp4a.40.34";
+			}
+			if (codec != null) {
+				if (codecs.length() > 0) {
+					codecs.append(',');
+				}
+				codecs.append(codec);
+			}
+		}
+		return codecs.toString();
+	}
+
 	public int getMaxSegmentsPerFacade() {
 		return maxSegmentsPerFacade;
 	}
@@ -493,6 +885,65 @@ public class SegmentFacade {
 		this.maxSegmentsPerFacade = maxSegmentsPerFacade;
 	}
 	
+	/**
+	 * @param nativePoolSize the nativePoolSize to set
+	 */
+	public void setNativePoolSize(int nativePoolSize) {
+		this.nativePoolSize = nativePoolSize;
+	}
+
+	/**
+	 * @param flushInterval the flushInterval to set
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * @param queuedMux true to run the mux and store stages on a task of their own, fed through a bounded packet queue,
+	 *            rather than on the queue worker
+	 * @param muxQueueSize packets queued before the encoder waits for the muxer
+	 */
+	public void setQueuedMux(boolean queuedMux, int muxQueueSize) {
+		this.queuedMux = queuedMux;
+		this.muxQueueSize = muxQueueSize;
+	}
+
+	/**
+	 * @param pesPayloadSize most elementary stream bytes per PES, zero for the muxer default
+	 */
+	public void setPesPayloadSize(int pesPayloadSize) {
+		this.pesPayloadSize = pesPayloadSize;
+	}
+
+	/**
+	 * @param pesMaxDelay longest audio is held to pack it into one PES in milliseconds, zero for the muxer default
+	 */
+	public void setPesMaxDelay(long pesMaxDelay) {
+		this.pesMaxDelay = pesMaxDelay;
+	}
+
+	/**
+	 * @param pcrInterval time between PCRs in milliseconds, zero for the muxer default
+	 */
+	public void setPcrInterval(long pcrInterval) {
+		this.pcrInterval = pcrInterval;
+	}
+
+	/**
+	 * @return the encoderProfile
+	 */
+	public EncoderProfile getEncoderProfile() {
+		return encoderProfile;
+	}
+
+	/**
+	 * @param encoderProfile the encoderProfile to set
+	 */
+	public void setEncoderProfile(EncoderProfile encoderProfile) {
+		this.encoderProfile = encoderProfile;
+	}
+
 	public void setAudioMux(AudioMux mux) {
 		this.mux = mux;
 	}	
@@ -505,46 +956,46 @@ public class SegmentFacade {
 	/**
 	 * Interface for queued data originated from Xuggler
 	 */
-	interface IQueuedData {
+	interface IQueuedData extends FrameQueue.Frame {
 		long getTimeStamp();
 
 		TimeUnit getTimeUnit();
 	}
 
 	/**
-	 * Queued audio data originated from Xuggler
+	 * Queued video data originated from Xuggler
 	 */
-	private final class QueuedAudioData implements IQueuedData {
+	private final class QueuedVideoData implements IQueuedData {
+
+		final IVideoPicture picture;
 
-		final short[] samples;
+		// true if the picture was borrowed from the writer's pool
+		final boolean pooled;
+
+		final int size;
 
 		final long timeStamp;
 
 		final TimeUnit timeUnit;
 
-		@SuppressWarnings("unused")
-		QueuedAudioData(IAudioSamples isamples, long timeStamp, TimeUnit timeUnit) {
-			ByteBuffer buf = isamples.getByteBuffer();
-			byte[] decoded = new byte[buf.limit()];
-			buf.get(decoded);
-			buf.flip();
-			this.samples = BufferUtils.byteToShortArray(decoded, 0, decoded.length, true);
-			this.timeStamp = timeStamp;
-			this.timeUnit = timeUnit;
-		}
-
-		QueuedAudioData(short[] isamples, long timeStamp, TimeUnit timeUnit) {
-			this.samples = new short[isamples.length];
-			System.arraycopy(isamples, 0, samples, 0, isamples.length);
+		QueuedVideoData(IVideoPicture pic, boolean pooled, long timeStamp, TimeUnit timeUnit) {
+			this.picture = pic;
+			this.pooled = pooled;
+			this.size = pic.getSize();
 			this.timeStamp = timeStamp;
 			this.timeUnit = timeUnit;
+			// only a picture we own is stamped, a shared reference already carries the decoder's pts and may still be
+			// read by other listeners of the reader
+			if (pooled) {
+				pic.setPts(timeStamp);
+			}
 		}
 
 		/**
-		 * @return the samples
+		 * @return the picture
 		 */
-		public short[] getSamples() {
-			return samples;
+		public IVideoPicture getVideoPicture() {
+			return picture;
 		}
 
 		/**
@@ -558,60 +1009,145 @@ public class SegmentFacade {
 			return timeStamp;
 		}
 
-	}
-
-	/**
-	 * Queued video data originated from Xuggler
-	 */
-	private final class QueuedVideoData implements IQueuedData {
-
-		final byte[] picture;
+		public boolean isVideo() {
+			return true;
+		}
 
-		final int width;
+		public int getSize() {
+			return size;
+		}
 
-		final int height;
+		/**
+		 * Returns a pooled picture to the pool, or drops the reference held to a picture owned elsewhere.
+		 */
+		public void dispose() {
+			if (pooled) {
+				writer.getPool().release(picture);
+			} else {
+				picture.delete();
+			}
+		}
 
-		final long timeStamp;
+	}
 
-		final TimeUnit timeUnit;
+	/**
+	 * Encodes a queued entry and frees it.
+	 * 
+	 * @param q
+	 */
+	private void encodeQueued(IQueuedData q) {
+		if (q instanceof QueuedVideoData) {
+			QueuedVideoData video = (QueuedVideoData) q;
+			try {
+				if (videoCodec != null) {
+					// drop pictures while load control has decimation in effect
+					int skip = decimation;
+					if (skip > 0 && (decimationCounter++ % (skip + 1)) != 0) {
+						decimatedFrames.incrementAndGet();
+						return;
+					}
+					// keep audio abreast of video
+					if (audioCodec != null) {
+						writer.encodeAudio();
+					}
+					// send video to the hls writer
+					writer.encodeVideo(video.getVideoPicture(), q.getTimeStamp(), q.getTimeUnit());
+				}
+			} finally {
+				video.dispose();
+			}
+		}
+	}
 
-		QueuedVideoData(IVideoPicture pic, long timeStamp, TimeUnit timeUnit) {
-			ByteBuffer buf = pic.getByteBuffer();
-			picture = new byte[buf.limit()];
-			buf.get(picture);
-			buf.flip();
-			//this.type = pic.getPixelType();
-			this.width = pic.getWidth();
-			this.height = pic.getHeight();
-			this.timeStamp = timeStamp;
-			this.timeUnit = timeUnit;
+	/**
+	 * Closes the writer once no more data is being received.
+	 * 
+	 * @return true if the writer was closed
+	 */
+	private boolean closeIfFinished() {
+		// check if we are no longer getting data
+		if (!isReceivingData() && isTimedOut()) {
+			log.debug("Closing writer, no more data being received");
+			closeWriter();
+			return true;
 		}
+		return false;
+	}
 
-		/**
-		 * @return the picture
-		 */
-		public IVideoPicture getVideoPicture() {
-			IVideoPicture pic = IVideoPicture.make(IPixelFormat.Type.YUV420P, width, height);
-			pic.put(picture, 0, 0, picture.length);
-			pic.setComplete(true, IPixelFormat.Type.YUV420P, width, height, timeStamp);
-			return pic;
+	/**
+	 * Frees anything still queued and closes the writer, once.
+	 */
+	private void closeWriter() {
+		if (writerClosed.compareAndSet(false, true)) {
+			// free anything still queued
+			IQueuedData q = null;
+			while ((q = dataQueue.poll()) != null) {
+				q.dispose();
+			}
+			try {
+				writer.close();
+			} catch (Exception e) {
+				log.warn("Exception closing writer for {}", streamName, e);
+			}
+			if (mux != null) {
+				// remove the streams audio track from the muxer
+				mux.removeTrack(streamName);
+			}
 		}
+	}
 
-		/**
-		 * @return the timeUnit
-		 */
-		public TimeUnit getTimeUnit() {
-			return timeUnit;
+	/**
+	 * Releases everything held for the stream: stops the worker and reader, closes the writer and its native coders, and
+	 * disposes of the segments, which deletes their files. The facade cannot be used afterwards. A worker busy encoding is
+	 * not waited for; it sees the facade is disposed at the end of its pass and releases the writer and segments itself.
+	 */
+	public void dispose() {
+		log.debug("Dispose facade for {}", streamName);
+		disposed = true;
+		// no further passes, and release a dedicated worker waiting for data
+		if (queueWorkerFuture != null) {
+			queueWorkerFuture.cancel(false);
 		}
+		if (dedicatedWorkerFuture != null) {
+			dataQueue.wakeUp();
+		}
+		if (reader != null && !reader.isClosed()) {
+			reader.stop();
+		}
+		if (queueWorkerRunning.compareAndSet(false, true)) {
+			release();
+		} else {
+			log.debug("Queue worker busy, it releases {} when its pass ends", streamName);
+		}
+	}
 
-		public long getTimeStamp() {
-			return timeStamp;
+	/**
+	 * Lets go of the queue at the end of a worker's pass; once the facade is disposed, the worker which manages to take the
+	 * queue back releases the writer and segments, so they are never freed while a pass is encoding.
+	 */
+	private void workerDone() {
+		queueWorkerRunning.set(false);
+		if (disposed && queueWorkerRunning.compareAndSet(false, true)) {
+			release();
 		}
+	}
 
+	/**
+	 * Closes the writer and disposes of the segments; called once, with the queue held, after the facade is disposed.
+	 */
+	private void release() {
+		if (writer != null) {
+			closeWriter();
+		}
+		// close the active segments, then drop them all
+		track.dispose();
+		if (audioTrack != null) {
+			audioTrack.dispose();
+		}
 	}
 
 	/**
-	 * Routes the queued Xuggler derived data to the segments.
+	 * Routes the queued Xuggler derived data to the segments; run periodically by the segmenter's scheduler.
 	 */
 	private final class QueueWorker implements Runnable {
 
@@ -620,34 +1156,28 @@ public class SegmentFacade {
 			if (queueWorkerRunning.compareAndSet(false, true)) {
 				log.trace("QueueWorker - run");
 				try {
-					if (!dataQueue.isEmpty()) {
+					if (disposed) {
+						log.trace("Facade disposed");
+					} else if (!dataQueue.isEmpty()) {
 						IQueuedData q = null;
-						while ((q = dataQueue.poll()) != null) {
-							if (q instanceof QueuedAudioData && audioCodec != null) {
-								// send audio to the hls writer
-								writer.encodeAudio(((QueuedAudioData) q).getSamples(), q.getTimeStamp(), q.getTimeUnit());
-							} else if (q instanceof QueuedVideoData && videoCodec != null) {
-								// send video to the hls writer
-								writer.encodeVideo(((QueuedVideoData) q).getVideoPicture(), q.getTimeStamp(), q.getTimeUnit());
-							}
+						while (!disposed && (q = dataQueue.poll()) != null) {
+							encodeQueued(q);
 						}
 					} else {
 						log.trace("Queue is empty");
 					}
+					// send buffered audio to the hls writer
+					if (audioCodec != null && !disposed) {
+						writer.encodeAudio();
+					}
 				} catch (Exception e) {
 					log.warn("Exception handling queue", e);
 				} finally {
-					// check if we are no longer getting data
-					if (!isReceivingData() && isTimedOut()) {
-						log.debug("Cancelling queue worker, no more data being received");
+					if (!disposed && closeIfFinished()) {
+						log.debug("Cancelling queue worker");
 						queueWorkerFuture.cancel(true);
-						writer.close();
-						if (mux != null) {
-							// remove the streams audio track from the muxer
-							mux.removeTrack(streamName);
-						}
 					}
-					queueWorkerRunning.compareAndSet(true, false);
+					workerDone();
 				}
 				log.trace("QueueWorker - end");
 			} else {
@@ -657,4 +1187,43 @@ public class SegmentFacade {
 
 	}
 
+	/**
+	 * Routes the queued Xuggler derived data to the segments from a task on the ingest executor, which blocks until data
+	 * arrives.
+	 */
+	private final class DedicatedQueueWorker implements Runnable {
+
+		public void run() {
+			log.debug("DedicatedQueueWorker - start {}", streamName);
+			try {
+				do {
+					try {
+						// wait for a picture, or for audio to be signalled
+						IQueuedData q = dataQueue.poll(IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+						while (q != null && !disposed) {
+							encodeQueued(q);
+							q = dataQueue.poll();
+						}
+						if (q != null) {
+							q.dispose();
+						}
+						// send buffered audio to the hls writer
+						if (audioCodec != null && !disposed) {
+							writer.encodeAudio();
+						}
+					} catch (InterruptedException e) {
+						log.debug("DedicatedQueueWorker - interrupted {}", streamName);
+						break;
+					} catch (Exception e) {
+						log.warn("Exception handling queue", e);
+					}
+				} while (!disposed && !closeIfFinished());
+			} finally {
+				workerDone();
+			}
+			log.debug("DedicatedQueueWorker - end {}", streamName);
+		}
+
+	}
+
 }
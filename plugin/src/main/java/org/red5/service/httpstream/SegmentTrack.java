@@ -0,0 +1,249 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.red5.service.httpstream.model.Segment;
+import org.slf4j.Logger;
+
+/**
+ * Window of segments written for one output of a stream, with the init segment they are decoded with when the format has
+ * one. A stream has a single track holding all of its media, except fragmented mp4 with both video and audio, where each
+ * media type is written apart as CMAF requires: the video goes to the stream's track and the audio to a track named after
+ * the stream with the {@link #AUDIO_SUFFIX}. Segments are named after their track, "[track]_[index]", and the segment
+ * directory, format and window length are those of the facade.
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class SegmentTrack {
+
+	private static Logger log = Red5LoggerFactory.getLogger(SegmentTrack.class);
+
+	// suffix of the stream name naming the audio track of a stream whose audio is written apart from its video
+	public static final String AUDIO_SUFFIX = "_audio";
+
+	private final SegmentFacade facade;
+
+	private final String name;
+
+	// segment list
+	private ConcurrentLinkedQueue<Segment> segments = new ConcurrentLinkedQueue<Segment>();
+
+	// segment currently being written to
+	private final AtomicReference<Segment> segment = new AtomicReference<Segment>();
+
+	// segment index counter
+	private AtomicInteger counter = new AtomicInteger();
+
+	// ftyp and moov of fragmented mp4 segments, set by the output handler
+	private volatile byte[] initSegment;
+
+	public SegmentTrack(SegmentFacade facade, String name) {
+		this.facade = facade;
+		this.name = name;
+	}
+
+	/**
+	 * @return facade of the stream the track belongs to
+	 */
+	public SegmentFacade getFacade() {
+		return facade;
+	}
+
+	/**
+	 * @return name of the track, which its segments are named after
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public int getSegmentCount() {
+		log.trace("Total segments: {}", segments.size());
+		return isComplete() ? segments.size() : (segments.size() > 0 ? segments.size() - 1 : 0);
+	}
+
+	public int getActiveSegmentIndex() {
+		Segment current = segment.get();
+		return current != null ? current.getIndex() : -1;
+	}
+
+	/**
+	 * Whether or not this track is on its last segment.
+	 * 
+	 * @return
+	 */
+	public boolean isComplete() {
+		Segment current = segment.get();
+		return current != null ? current.isLast() : false;
+	}
+
+	/**
+	 * Creates and returns a new segment. The index following the current segment is claimed with a compare and set before
+	 * the segment is built, so only one thread rolls over from a given segment and indexes follow on without gaps; a thread
+	 * which loses the claim waits for the winner to publish its segment and returns that one.
+	 * 
+	 * @return segment
+	 */
+	public Segment createSegment() {
+		Segment current = segment.get();
+		if (current != null) {
+			log.debug("Close segment {}? Duration: {}", current.getIndex(), current.getDuration());
+			// verify that this is not a "new" segment
+			if (current.getDuration() == 0d) {
+				return current;
+			}
+		}
+		log.debug("createSegment for {}", name);
+		int nextIndex = current != null ? current.getIndex() + 1 : counter.get();
+		if (!counter.compareAndSet(nextIndex, nextIndex + 1)) {
+			log.debug("Segment {} claimed by another thread", nextIndex);
+			Segment published;
+			while ((published = segment.get()) == current) {
+				Thread.yield();
+			}
+			return published;
+		}
+		// create a segment - default is memory mapped
+		Segment next = new Segment(facade.getSegmentDirectory(), name, nextIndex, facade.isMemoryMapped(), facade.getSegmentFormat());
+		segment.set(next);
+		// closing previous segment, writes go to the new one from here on
+		if (current != null) {
+			current.close();
+		}
+		// add to the map for lookup
+		if (segments.add(next)) {
+			log.trace("Segment {} added, total: {}", next.getIndex(), segments.size());
+		}
+		// enforce segment list length
+		int maxSegments = facade.getMaxSegmentsPerFacade();
+		if (segments.size() > maxSegments) {
+			// get current segments index minus max
+			int index = next.getIndex() - maxSegments;
+			for (Segment seg : segments) {
+				if (seg.getIndex() <= index) {
+					log.trace("Removing segment: {}", seg.getIndex());
+					segments.remove(seg);
+					// access to the segment is no longer required
+					seg.dispose();
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the active segment without locking. Once the writer is initialized there is always one.
+	 * 
+	 * @return segment currently being written to, null before the first segment is created
+	 */
+	public Segment getSegment() {
+		return segment.get();
+	}
+
+	/**
+	 * Returns a segment matching the requested index.
+	 * 
+	 * @return segment matching the index or null
+	 */
+	public Segment getSegment(int index) {
+		Segment result = null;
+		if (index < counter.get()) {
+			for (Segment seg : segments) {
+				if (seg.getIndex() == index) {
+					result = seg;
+					break;
+				}
+			}
+		} else {
+			log.warn("No segment available");
+		}
+		return result;
+	}
+
+	public Segment[] getSegments() {
+		// make room for all but the last / current segment
+		Segment[] segs = new Segment[getSegmentCount()];
+		log.debug("Segments to return: {}", segs.length);
+		if (segs.length > 0) {
+			int s = 0;
+			for (Segment seg : segments) {
+				int idx = seg.getIndex();
+				log.debug("Segment index: {}", idx);
+				try {
+					segs[s++] = seg;
+				} catch (ArrayIndexOutOfBoundsException aiob) {
+					// this happens when we have an active segment
+				}
+			}
+		} else {
+			log.warn("Not enough segments available");
+		}
+		return segs;
+	}
+
+	public Segment popSegment() {
+		return segments.poll();
+	}
+
+	/**
+	 * @return header the segments need to be decoded, null until the writer produced it or if the format has none
+	 */
+	public byte[] getInitSegment() {
+		return initSegment;
+	}
+
+	public void setInitSegment(byte[] initSegment) {
+		this.initSegment = initSegment;
+	}
+
+	/**
+	 * Marks the active segment as the last one and closes it, unless that was done already.
+	 */
+	public void end() {
+		Segment current = segment.get();
+		if (current != null && !current.isLast()) {
+			current.setLast(true);
+			current.close();
+		}
+	}
+
+	/**
+	 * Closes the active segment, then disposes of them all, which deletes their files.
+	 */
+	public void dispose() {
+		Segment current = segment.get();
+		if (current != null) {
+			current.close();
+		}
+		Segment seg = null;
+		while ((seg = segments.poll()) != null) {
+			seg.dispose();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SegmentTrack [name=" + name + ", segments=" + segments.size() + ", active=" + getActiveSegmentIndex() + "]";
+	}
+
+}
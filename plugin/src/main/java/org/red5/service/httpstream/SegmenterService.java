@@ -18,19 +18,28 @@
 
 package org.red5.service.httpstream;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import org.red5.logging.Red5LoggerFactory;
 import org.red5.server.api.scope.IScope;
 import org.red5.server.api.stream.IBroadcastStream;
 import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
+import org.red5.stream.http.xuggler.FileRecordingSink;
+import org.red5.stream.http.xuggler.MpegTsHandlerFactory;
 import org.red5.stream.util.AudioMux;
+import org.red5.xuggler.handler.ISegmentSink;
+import org.red5.xuggler.handler.SegmentTee;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 import com.xuggle.mediatool.ToolFactory;
@@ -48,12 +57,27 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 	// map of currently available segment facades, keyed by stream name
 	private static ConcurrentMap<String, SegmentFacade> segmentMap = new ConcurrentHashMap<String, SegmentFacade>();
 
+	// streams published while starting on request, waiting for their first viewer, keyed by stream name
+	private ConcurrentMap<String, Registration> registeredStreams = new ConcurrentHashMap<String, Registration>();
+
+	// encoder profiles parsed so far, keyed by profile name
+	private ConcurrentMap<String, EncoderProfile> encoderProfiles = new ConcurrentHashMap<String, EncoderProfile>();
+
 	// mux service
 	private MuxService muxService;
 	
-	// execution handling
+	// execution handling, runs the queue workers and other periodic jobs
 	private ThreadPoolTaskScheduler segmentExecutor;
 
+	// threads of the segment executor, zero keeps the pool size it was configured with
+	private int encodePoolSize;
+
+	// runs the blocking source readers, a thread for each
+	private ThreadPoolTaskExecutor ingestExecutor;
+
+	// whether the ingest executor was created here and must be shut down here
+	private boolean ownIngestExecutor;
+
 	// length of a segment in milliseconds
 	private long segmentTimeLimit = 4000;
 
@@ -65,13 +89,85 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 
 	// maximum number of segments to keep available per stream
 	private int maxSegmentsPerFacade = 4;
+
+	// container written into the segments
+	private SegmentFormat segmentFormat = SegmentFormat.MPEGTS;
+
+	// container of streams without video
+	private SegmentFormat audioOnlySegmentFormat = SegmentFormat.AAC;
 	
 	private String outputAudioCodec = "libvo_aacenc";
 	
 	private String outputVideoCodec = "libx264";
 
+	// maximum number of native packets, samples and pictures each writer keeps for reuse, zero disables pooling
+	private int nativePoolSize = 8;
+
+	// media time written between container flushes, in milliseconds
+	private long flushInterval = 200L;
+
+	// where each stream's mux and store stages run: "inline" on its queue worker, "queued" on a task of their own
+	private String muxMode = "inline";
+
+	// packets queued between the encoder and a queued mux stage
+	private int muxQueueSize = 64;
+
+	// most elementary stream bytes per PES of transport stream segments, zero for the muxer default
+	private int pesPayloadSize = 2930;
+
+	// longest audio is held to pack several frames into one PES, in milliseconds, zero for the muxer default
+	private long pesMaxDelay = 700L;
+
+	// time between PCRs of transport stream segments, in milliseconds, zero for the muxer default
+	private long pcrInterval = 80L;
+
+	// bytes buffered for each sink added to a stream next to its segments
+	private int sinkBufferSize = 4 * 1024 * 1024;
+
+	// encoder profile used when a stream does not select one
+	private String defaultEncoderProfile = EncoderProfile.DEFAULT_PROFILE;
+
+	// period between load checks in milliseconds, zero disables load control
+	private long loadControlInterval = 1000L;
+
+	// queued video allowed before a stream is degraded, in milliseconds
+	private long maxQueueDelay = 1000L;
+
+	// memory budget of each facade's data queue in bytes
+	private long maxQueueBytes = 16 * 1024 * 1024;
+
+	// what a facade drops when its data queue is over budget
+	private FrameQueue.OverloadPolicy overloadPolicy = FrameQueue.OverloadPolicy.DROP_SMART;
+
+	// time without ingest or viewers after which a facade is torn down, in milliseconds
+	private long idleTimeout = 120000L;
+
+	// period between checks for idle facades in milliseconds, zero disables eviction
+	private long janitorInterval = 10000L;
+
+	// whether published streams are only transcoded once a viewer requests their playlist
+	private boolean startStreamOnRequest;
+
+	// time without viewers after which a stream started on request is stopped, in milliseconds
+	private long viewerIdleTimeout = 60000L;
+
+	// cores available to transcoding, zero disables admission control
+	private double cpuBudget;
+
+	// what happens to a stream which does not fit the cpu budget
+	private AdmissionController.Policy admissionPolicy = AdmissionController.Policy.QUEUE;
+
+	// profile used for streams admitted under the degrade policy
+	private String degradedEncoderProfile = "ultralowlatency";
+
+	private AdmissionController admissionController;
+
+	// how each stream's queue is served: "scheduled" polls it on the executor, "dedicated" blocks a thread per stream on it
+	private String workerMode = "scheduled";
+
 	/**
-	 * Creates and starts a facade and adds an audio mux for the given scope.
+	 * Creates and starts a facade and adds an audio mux for the given scope. The encoder profile is taken from the scope
+	 * attribute "encoderProfile.[stream name]" or, if that is not set, "encoderProfile".
 	 * 
 	 * @param scope
 	 * @param stream
@@ -80,7 +176,108 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 	public void start(IScope scope, IBroadcastStream stream, boolean useRTMPReader) {
 		log.debug("start - scope: {} stream: {} rtmp reader: {}", scope.getName(), stream.getPublishedName(), useRTMPReader);
 		String streamName = stream.getPublishedName();
-		start(streamName, useRTMPReader);
+		if (startStreamOnRequest) {
+			log.debug("Registering {} to start on request", streamName);
+			registeredStreams.put(streamName, new Registration(scope, useRTMPReader));
+		} else {
+			start(scope, streamName, useRTMPReader);
+		}
+	}
+
+	/**
+	 * Starts a stream which was registered when it was published, if it is not already running. Called for the first viewer
+	 * when streams start on request.
+	 * 
+	 * @param streamName
+	 * @return true if the stream was started by this call
+	 */
+	public boolean startOnRequest(String streamName) {
+		Registration registration = registeredStreams.get(streamName);
+		if (registration != null) {
+			// one viewer starts it, the others wait for its segments
+			synchronized (registration) {
+				if (!isAvailable(streamName)) {
+					log.debug("Starting {} on request", streamName);
+					start(registration.scope, streamName, registration.useRTMPReader);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets a stream registered to start on request, for instance when its publisher leaves.
+	 * 
+	 * @param streamName
+	 */
+	public void unregister(String streamName) {
+		registeredStreams.remove(streamName);
+		if (admissionController != null) {
+			admissionController.release(streamName);
+		}
+	}
+
+	/**
+	 * @param streamName
+	 * @return admission decision for the stream, null if admission control is disabled or no decision was taken
+	 */
+	public AdmissionController.Status getAdmissionStatus(String streamName) {
+		return admissionController != null ? admissionController.getStatus(streamName) : null;
+	}
+
+	/**
+	 * @param streamName
+	 * @return true if the stream is published and waiting to be started on request
+	 */
+	public boolean isRegistered(String streamName) {
+		return registeredStreams.containsKey(streamName);
+	}
+
+	private void start(final IScope scope, final String streamName, final boolean useRTMPReader) {
+		String profileName = defaultEncoderProfile;
+		if (scope.hasAttribute("encoderProfile." + streamName)) {
+			profileName = (String) scope.getAttribute("encoderProfile." + streamName);
+		} else if (scope.hasAttribute("encoderProfile")) {
+			profileName = (String) scope.getAttribute("encoderProfile");
+		}
+		if (admissionController != null) {
+			AdmissionController.Status status = admissionController.admit(streamName, profileName, new AdmissionController.Start() {
+				public void start(String profileName) {
+					startQueued(scope, streamName, useRTMPReader, profileName);
+				}
+			});
+			switch (status) {
+				case ADMITTED:
+					break;
+				case DEGRADED:
+					profileName = admissionController.getDegradedProfile();
+					break;
+				default:
+					// queued or rejected
+					return;
+			}
+		}
+		start(scope, streamName, useRTMPReader, profileName);
+	}
+
+	/**
+	 * Starts a stream let through the admission queue. A viewer may have started it meanwhile, so it is started under the same
+	 * lock as a start on request, and only if it is not running.
+	 */
+	private void startQueued(IScope scope, String streamName, boolean useRTMPReader, String profileName) {
+		Registration registration = registeredStreams.get(streamName);
+		synchronized (registration != null ? registration : segmentMap) {
+			if (!isAvailable(streamName)) {
+				start(scope, streamName, useRTMPReader, profileName);
+			} else {
+				log.debug("Queued stream {} is already running", streamName);
+			}
+		}
+	}
+
+	private void start(IScope scope, String streamName, boolean useRTMPReader, String profileName) {
+		start(streamName, useRTMPReader, profileName);
 		// add the mux associated with the given scope
 		AudioMux mux = muxService.getAudioMux(scope.getName());
 		if (mux != null) {
@@ -100,22 +297,63 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 	 * @param useRTMPReader
 	 */
 	public SegmentFacade start(String name, boolean useRTMPReader) {
-		log.debug("start - name: {} rtmp reader: {}", name, useRTMPReader);
+		return start(name, useRTMPReader, defaultEncoderProfile);
+	}
+
+	/**
+	 * Creates and starts a facade using the named encoder profile.
+	 * 
+	 * @param name
+	 * @param useRTMPReader
+	 * @param profileName
+	 */
+	public SegmentFacade start(String name, boolean useRTMPReader, String profileName) {
+		return start(name, useRTMPReader, profileName, false);
+	}
+
+	/**
+	 * Creates and starts a facade for a stream without video, such as a scope's audio mux, written in the audio-only segment
+	 * format.
+	 * 
+	 * @param name
+	 */
+	public SegmentFacade startAudioOnly(String name) {
+		return start(name, false, defaultEncoderProfile, true);
+	}
+
+	private SegmentFacade start(String name, boolean useRTMPReader, String profileName, boolean audioOnly) {
+		log.debug("start - name: {} rtmp reader: {} profile: {} audio only: {}", new Object[] { name, useRTMPReader, profileName, audioOnly });
 		// lookup the associated segment
 		SegmentFacade facade = segmentMap.get(name);
 		if (facade == null) {
 			log.debug("Creating segment facade for {}", name);
 			// create a facade
 			facade = new SegmentFacade(this, name);	
-			// add to the map
-			addFacade(name, facade);
+			// add to the map, unless another thread got there first
+			SegmentFacade existing = addFacade(name, facade);
+			if (existing != null) {
+				log.debug("Segment facade for {} created by another thread", name);
+				return existing;
+			}
 			// configure
 			facade.setSegmentTimeLimit(segmentTimeLimit);
 			facade.setSegmentDirectory(segmentDirectory);
 			facade.setMaxSegmentsPerFacade(maxSegmentsPerFacade);
 			facade.setMemoryMapped(memoryMapped);
+			facade.setSegmentFormat(audioOnly ? audioOnlySegmentFormat : segmentFormat);
 			facade.setOutputAudioCodec(outputAudioCodec);
-			facade.setOutputVideoCodec(outputVideoCodec);
+			facade.setOutputVideoCodec(audioOnly ? null : outputVideoCodec);
+			facade.setNativePoolSize(nativePoolSize);
+			facade.setFlushInterval(flushInterval);
+			facade.setQueuedMux("queued".equals(muxMode), muxQueueSize);
+			facade.setPesPayloadSize(pesPayloadSize);
+			facade.setPesMaxDelay(pesMaxDelay);
+			facade.setPcrInterval(pcrInterval);
+			facade.setEncoderProfile(getEncoderProfile(profileName));
+			facade.setMaxQueueBytes(maxQueueBytes);
+			facade.setOverloadPolicy(overloadPolicy);
+			facade.setDedicatedWorker("dedicated".equals(workerMode));
+			facade.setIdleTimeout(idleTimeout);
 			// initialization
 			if (useRTMPReader) {
 				// initialize RTMP reader
@@ -133,7 +371,70 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 		if (log.isDebugEnabled()) {
 			Global.setFFmpegLoggingLevel(99);
 		}
-		log.debug("Executor - prefers short tasks: {} daemon: {}", segmentExecutor.prefersShortLivedTasks(), segmentExecutor.isDaemon());
+		// the executor keeps its own pool size unless one is asked for here
+		ScheduledThreadPoolExecutor pool = segmentExecutor.getScheduledThreadPoolExecutor();
+		if (encodePoolSize > 0) {
+			log.info("Segment executor pool size {} replaced by encodePoolSize {}", pool.getCorePoolSize(), encodePoolSize);
+			segmentExecutor.setPoolSize(encodePoolSize);
+		}
+		log.debug("Executor - prefers short tasks: {} daemon: {} threads: {}", new Object[] { segmentExecutor.prefersShortLivedTasks(), segmentExecutor.isDaemon(), pool.getCorePoolSize() });
+		// readers block for the life of their stream, so each gets a thread and none can starve the encoders
+		if (ingestExecutor == null) {
+			ingestExecutor = new ThreadPoolTaskExecutor();
+			ingestExecutor.setCorePoolSize(0);
+			ingestExecutor.setMaxPoolSize(Integer.MAX_VALUE);
+			ingestExecutor.setQueueCapacity(0);
+			ingestExecutor.setDaemon(true);
+			ingestExecutor.setThreadNamePrefix("IngestExecutor-");
+			ingestExecutor.initialize();
+			ownIngestExecutor = true;
+		}
+		// fail early if the default profile is missing
+		getEncoderProfile(defaultEncoderProfile);
+		// start load control
+		if (loadControlInterval > 0) {
+			LoadController loadController = new LoadController(this);
+			loadController.setMaxQueueDelay(maxQueueDelay);
+			submitJob(loadController, loadControlInterval);
+		}
+		// start admission control
+		if (cpuBudget > 0d) {
+			admissionController = new AdmissionController(this, cpuBudget);
+			admissionController.setPolicy(admissionPolicy);
+			admissionController.setDegradedProfile(degradedEncoderProfile);
+			submitJob(admissionController, 1000L);
+		}
+		// start idle facade eviction
+		if (janitorInterval > 0) {
+			submitJob(new FacadeJanitor(this), janitorInterval);
+		}
+	}
+
+	/**
+	 * Returns the named encoder profile, parsing it on first use. An unknown profile falls back to the default one.
+	 * 
+	 * @param profileName
+	 * @return encoder profile
+	 */
+	public EncoderProfile getEncoderProfile(String profileName) {
+		EncoderProfile profile = encoderProfiles.get(profileName);
+		if (profile == null) {
+			try {
+				profile = EncoderProfile.load(profileName);
+				log.debug("Loaded {}", profile);
+				EncoderProfile existing = encoderProfiles.putIfAbsent(profileName, profile);
+				if (existing != null) {
+					profile = existing;
+				}
+			} catch (IOException e) {
+				if (profileName.equals(defaultEncoderProfile)) {
+					throw new IllegalStateException("Default encoder profile could not be loaded: " + profileName, e);
+				}
+				log.warn("Encoder profile {} could not be loaded, using {}", profileName, defaultEncoderProfile, e);
+				profile = getEncoderProfile(defaultEncoderProfile);
+			}
+		}
+		return profile;
 	}
 
 	public void destroy() throws Exception {
@@ -143,11 +444,26 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 			Segment segment = value.getSegment();
 			if (segment != null) {
 				segment.setLast(true);
-				segment.close();
 			}
-			segmentMap.remove(entry.getKey(), value);
+			if (segmentMap.remove(entry.getKey(), value)) {
+				value.dispose();
+			}
 		}
 		segmentMap.clear();
+		if (ownIngestExecutor) {
+			ingestExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Runs a task which blocks for the life of a stream, such as a reader or a dedicated queue worker, on the ingest executor.
+	 * 
+	 * @param task
+	 * @return future
+	 */
+	public Future<?> submitIngestJob(Runnable task) {
+		log.debug("submitIngestJob: {}", task.getClass().getName());
+		return ingestExecutor.submit(task);
 	}
 
 	public Future<?> submitJob(Runnable task) {
@@ -174,6 +490,55 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 		this.segmentExecutor = segmentExecutor;
 	}
 
+	/**
+	 * @return executor for the tasks which run for the life of a stream
+	 */
+	public ThreadPoolTaskExecutor getIngestExecutor() {
+		return ingestExecutor;
+	}
+
+	/**
+	 * @param ingestExecutor executor for the readers; it must not queue tasks, since each one runs for the life of a stream
+	 */
+	public void setIngestExecutor(ThreadPoolTaskExecutor ingestExecutor) {
+		this.ingestExecutor = ingestExecutor;
+	}
+
+	public int getEncodePoolSize() {
+		return encodePoolSize;
+	}
+
+	/**
+	 * @param encodePoolSize threads of the segment executor, 0 to keep the pool size set on the executor
+	 */
+	public void setEncodePoolSize(int encodePoolSize) {
+		this.encodePoolSize = encodePoolSize;
+	}
+
+	/**
+	 * @return readers currently running
+	 */
+	public int getIngestActiveCount() {
+		return ingestExecutor.getActiveCount();
+	}
+
+	/**
+	 * @return threads of the segment executor which are busy
+	 */
+	public int getEncodeActiveCount() {
+		return segmentExecutor.getActiveCount();
+	}
+
+	/**
+	 * Returns the share of the segment executor's threads which are busy; at 1 work waits for a thread to become free.
+	 * 
+	 * @return busy threads over pool size
+	 */
+	public double getEncodeSaturation() {
+		int poolSize = segmentExecutor.getPoolSize();
+		return poolSize > 0 ? (double) segmentExecutor.getActiveCount() / poolSize : 0d;
+	}
+
 	/**
 	 * @param outputAudioCodec the outputAudioCodec to set
 	 */
@@ -212,6 +577,28 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 		this.memoryMapped = memoryMapped;
 	}
 
+	public String getSegmentFormat() {
+		return segmentFormat.name();
+	}
+
+	/**
+	 * @param segmentFormat one of MPEGTS, FMP4 or AAC, the last dropping any video
+	 */
+	public void setSegmentFormat(String segmentFormat) {
+		this.segmentFormat = SegmentFormat.valueOf(segmentFormat.toUpperCase());
+	}
+
+	public String getAudioOnlySegmentFormat() {
+		return audioOnlySegmentFormat.name();
+	}
+
+	/**
+	 * @param audioOnlySegmentFormat one of AAC, MPEGTS or FMP4
+	 */
+	public void setAudioOnlySegmentFormat(String audioOnlySegmentFormat) {
+		this.audioOnlySegmentFormat = SegmentFormat.valueOf(audioOnlySegmentFormat.toUpperCase());
+	}
+
 	public int getMaxSegmentsPerFacade() {
 		return maxSegmentsPerFacade;
 	}
@@ -220,32 +607,409 @@ public class SegmenterService implements InitializingBean, DisposableBean {
 		this.maxSegmentsPerFacade = maxSegmentsPerFacade;
 	}
 
+	public int getNativePoolSize() {
+		return nativePoolSize;
+	}
+
+	public void setNativePoolSize(int nativePoolSize) {
+		this.nativePoolSize = nativePoolSize;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public String getMuxMode() {
+		return muxMode;
+	}
+
+	/**
+	 * @param muxMode inline to mux and store on the queue worker, or queued to run them on a task of the ingest executor
+	 *            fed through a bounded queue, so encoding and muxing overlap
+	 */
+	public void setMuxMode(String muxMode) {
+		muxMode = muxMode.toLowerCase();
+		if (!"inline".equals(muxMode) && !"queued".equals(muxMode)) {
+			throw new IllegalArgumentException("Unknown mux mode: " + muxMode);
+		}
+		this.muxMode = muxMode;
+	}
+
+	public int getMuxQueueSize() {
+		return muxQueueSize;
+	}
+
+	/**
+	 * @param muxQueueSize packets queued for a queued mux stage before the encoder waits for it
+	 */
+	public void setMuxQueueSize(int muxQueueSize) {
+		if (muxQueueSize <= 0) {
+			throw new IllegalArgumentException("Invalid mux queue size " + muxQueueSize);
+		}
+		this.muxQueueSize = muxQueueSize;
+	}
+
+	public int getSinkBufferSize() {
+		return sinkBufferSize;
+	}
+
+	public void setSinkBufferSize(int sinkBufferSize) {
+		this.sinkBufferSize = sinkBufferSize;
+	}
+
+	public int getPesPayloadSize() {
+		return pesPayloadSize;
+	}
+
+	public void setPesPayloadSize(int pesPayloadSize) {
+		this.pesPayloadSize = pesPayloadSize;
+	}
+
+	public long getPesMaxDelay() {
+		return pesMaxDelay;
+	}
+
+	public void setPesMaxDelay(long pesMaxDelay) {
+		this.pesMaxDelay = pesMaxDelay;
+	}
+
+	public long getPcrInterval() {
+		return pcrInterval;
+	}
+
+	public void setPcrInterval(long pcrInterval) {
+		this.pcrInterval = pcrInterval;
+	}
+
+	public String getDefaultEncoderProfile() {
+		return defaultEncoderProfile;
+	}
+
+	public void setDefaultEncoderProfile(String defaultEncoderProfile) {
+		this.defaultEncoderProfile = defaultEncoderProfile;
+	}
+
+	public long getLoadControlInterval() {
+		return loadControlInterval;
+	}
+
+	public void setLoadControlInterval(long loadControlInterval) {
+		this.loadControlInterval = loadControlInterval;
+	}
+
+	public long getMaxQueueDelay() {
+		return maxQueueDelay;
+	}
+
+	public void setMaxQueueDelay(long maxQueueDelay) {
+		this.maxQueueDelay = maxQueueDelay;
+	}
+
+	public long getMaxQueueBytes() {
+		return maxQueueBytes;
+	}
+
+	public void setMaxQueueBytes(long maxQueueBytes) {
+		this.maxQueueBytes = maxQueueBytes;
+	}
+
+	public String getOverloadPolicy() {
+		return overloadPolicy.name();
+	}
+
+	/**
+	 * @param overloadPolicy one of DROP_SMART, DROP_NEWEST or BLOCK
+	 */
+	public void setOverloadPolicy(String overloadPolicy) {
+		this.overloadPolicy = FrameQueue.OverloadPolicy.valueOf(overloadPolicy.toUpperCase());
+	}
+
+	public double getCpuBudget() {
+		return cpuBudget;
+	}
+
+	/**
+	 * @param cpuBudget cores available to transcoding, 0 disables admission control
+	 */
+	public void setCpuBudget(double cpuBudget) {
+		this.cpuBudget = cpuBudget;
+	}
+
+	public String getAdmissionPolicy() {
+		return admissionPolicy.name();
+	}
+
+	/**
+	 * @param admissionPolicy one of QUEUE, REJECT or DEGRADE
+	 */
+	public void setAdmissionPolicy(String admissionPolicy) {
+		this.admissionPolicy = AdmissionController.Policy.valueOf(admissionPolicy.toUpperCase());
+	}
+
+	public String getDegradedEncoderProfile() {
+		return degradedEncoderProfile;
+	}
+
+	/**
+	 * @param degradedEncoderProfile profile used for streams admitted under the degrade policy
+	 */
+	public void setDegradedEncoderProfile(String degradedEncoderProfile) {
+		this.degradedEncoderProfile = degradedEncoderProfile;
+	}
+
+	public boolean isStartStreamOnRequest() {
+		return startStreamOnRequest;
+	}
+
+	/**
+	 * @param startStreamOnRequest true to transcode a published stream only once a viewer requests its playlist
+	 */
+	public void setStartStreamOnRequest(boolean startStreamOnRequest) {
+		this.startStreamOnRequest = startStreamOnRequest;
+	}
+
+	public long getViewerIdleTimeout() {
+		return viewerIdleTimeout;
+	}
+
+	/**
+	 * @param viewerIdleTimeout time without viewers after which a stream started on request is stopped, in milliseconds
+	 */
+	public void setViewerIdleTimeout(long viewerIdleTimeout) {
+		this.viewerIdleTimeout = viewerIdleTimeout;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout time without ingest or viewers after which a stream is torn down, in milliseconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public long getJanitorInterval() {
+		return janitorInterval;
+	}
+
+	/**
+	 * @param janitorInterval period between checks for idle streams in milliseconds, 0 disables eviction
+	 */
+	public void setJanitorInterval(long janitorInterval) {
+		this.janitorInterval = janitorInterval;
+	}
+
+	public String getWorkerMode() {
+		return workerMode;
+	}
+
+	/**
+	 * @param workerMode scheduled or dedicated
+	 */
+	public void setWorkerMode(String workerMode) {
+		workerMode = workerMode.toLowerCase();
+		if (!"scheduled".equals(workerMode) && !"dedicated".equals(workerMode)) {
+			throw new IllegalArgumentException("Unknown worker mode: " + workerMode);
+		}
+		this.workerMode = workerMode;
+	}
+
+	/**
+	 * @param streamName stream or track name
+	 * @return completed segments of the track
+	 */
 	public int getSegmentCount(String streamName) {
-		SegmentFacade facade = segmentMap.get(streamName);
-		return facade.getSegmentCount();
+		SegmentTrack track = getTrack(streamName);
+		return track != null ? track.getSegmentCount() : 0;
 	}
 
 	public Segment getSegment(String streamName) {
 		SegmentFacade facade = segmentMap.get(streamName);
-		return facade.getSegment();
+		return facade != null ? facade.getSegment() : null;
 	}
 
+	/**
+	 * Returns the segment with the given index for a viewer, which counts as viewer activity on the stream.
+	 * 
+	 * @param streamName stream or track name
+	 * @param index
+	 * @return segment or null if the stream or segment is gone
+	 */
 	public Segment getSegment(String streamName, int index) {
-		SegmentFacade facade = segmentMap.get(streamName);
-		return facade.getSegment(index);
+		SegmentTrack track = getTrack(streamName);
+		if (track != null) {
+			track.getFacade().touchViewer();
+			return track.getSegment(index);
+		}
+		return null;
 	}
 
+	/**
+	 * Returns the completed segments for a viewer's playlist, which counts as viewer activity on the stream.
+	 * 
+	 * @param streamName stream or track name
+	 * @return segments or null if the stream is gone
+	 */
 	public Segment[] getSegments(String streamName) {
-		SegmentFacade facade = segmentMap.get(streamName);
-		return facade.getSegments();
+		SegmentTrack track = getTrack(streamName);
+		if (track != null) {
+			track.getFacade().touchViewer();
+			return track.getSegments();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the track a name refers to: that of the stream for a stream name, or the audio track of a stream written
+	 * apart from its video for the stream name followed by {@link SegmentTrack#AUDIO_SUFFIX}.
+	 * 
+	 * @param name stream or track name
+	 * @return track or null if there is none by that name
+	 */
+	public SegmentTrack getTrack(String name) {
+		SegmentFacade facade = segmentMap.get(name);
+		if (facade != null) {
+			return facade.getTrack();
+		}
+		if (name.endsWith(SegmentTrack.AUDIO_SUFFIX)) {
+			facade = segmentMap.get(name.substring(0, name.length() - SegmentTrack.AUDIO_SUFFIX.length()));
+			if (facade != null) {
+				return facade.getAudioTrack();
+			}
+		}
+		return null;
 	}
 	
+	/**
+	 * @param streamName
+	 * @return facade of the stream or null if it is not available
+	 */
+	public SegmentFacade getFacade(String streamName) {
+		return segmentMap.get(streamName);
+	}
+
+	/**
+	 * Adds a sink fed with the muxed bytes of a running stream next to its segments, such as a recorder, a re-publish or a
+	 * probe. The sink has its own buffer of {@link #getSinkBufferSize()} bytes and is written from a task on the ingest
+	 * executor, so it cannot stall the encoder. It starts at the next segment or key frame boundary of the stream, and skips to
+	 * the following one after its buffer overflows.
+	 * 
+	 * @param streamName
+	 * @param sink
+	 * @return the branch feeding the sink with its counters, or null if the stream is not running
+	 */
+	public SegmentTee.Branch addSink(String streamName, ISegmentSink sink) {
+		return isAvailable(streamName) ? MpegTsHandlerFactory.getFactory().addSink(streamName, sink, sinkBufferSize, ingestExecutor) : null;
+	}
+
+	/**
+	 * Removes a sink added to a stream; it is ended once its buffer is written.
+	 * 
+	 * @param streamName
+	 * @param sink
+	 * @return true if the sink was removed
+	 */
+	public boolean removeSink(String streamName, ISegmentSink sink) {
+		return MpegTsHandlerFactory.getFactory().removeSink(streamName, sink);
+	}
+
+	/**
+	 * Records a running stream to a file, without encoding it again, until the stream ends or the sink is removed. The
+	 * recording starts at the next key frame boundary, so it decodes from its first byte; a stream whose segments need an init
+	 * segment is recorded after it. Only the stream's own track is recorded, so a stream writing its audio apart is recorded
+	 * without it.
+	 * 
+	 * @param streamName
+	 * @param fileName
+	 * @return the recording sink, or null if the stream is not running
+	 */
+	public FileRecordingSink record(String streamName, String fileName) {
+		SegmentFacade facade = segmentMap.get(streamName);
+		if (facade != null) {
+			FileRecordingSink sink = new FileRecordingSink(fileName, facade.getSegmentFormat().hasInitSegment() ? facade.getInitSegment() : null);
+			if (addSink(streamName, sink) != null) {
+				return sink;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the facades currently available.
+	 * 
+	 * @return facades
+	 */
+	public Collection<SegmentFacade> getFacades() {
+		return segmentMap.values();
+	}
+
 	public boolean isAvailable(String streamName) {
 		return segmentMap.containsKey(streamName);
 	}
 
-	protected void addFacade(String streamName, SegmentFacade facade) {
-		segmentMap.put(streamName, facade);
+	/**
+	 * Adds a facade unless the stream already has one.
+	 * 
+	 * @param streamName
+	 * @param facade
+	 * @return facade already registered for the stream, null if the given one was added
+	 */
+	protected SegmentFacade addFacade(String streamName, SegmentFacade facade) {
+		return segmentMap.putIfAbsent(streamName, facade);
 	}	
 
+	/**
+	 * Removes a facade from the map if it is still the one registered for its stream; the caller disposes of it.
+	 * 
+	 * @param facade
+	 * @return true if removed
+	 */
+	protected boolean removeFacade(SegmentFacade facade) {
+		return segmentMap.remove(facade.getStreamName(), facade);
+	}
+
+	/**
+	 * Removes and disposes of a facade. A stream registered to start on request is locked while the facade is removed, so a
+	 * viewer starting it again gets a new facade. The old writer may still be torn down after that, by a worker busy with it,
+	 * but it only unregisters its own output, so the new writer's output and sinks stay registered under the same url.
+	 * 
+	 * @param facade
+	 * @return true if the facade was removed
+	 */
+	protected boolean evict(SegmentFacade facade) {
+		Registration registration = registeredStreams.get(facade.getStreamName());
+		synchronized (registration != null ? registration : facade) {
+			if (removeFacade(facade)) {
+				facade.dispose();
+				if (admissionController != null) {
+					admissionController.release(facade.getStreamName());
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A published stream waiting for its first viewer.
+	 */
+	private static final class Registration {
+
+		final IScope scope;
+
+		final boolean useRTMPReader;
+
+		Registration(IScope scope, boolean useRTMPReader) {
+			this.scope = scope;
+			this.useRTMPReader = useRTMPReader;
+		}
+
+	}
+
 }
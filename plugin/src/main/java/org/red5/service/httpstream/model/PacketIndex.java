@@ -0,0 +1,233 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream.model;
+
+import java.util.Arrays;
+
+/**
+ * Index of the packets of a segment which matter for seeking and splitting, kept in primitive arrays: the byte offset and PTS
+ * of each PES start, with key frames also listed on their own, and the byte offset and value of each PCR. Offsets are those
+ * of the packet's sync byte within the segment. Entries are appended by the writer while readers look them up.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class PacketIndex {
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private static final int[] NO_OFFSETS = new int[0];
+
+	private static final long[] NO_VALUES = new long[0];
+
+	private static final boolean[] NO_FLAGS = new boolean[0];
+
+	private int[] pesOffsets = NO_OFFSETS;
+
+	private long[] pesPts = NO_VALUES;
+
+	private boolean[] pesVideo = NO_FLAGS;
+
+	private int pesCount;
+
+	private int[] keyFrameOffsets = NO_OFFSETS;
+
+	private long[] keyFramePts = NO_VALUES;
+
+	private int keyFrameCount;
+
+	private int[] pcrOffsets = NO_OFFSETS;
+
+	private long[] pcrValues = NO_VALUES;
+
+	private int pcrCount;
+
+	// number of the first key frame of the segment within the stream
+	private int firstKeyFrame;
+
+	/**
+	 * Adds a PES start.
+	 *
+	 * @param offset offset of the packet in the segment
+	 * @param pts in 90kHz units, -1 if the PES has none
+	 * @param video
+	 * @param keyFrame true if the PES starts a key frame
+	 */
+	public synchronized void addPes(int offset, long pts, boolean video, boolean keyFrame) {
+		if (pesCount == pesOffsets.length) {
+			int capacity = grow(pesCount);
+			pesOffsets = Arrays.copyOf(pesOffsets, capacity);
+			pesPts = Arrays.copyOf(pesPts, capacity);
+			pesVideo = Arrays.copyOf(pesVideo, capacity);
+		}
+		pesOffsets[pesCount] = offset;
+		pesPts[pesCount] = pts;
+		pesVideo[pesCount] = video;
+		pesCount++;
+		if (keyFrame) {
+			if (keyFrameCount == keyFrameOffsets.length) {
+				int capacity = grow(keyFrameCount);
+				keyFrameOffsets = Arrays.copyOf(keyFrameOffsets, capacity);
+				keyFramePts = Arrays.copyOf(keyFramePts, capacity);
+			}
+			keyFrameOffsets[keyFrameCount] = offset;
+			keyFramePts[keyFrameCount] = pts;
+			keyFrameCount++;
+		}
+	}
+
+	/**
+	 * Adds a PCR.
+	 *
+	 * @param offset offset of the packet in the segment
+	 * @param pcr in 27MHz units
+	 */
+	public synchronized void addPcr(int offset, long pcr) {
+		if (pcrCount == pcrOffsets.length) {
+			int capacity = grow(pcrCount);
+			pcrOffsets = Arrays.copyOf(pcrOffsets, capacity);
+			pcrValues = Arrays.copyOf(pcrValues, capacity);
+		}
+		pcrOffsets[pcrCount] = offset;
+		pcrValues[pcrCount] = pcr;
+		pcrCount++;
+	}
+
+	/**
+	 * Adds the entries of another index with their offsets moved by the given amount; entries which would fall before the
+	 * start of the segment are skipped.
+	 *
+	 * @param other
+	 * @param base amount added to each offset
+	 */
+	public synchronized void addAll(PacketIndex other, int base) {
+		synchronized (other) {
+			for (int i = 0; i < other.pesCount; i++) {
+				int offset = other.pesOffsets[i] + base;
+				if (offset >= 0) {
+					boolean keyFrame = Arrays.binarySearch(other.keyFrameOffsets, 0, other.keyFrameCount, other.pesOffsets[i]) >= 0;
+					addPes(offset, other.pesPts[i], other.pesVideo[i], keyFrame);
+				}
+			}
+			for (int i = 0; i < other.pcrCount; i++) {
+				int offset = other.pcrOffsets[i] + base;
+				if (offset >= 0) {
+					addPcr(offset, other.pcrValues[i]);
+				}
+			}
+		}
+	}
+
+	private static int grow(int count) {
+		return count == 0 ? INITIAL_CAPACITY : count * 2;
+	}
+
+	public synchronized int getPesCount() {
+		return pesCount;
+	}
+
+	public synchronized int getPesOffset(int entry) {
+		return pesOffsets[entry];
+	}
+
+	public synchronized long getPesPts(int entry) {
+		return pesPts[entry];
+	}
+
+	public synchronized boolean isPesVideo(int entry) {
+		return pesVideo[entry];
+	}
+
+	public synchronized int getKeyFrameCount() {
+		return keyFrameCount;
+	}
+
+	public synchronized int getKeyFrameOffset(int entry) {
+		return keyFrameOffsets[entry];
+	}
+
+	public synchronized long getKeyFramePts(int entry) {
+		return keyFramePts[entry];
+	}
+
+	/**
+	 * @return number within the stream of the segment's first key frame, which is the media sequence of an I-frame playlist
+	 */
+	public synchronized int getFirstKeyFrame() {
+		return firstKeyFrame;
+	}
+
+	public synchronized void setFirstKeyFrame(int firstKeyFrame) {
+		this.firstKeyFrame = firstKeyFrame;
+	}
+
+	public synchronized int getPcrCount() {
+		return pcrCount;
+	}
+
+	public synchronized int getPcrOffset(int entry) {
+		return pcrOffsets[entry];
+	}
+
+	public synchronized long getPcr(int entry) {
+		return pcrValues[entry];
+	}
+
+	/**
+	 * Finds the key frame to start from to show the given time.
+	 *
+	 * @param pts in 90kHz units
+	 * @return entry of the last key frame at or before the time, -1 if there is none
+	 */
+	public synchronized int findKeyFrame(long pts) {
+		int low = 0, high = keyFrameCount - 1, found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (keyFramePts[mid] <= pts) {
+				found = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Removes all entries, keeping the arrays for reuse.
+	 */
+	public synchronized void clear() {
+		pesCount = keyFrameCount = pcrCount = 0;
+	}
+
+	/**
+	 * Removes all entries and releases the arrays.
+	 */
+	public synchronized void free() {
+		clear();
+		pesOffsets = keyFrameOffsets = pcrOffsets = NO_OFFSETS;
+		pesPts = keyFramePts = pcrValues = NO_VALUES;
+		pesVideo = NO_FLAGS;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PacketIndex [pes=" + pesCount + ", keyFrames=" + keyFrameCount + ", pcrs=" + pcrCount + "]";
+	}
+
+}
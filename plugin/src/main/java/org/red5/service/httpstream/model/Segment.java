@@ -32,7 +32,7 @@ import org.red5.logging.Red5LoggerFactory;
 import org.slf4j.Logger;
 
 /**
- * Represents an MPEG-TS file segment.
+ * Represents a file segment, MPEG-TS unless another format is given.
  * 
  * @author Paul Gregoire (mondain@gmail.com)
  */
@@ -51,12 +51,18 @@ public class Segment implements Comparable<Segment> {
 	// segment index number
 	private int index;
 
+	// container of the data
+	private final SegmentFormat format;
+
 	// creation time
 	private long created = System.currentTimeMillis();
 	
 	// segment duration in seconds
 	private double duration;
 
+	// decode time of the first sample in seconds, -1 if not known
+	private volatile double startTime = -1d;
+
 	// queue for holding data if using memory mapped i/o
 	private volatile IoBuffer buffer;
 
@@ -73,11 +79,20 @@ public class Segment implements Comparable<Segment> {
 	private volatile boolean last;
 
 	// whether or not the segment is closed
-	private boolean closed;
+	private volatile boolean closed;
 	
 	// number of chunks written to this segment
 	private int chunksWritten = 0;
 
+	// number of bytes written to this segment
+	private volatile int size;
+
+	// elementary stream bytes written, the rest of the size is container overhead
+	private volatile int payloadSize;
+
+	// where the key frames, pes starts and pcrs are in this segment
+	private final PacketIndex packetIndex = new PacketIndex();
+
 	// whether or not the PAT has been written
 	private boolean patWritten;
 	
@@ -91,7 +106,7 @@ public class Segment implements Comparable<Segment> {
 	private ThreadLocal<FileChannel> readChannelHolder = new ThreadLocal<FileChannel>() {
 		@Override
 		protected FileChannel initialValue() {
-			String fileName = String.format("%s%s_%s.ts", segmentDirectory, name, index);
+			String fileName = getFileName();
 			log.debug("initialValue - read channel: {}", fileName);
 			try {
 				RandomAccessFile fileForReading = new RandomAccessFile(fileName, "r");
@@ -114,9 +129,14 @@ public class Segment implements Comparable<Segment> {
 	};
 
 	public Segment(String segmentDirectory, String name, int index, boolean memoryMapped) {
+		this(segmentDirectory, name, index, memoryMapped, SegmentFormat.MPEGTS);
+	}
+
+	public Segment(String segmentDirectory, String name, int index, boolean memoryMapped, SegmentFormat format) {
 		this.segmentDirectory = segmentDirectory;
 		this.name = name;
 		this.index = index;
+		this.format = format;
 		if (memoryMapped) {
 			log.debug("Using memory mapped files");
 			//TODO need a good way to guess the initial amount of bytes needed
@@ -127,7 +147,7 @@ public class Segment implements Comparable<Segment> {
 		} else {
 			log.debug("Using disk based files");
 			try {
-				file = new RandomAccessFile(String.format("%s%s_%s.ts", segmentDirectory, name, index), "rwd");
+				file = new RandomAccessFile(getFileName(), "rwd");
 				// get the channel
 				channel = file.getChannel();
 			} catch (FileNotFoundException e) {
@@ -148,6 +168,17 @@ public class Segment implements Comparable<Segment> {
 		return index;
 	}
 
+	public SegmentFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return path of the segment file, whether or not it is used
+	 */
+	public String getFileName() {
+		return String.format("%s%s_%s.%s", segmentDirectory, name, index, format.getExtension());
+	}
+
 	public long getCreated() {
 		return created;
 	}
@@ -156,6 +187,10 @@ public class Segment implements Comparable<Segment> {
 		return channel == null;
 	}
 
+	public boolean isClosed() {
+		return closed;
+	}
+
 	public boolean isLast() {
 		return last;
 	}
@@ -206,6 +241,44 @@ public class Segment implements Comparable<Segment> {
 		this.spWritten = spWritten;
 	}
 
+	/**
+	 * @return number of bytes written
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of elementary stream bytes written, as counted by the writer of transport stream segments
+	 */
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	/**
+	 * @return number of bytes written which are not elementary stream data: packet headers, adaptation fields, PES headers and
+	 *         tables
+	 */
+	public int getOverheadSize() {
+		return size - payloadSize;
+	}
+
+	/**
+	 * Counts elementary stream bytes written, called by the single writer of the segment.
+	 * 
+	 * @param length
+	 */
+	public void addPayload(int length) {
+		payloadSize += length;
+	}
+
+	/**
+	 * @return index of the key frames, pes starts and pcrs written
+	 */
+	public PacketIndex getPacketIndex() {
+		return packetIndex;
+	}
+
 	public void setDuration(double duration) {
 		this.duration = duration;
 	}
@@ -213,6 +286,17 @@ public class Segment implements Comparable<Segment> {
 	public double getDuration() {
 		return duration;
 	}	
+
+	/**
+	 * @return decode time of the first sample in seconds on the stream's media timeline, -1 if not known
+	 */
+	public double getStartTime() {
+		return startTime;
+	}
+
+	public void setStartTime(double startTime) {
+		this.startTime = startTime;
+	}
 	
 	public ByteBuffer read() {
 		ByteBuffer buf = null;
@@ -305,6 +389,46 @@ public class Segment implements Comparable<Segment> {
 		return buf;
 	}
 
+	/**
+	 * Reads written bytes from the given position, independently of the sequential reads. Used to serve byte ranges.
+	 *
+	 * @param position offset in the segment
+	 * @param dst
+	 * @param offset
+	 * @param length
+	 * @return number of bytes read, 0 at or past the end of the written data, -1 on error
+	 */
+	public int read(int position, byte[] dst, int offset, int length) {
+		length = Math.min(length, size - position);
+		if (length <= 0) {
+			return 0;
+		}
+		if (buffer != null) {
+			lock.lock();
+			try {
+				IoBuffer slice = buffer.getSlice(position, length);
+				slice.get(dst, offset, length);
+				slice.free();
+			} finally {
+				lock.unlock();
+			}
+			return length;
+		}
+		FileChannel readChannel = readChannelHolder.get();
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(dst, offset, length);
+			while (buf.hasRemaining()) {
+				if (readChannel.read(buf, position + buf.position() - offset) < 0) {
+					break;
+				}
+			}
+			return buf.position() - offset;
+		} catch (IOException e) {
+			log.warn("Exception reading at {}", position, e);
+		}
+		return -1;
+	}
+
 	public boolean hasMoreData() {
 		boolean hasMore = false;
 		if (buffer != null) {
@@ -345,17 +469,18 @@ public class Segment implements Comparable<Segment> {
 			//if memory mapped, add to the buffer
 			if (buffer != null) {
 				log.trace("Current buffer size before write: {}", buffer.capacity());
-				if (lock.tryLock()) {
-					try {
-						buffer.put(data);
-						chunksWritten++;
-						written = data.limit();
-					} catch (BufferOverflowException bofe) {
-						//not sure how this happens when its set for auto-expand, but it is
-						log.warn("Error writing to the buffer", bofe);
-					} finally {
-						lock.unlock();
-					}
+				// wait for a range read rather than dropping the data
+				lock.lock();
+				try {
+					buffer.put(data);
+					chunksWritten++;
+					written = data.limit();
+					size += written;
+				} catch (BufferOverflowException bofe) {
+					//not sure how this happens when its set for auto-expand, but it is
+					log.warn("Error writing to the buffer", bofe);
+				} finally {
+					lock.unlock();
 				}
 			} else {
 				if (data != null) {
@@ -364,6 +489,7 @@ public class Segment implements Comparable<Segment> {
     					written = channel.write(data);
     					channel.force(true);
     					chunksWritten++;
+    					size += written;
     				} catch (IOException e) {
     					log.warn("Exception writing channel", e);
     				}
@@ -375,6 +501,43 @@ public class Segment implements Comparable<Segment> {
 		return written;
 	}
 
+	/**
+	 * Appends bytes straight from an array, without wrapping them.
+	 *
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 * @return number of bytes written
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		int written = 0;
+		if (!closed) {
+			if (buffer != null) {
+				lock.lock();
+				try {
+					buffer.put(buf, offset, length);
+					chunksWritten++;
+					written = length;
+					size += written;
+				} catch (BufferOverflowException bofe) {
+					log.warn("Error writing to the buffer", bofe);
+				} finally {
+					lock.unlock();
+				}
+			} else {
+				try {
+					file.write(buf, offset, length);
+					chunksWritten++;
+					written = length;
+					size += written;
+				} catch (IOException e) {
+					log.warn("Exception writing file", e);
+				}
+			}
+		}
+		return written;
+	}
+
 	public boolean close() {
 		log.debug("Close - name: {} index: {}", name, index);
 		closed = true;
@@ -440,11 +603,12 @@ public class Segment implements Comparable<Segment> {
 	 * want it to be available.
 	 */
 	public void dispose() {
+		packetIndex.free();
 		if (buffer != null) {
 			buffer.free();
 		} else {
 			//delete the associated file
-			File tsFile = new File(String.format("%s%s_%s.ts", segmentDirectory, name, index));
+			File tsFile = new File(getFileName());
 			if (tsFile.exists()) {
 				if (!tsFile.delete()) {
 					tsFile.deleteOnExit();
@@ -0,0 +1,87 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.service.httpstream.model;
+
+/**
+ * Container written into the segments of a stream, with the extension and content type they are served with.
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public enum SegmentFormat {
+
+	// transport stream segments, each starting with a PAT and PMT
+	MPEGTS("ts", "video/MP2T", "mpegts"),
+	// fragmented mp4 media segments of moof and mdat boxes, decoded with a separate init segment; video and audio are written
+	// to a track each, as CMAF requires
+	FMP4("m4s", "video/mp4", "mp4"),
+	// packed audio of ADTS frames for audio-only streams, each segment starting with an ID3 timestamp
+	AAC("aac", "audio/aac", "adts");
+
+	private final String extension;
+
+	private final String contentType;
+
+	private final String muxer;
+
+	private SegmentFormat(String extension, String contentType, String muxer) {
+		this.extension = extension;
+		this.contentType = contentType;
+		this.muxer = muxer;
+	}
+
+	/**
+	 * @return file and url extension of the segments
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return short name of the ffmpeg output format
+	 */
+	public String getMuxer() {
+		return muxer;
+	}
+
+	/**
+	 * @return true if the segments need the stream's init segment to be decoded
+	 */
+	public boolean hasInitSegment() {
+		return this == FMP4;
+	}
+
+	/**
+	 * @return true if the coders must keep their decoder configuration out of band, for the init segment or the ADTS headers
+	 */
+	public boolean hasGlobalHeader() {
+		return this == FMP4 || this == AAC;
+	}
+
+	/**
+	 * @return true if the format carries no video
+	 */
+	public boolean isAudioOnly() {
+		return this == AAC;
+	}
+
+}
@@ -0,0 +1,251 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.http.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.SegmentTrack;
+import org.red5.service.httpstream.model.Segment;
+import org.red5.stream.util.Mp4BoxParser;
+import org.slf4j.Logger;
+
+/**
+ * Provides a DASH media presentation description "name.mpd" for a stream written as fragmented mp4 segments. The segment
+ * window of each track of the stream is described with a SegmentTemplate and a SegmentTimeline, referencing the same init and
+ * media segments as the HLS playlists, so both protocols are served from one encode and one copy of the segments. A stream
+ * with video and audio writes each to a track of its own, described by an AdaptationSet of its own, as CMAF and the DASH-IF
+ * interoperability points expect. The presentation is dynamic while the stream is live and becomes static once its last
+ * segment is written.
+ * 
+ * HTML status codes used by this servlet:
+ * <pre>
+ *  404 Not Found
+ *  406 Not Acceptable, the stream's segments are not fragmented mp4
+ *  503 Service Unavailable
+ * </pre>
+ * 
+ * @see
+ * {@link http://standards.iso.org/ittf/PubliclyAvailableStandards/c065274_ISO_IEC_23009-1_2014.zip}
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class Manifest extends SegmentWindowServlet {
+
+	private static final long serialVersionUID = 978137414L;
+
+	private static Logger log = Red5LoggerFactory.getLogger(Manifest.class);
+
+	// units per second of the timeline
+	private static final int TIMESCALE = 1000;
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		doPost(request, response);
+	}
+
+	/**
+	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		log.debug("Manifest requested");
+		// get red5 context and segmenter
+		lookupService();
+		// path
+		String servletPath = request.getServletPath();
+		//get the requested stream
+		final String streamName = servletPath.substring(1, servletPath.indexOf(".mpd"));
+		log.debug("Request for stream: {} manifest", streamName);
+		// start a stream waiting for its first viewer
+		boolean started = startOnRequest(streamName);
+		//check for the stream
+		if (service.isAvailable(streamName)) {
+			SegmentFacade facade = service.getFacade(streamName);
+			if (facade == null || !facade.getSegmentFormat().hasInitSegment()) {
+				log.debug("Stream: {} is not written as fragmented mp4", streamName);
+				response.sendError(406, "Segments of " + streamName + " are not fragmented mp4");
+				return;
+			}
+			// wait for the minimum segment count, as the playlist does
+			int count = awaitSegments(streamName, started);
+			// get the completed segments of each track
+			Segment[] segments = service.getSegments(streamName);
+			byte[] init = facade.getInitSegment();
+			boolean ready = segments != null && segments.length > 0 && init != null;
+			SegmentTrack audioTrack = facade.getAudioTrack();
+			Segment[] audioSegments = null;
+			if (ready && audioTrack != null) {
+				audioSegments = service.getSegments(audioTrack.getName());
+				ready = audioSegments != null && audioSegments.length > 0 && audioTrack.getInitSegment() != null;
+			}
+			if (ready) {
+				StringBuilder sb = new StringBuilder();
+				appendManifest(sb, facade, segments, audioSegments);
+				final String mpd = sb.toString();
+				log.debug("Manifest for: {}\n{}", streamName, mpd);
+				response.setContentType("application/dash+xml");
+				PrintWriter writer = response.getWriter();
+				writer.write(mpd);
+				writer.flush();
+			} else {
+				sendNotEnoughSegments(streamName, count, response);
+			}
+		} else {
+			sendUnavailable(streamName, "manifest", response);
+		}
+	}
+
+	/**
+	 * Appends the presentation: a single period with an AdaptationSet for the stream's track and, when the audio is written
+	 * apart, one for the audio track. The presentation times are those of the stream's track: it is static once its last
+	 * segment is written, and the availability start time is set so that its first segment became available when it was
+	 * created.
+	 * 
+	 * @param sb
+	 * @param facade
+	 * @param segments completed segments of the stream's track
+	 * @param audioSegments completed segments of the audio track, null if the audio is not written apart
+	 */
+	private static void appendManifest(StringBuilder sb, SegmentFacade facade, Segment[] segments, Segment[] audioSegments) {
+		Segment first = segments[0];
+		boolean ended = false;
+		double total = 0d;
+		for (Segment segment : segments) {
+			total += segment.getDuration();
+			if (segment.isLast()) {
+				ended = true;
+				break;
+			}
+		}
+		long firstStart = first.getStartTime() >= 0d ? Math.round(first.getStartTime() * TIMESCALE) : 0L;
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\"");
+		if (ended) {
+			sb.append(String.format(Locale.US, " type=\"static\" mediaPresentationDuration=\"PT%.3fS\"", total));
+		} else {
+			long availabilityStart = first.getCreated() - firstStart;
+			sb.append(String.format(Locale.US, " type=\"dynamic\" availabilityStartTime=\"%s\" publishTime=\"%s\" minimumUpdatePeriod=\"PT%.3fS\" timeShiftBufferDepth=\"PT%.3fS\"",
+					dateFormat.format(new Date(availabilityStart)), dateFormat.format(new Date()), service.getSegmentTimeLimit() / 1000d, total));
+		}
+		sb.append(String.format(Locale.US, " minBufferTime=\"PT%.3fS\">\n", service.getSegmentTimeLimit() / 1000d));
+		sb.append("  <Period id=\"0\" start=\"PT0S\">\n");
+		SegmentTrack track = facade.getTrack();
+		appendAdaptationSet(sb, 0, track.getName(), track.getInitSegment(), segments, facade.hasVideo() ? facade : null);
+		SegmentTrack audioTrack = facade.getAudioTrack();
+		if (audioTrack != null && audioSegments != null) {
+			appendAdaptationSet(sb, 1, audioTrack.getName(), audioTrack.getInitSegment(), audioSegments, null);
+		}
+		sb.append("  </Period>\n");
+		sb.append("</MPD>\n");
+	}
+
+	/**
+	 * Appends the AdaptationSet of a track, with one representation whose segment template addresses the segments by number,
+	 * and a timeline entry for each segment from its start time and duration. Consecutive segments of the same duration share
+	 * an entry.
+	 * 
+	 * @param sb
+	 * @param id of the AdaptationSet
+	 * @param trackName name the init and media segments are requested with
+	 * @param init init segment of the track, which gives its codecs
+	 * @param segments completed segments of the track
+	 * @param video facade whose picture size the track has, null for audio
+	 */
+	private static void appendAdaptationSet(StringBuilder sb, int id, String trackName, byte[] init, Segment[] segments, SegmentFacade video) {
+		Segment first = segments[0];
+		Segment last = segments[segments.length - 1];
+		long bandwidth = 0L;
+		for (Segment segment : segments) {
+			if (segment.getDuration() > 0d) {
+				bandwidth = Math.max(bandwidth, (long) (segment.getSize() * 8L / segment.getDuration()));
+			}
+			if (segment.isLast()) {
+				last = segment;
+				break;
+			}
+		}
+		long firstStart = first.getStartTime() >= 0d ? Math.round(first.getStartTime() * TIMESCALE) : 0L;
+		String contentType = video != null ? "video" : "audio";
+		sb.append(String.format("    <AdaptationSet id=\"%d\" contentType=\"%s\" mimeType=\"%s/mp4\" segmentAlignment=\"true\" startWithSAP=\"1\">\n", id, contentType, contentType));
+		sb.append(String.format("      <SegmentTemplate timescale=\"%d\" initialization=\"%s_%s.mp4\" media=\"%s_$Number$.%s\" startNumber=\"%d\">\n", TIMESCALE, trackName,
+				TransportSegment.INIT_SEGMENT, trackName, first.getFormat().getExtension(), first.getIndex()));
+		sb.append("        <SegmentTimeline>\n");
+		long time = firstStart;
+		long runDuration = -1L;
+		int repeat = 0;
+		long runStart = time;
+		for (Segment segment : segments) {
+			// segments follow on unless a start time says otherwise
+			long start = segment.getStartTime() >= 0d ? Math.round(segment.getStartTime() * TIMESCALE) : time;
+			long duration = Math.round(segment.getDuration() * TIMESCALE);
+			if (start == time && duration == runDuration) {
+				repeat++;
+			} else {
+				appendTimeline(sb, runStart, runDuration, repeat);
+				runStart = start;
+				runDuration = duration;
+				repeat = 0;
+			}
+			time = start + duration;
+			if (segment == last) {
+				break;
+			}
+		}
+		appendTimeline(sb, runStart, runDuration, repeat);
+		sb.append("        </SegmentTimeline>\n");
+		sb.append("      </SegmentTemplate>\n");
+		sb.append(String.format("      <Representation id=\"%s\" bandwidth=\"%d\"", contentType, bandwidth));
+		String codecs = Mp4BoxParser.getCodecs(init);
+		if (codecs.length() > 0) {
+			sb.append(String.format(" codecs=\"%s\"", codecs));
+		}
+		if (video != null) {
+			sb.append(String.format(" width=\"%d\" height=\"%d\"", video.getOutputWidth(), video.getOutputHeight()));
+		}
+		sb.append("/>\n");
+		sb.append("    </AdaptationSet>\n");
+	}
+
+	private static void appendTimeline(StringBuilder sb, long start, long duration, int repeat) {
+		if (duration < 0L) {
+			return;
+		}
+		if (repeat > 0) {
+			sb.append(String.format("          <S t=\"%d\" d=\"%d\" r=\"%d\"/>\n", start, duration, repeat));
+		} else {
+			sb.append(String.format("          <S t=\"%d\" d=\"%d\"/>\n", start, duration));
+		}
+	}
+
+}
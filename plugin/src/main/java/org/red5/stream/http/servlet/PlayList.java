@@ -21,22 +21,27 @@ package org.red5.stream.http.servlet;
 import java.io.IOException;
 import java.io.PrintWriter;
 
-import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.lang3.StringUtils;
 import org.red5.logging.Red5LoggerFactory;
-import org.red5.service.httpstream.SegmenterService;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.SegmentTrack;
+import org.red5.service.httpstream.model.PacketIndex;
 import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
+import org.red5.stream.util.TsPacketParser;
 import org.slf4j.Logger;
-import org.springframework.context.ApplicationContext;
-import org.springframework.web.context.WebApplicationContext;
 
 /**
- * Provides an http stream playlist in m3u8 format.
+ * Provides an http stream playlist in m3u8 format. Besides the media playlist "name.m3u8" of a stream, "name_iframes.m3u8"
+ * returns an I-frame only playlist addressing each key frame as a byte range of its segment, for scrubbing, and
+ * "name_master.m3u8" returns a master playlist advertising both. The media playlist of fragmented mp4 segments is version 7
+ * and maps the stream's init segment; I-frame entries are only indexed in transport stream segments. A stream writing its
+ * audio apart from its video has the media playlist "name_audio.m3u8" for the audio track, which the master playlist lists
+ * as the audio rendition of the variant, so players open the master playlist to get both.
  * 
  * HTML status codes used by this servlet:
  * <pre>
@@ -52,26 +57,22 @@ import org.springframework.web.context.WebApplicationContext;
  * 
  * @author Paul Gregoire (mondain@gmail.com)
  */
-public class PlayList extends HttpServlet {
+public class PlayList extends SegmentWindowServlet {
 
 	private static final long serialVersionUID = 978137413L;
 
 	private static Logger log = Red5LoggerFactory.getLogger(PlayList.class);
 
-	private static SegmenterService service;
+	// suffix of the stream name requesting the I-frame only playlist
+	public static final String IFRAMES_SUFFIX = "_iframes";
 
-	// number of segments that must exist before displaying any in the playlist
-	private int minimumSegmentCount = 2;
+	// suffix of the stream name requesting the master playlist
+	public static final String MASTER_SUFFIX = "_master";
 
-	@Override
-	public void init(ServletConfig config) throws ServletException {
-		super.init(config);
-		String minimumSegmentCountParam = getInitParameter("minimumSegmentCount");
-		if (!StringUtils.isEmpty(minimumSegmentCountParam)) {
-			minimumSegmentCount = Integer.valueOf(minimumSegmentCountParam);
-		}
-		log.debug("Minimum segment count - param: {} value: {}", minimumSegmentCountParam, minimumSegmentCount);
-	}
+	// 90kHz ticks in a second
+	private static final double PTS_CLOCK = 90000d;
+
+	private static final long PTS_MASK = (1L << 33) - 1L;
 
 	/**
 	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
@@ -122,38 +123,36 @@ public class PlayList extends HttpServlet {
 			ffmpeg -d -i 'rtmp://123.123.117.16:1935/live/abcdpc2 live=1' -re -g 250 -keyint_min 25 -bf 0 -me_range 16 -sc_threshold 40 -cmp 256 -coder 0 -trellis 0 -subq 6 -refs 5 -r 25 -c:a libfaac -ab:a 48k -async 1 -ac:a 2 -c:v libx264 -profile baseline -s:v 320x180 -b:v 96k -aspect:v 16:9 -map 0 -ar 22050 -vbsf h264_mp4toannexb -flags -global_header -f segment -segment_time 10 -segment_format mpegts /dev/shm/stream128ios%09d.ts 2>/dev/null
 		 */
 		// get red5 context and segmenter
-		if (service == null) {
-			ApplicationContext appCtx = (ApplicationContext) getServletContext().getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE);
-			service = (SegmenterService) appCtx.getBean("segmenter.service");
-		}
+		lookupService();
 		// path
 		String servletPath = request.getServletPath();
 		//get the requested stream
-		final String streamName = servletPath.substring(1, servletPath.indexOf(".m3u8"));
-		log.debug("Request for stream: {} playlist", streamName);
+		String requested = servletPath.substring(1, servletPath.indexOf(".m3u8"));
+		final boolean iFrames = requested.endsWith(IFRAMES_SUFFIX);
+		final boolean master = requested.endsWith(MASTER_SUFFIX);
+		// the audio track of a stream, unless a stream goes by that name
+		final boolean audio = requested.endsWith(SegmentTrack.AUDIO_SUFFIX) && !service.isAvailable(requested) && !service.isRegistered(requested);
+		if (iFrames) {
+			requested = requested.substring(0, requested.length() - IFRAMES_SUFFIX.length());
+		} else if (master) {
+			requested = requested.substring(0, requested.length() - MASTER_SUFFIX.length());
+		} else if (audio) {
+			requested = requested.substring(0, requested.length() - SegmentTrack.AUDIO_SUFFIX.length());
+		}
+		final String streamName = requested;
+		// the media playlist lists the segments of the stream's track, or of its audio track
+		final String trackName = audio ? streamName + SegmentTrack.AUDIO_SUFFIX : streamName;
+		log.debug("Request for stream: {} playlist iframes: {} master: {} audio: {}", new Object[] { streamName, iFrames, master, audio });
+		// start a stream waiting for its first viewer
+		boolean started = startOnRequest(streamName);
 		//check for the stream
-		if (service.isAvailable(streamName)) {
+		if (service.isAvailable(streamName) && audio && service.getTrack(trackName) == null) {
+			log.debug("Stream: {} does not write its audio apart", streamName);
+			response.sendError(404, "No audio playlist for " + streamName);
+		} else if (service.isAvailable(streamName)) {
 			log.debug("Stream: {} is available", streamName);
-			// get the segment count
-			int count = service.getSegmentCount(streamName);
-			log.debug("Segment count: {}", count);
-			// check for minimum segment count and if we dont match or exceed
-			// wait for (minimum segment count * segment duration) before returning
-			if (count < minimumSegmentCount) {
-				log.debug("Starting wait loop for segment availability");
-				long maxWaitTime = minimumSegmentCount * service.getSegmentTimeLimit();
-				long start = System.currentTimeMillis();
-				do {
-					try {
-						Thread.sleep(500);
-					} catch (InterruptedException e) {
-					}
-					if ((System.currentTimeMillis() - start) >= maxWaitTime) {
-						log.info("Maximum segment wait time exceeded for {}", streamName);
-						break;
-					}
-				} while ((count = service.getSegmentCount(streamName)) < minimumSegmentCount);
-			}
+			// wait for the minimum segment count
+			int count = awaitSegments(trackName, started);
 			/*
 			HTTP streaming spec section 3.2.2
 			Each media file URI in a Playlist has a unique sequence number.  The sequence number of a URI is equal to the sequence number
@@ -161,45 +160,202 @@ public class PlayList extends HttpServlet {
 			in a Playlist file.
 			*/
 			// get the completed segments
-			Segment[] segments = service.getSegments(streamName);
+			Segment[] segments = service.getSegments(trackName);
 			if (segments != null && segments.length > 0) {
 				//write the playlist
 				PrintWriter writer = response.getWriter();
 				// set proper content type
 				response.setContentType("application/x-mpegURL");
-				// for the m3u8 content
-				StringBuilder sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-ALLOW-CACHE:NO\n");
-				// get segment duration in seconds
-				long segmentDuration = service.getSegmentTimeLimit() / 1000;
-				// create the heading
-				sb.append(String.format("#EXT-X-TARGETDURATION:%s\n#EXT-X-MEDIA-SEQUENCE:%s\n", segmentDuration, segments[0].getIndex()));
-				// loop through them
-				for (int s = 0; s < segments.length; s++) {
-					Segment segment = segments[s];
-					// get sequence number
-					int sequenceNumber = segment.getIndex();
-					log.trace("Sequence number: {}", sequenceNumber);
-					sb.append(String.format("#EXTINF:%.1f, segment\n%s_%s.ts\n", segment.getDuration(), streamName, sequenceNumber));
-					// are we on the last segment?
-					if (segment.isLast()) {
-						log.debug("Last segment");
-						sb.append("#EXT-X-ENDLIST\n");
-						break;
+				// segments may run past the time limit to the next key frame
+				long segmentDuration = getTargetDuration(segments, service.getSegmentTimeLimit());
+				StringBuilder sb;
+				if (master) {
+					sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:4\n");
+					appendMaster(sb, streamName, segments);
+				} else if (iFrames) {
+					// byte ranges and the map of an I-frame only playlist need version 5
+					sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:5\n#EXT-X-ALLOW-CACHE:NO\n");
+					sb.append(String.format("#EXT-X-TARGETDURATION:%s\n#EXT-X-MEDIA-SEQUENCE:%s\n#EXT-X-I-FRAMES-ONLY\n", segmentDuration, segments[0].getPacketIndex().getFirstKeyFrame()));
+					appendIFrames(sb, streamName, segments);
+				} else {
+					SegmentFormat format = segments[0].getFormat();
+					if (format.hasInitSegment()) {
+						// fragmented mp4 segments and their init segment need version 7
+						sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:7\n#EXT-X-ALLOW-CACHE:NO\n");
+					} else {
+						// for the m3u8 content
+						sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-ALLOW-CACHE:NO\n");
+					}
+					// create the heading
+					sb.append(String.format("#EXT-X-TARGETDURATION:%s\n#EXT-X-MEDIA-SEQUENCE:%s\n", segmentDuration, segments[0].getIndex()));
+					if (format.hasInitSegment()) {
+						sb.append(String.format("#EXT-X-MAP:URI=\"%s_%s.mp4\"\n", trackName, TransportSegment.INIT_SEGMENT));
+					}
+					// loop through them
+					for (int s = 0; s < segments.length; s++) {
+						Segment segment = segments[s];
+						// get sequence number
+						int sequenceNumber = segment.getIndex();
+						log.trace("Sequence number: {}", sequenceNumber);
+						sb.append(String.format("#EXTINF:%.1f, segment\n%s_%s.%s\n", segment.getDuration(), trackName, sequenceNumber, format.getExtension()));
+						// are we on the last segment?
+						if (segment.isLast()) {
+							log.debug("Last segment");
+							sb.append("#EXT-X-ENDLIST\n");
+							break;
+						}
 					}
 				}
 				final String m3u8 = sb.toString();
-				log.debug("Playlist for: {}\n{}", streamName, m3u8);
+				log.debug("Playlist for: {}\n{}", trackName, m3u8);
 				writer.write(m3u8);
 				writer.flush();
 			} else {
-				log.trace("Minimum segment count not yet reached, currently at: {}", count);
-				response.setIntHeader("Retry-After", 60);
-				response.sendError(503, "Not enough segments available for " + streamName);
+				sendNotEnoughSegments(streamName, count, response);
 			}
 		} else {
-			log.debug("Stream: {} is not available", streamName);
-			response.sendError(404, "No playlist for " + streamName);
+			sendUnavailable(streamName, "playlist", response);
+		}
+	}
+
+	/**
+	 * Finds the target duration of a playlist, which no segment duration may exceed once rounded: the longest segment rounded
+	 * up, and never less than the segment time limit so that it stays the same while the window slides.
+	 * 
+	 * @param segments
+	 * @param segmentTimeLimit in milliseconds
+	 * @return target duration in seconds
+	 */
+	public static long getTargetDuration(Segment[] segments, long segmentTimeLimit) {
+		double longest = segmentTimeLimit / 1000d;
+		for (Segment segment : segments) {
+			longest = Math.max(longest, segment.getDuration());
+		}
+		return (long) Math.ceil(longest);
+	}
+
+	/**
+	 * Appends the variant and the I-frame stream of a stream, each with its peak bit rate measured over the given segments and
+	 * its codecs; the I-frame stream only lists the video codec. Audio written apart from the video is appended as the audio
+	 * rendition of the variant, whose bit rate then includes that of the audio track.
+	 * 
+	 * @param sb
+	 * @param streamName
+	 * @param segments
+	 */
+	private static void appendMaster(StringBuilder sb, String streamName, Segment[] segments) {
+		long bandwidth = getPeakBandwidth(segments);
+		String resolution = "";
+		String codecs = "";
+		String videoCodecs = "";
+		String audioGroup = "";
+		SegmentFacade facade = service.getFacade(streamName);
+		if (facade != null) {
+			SegmentTrack audioTrack = facade.getAudioTrack();
+			if (audioTrack != null) {
+				bandwidth += getPeakBandwidth(audioTrack.getSegments());
+				sb.append(String.format("#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"audio\",NAME=\"audio\",DEFAULT=YES,AUTOSELECT=YES,URI=\"%s.m3u8\"\n", audioTrack.getName()));
+				audioGroup = ",AUDIO=\"audio\"";
+			}
+			if (facade.hasVideo()) {
+				resolution = String.format(",RESOLUTION=%dx%d", facade.getOutputWidth(), facade.getOutputHeight());
+			}
+			String all = facade.getCodecs();
+			if (all.length() > 0) {
+				codecs = String.format(",CODECS=\"%s\"", all);
+				for (String codec : all.split(",")) {
+					if (codec.startsWith("avc1")) {
+						videoCodecs = String.format(",CODECS=\"%s\"", codec);
+					}
+				}
+			}
+		}
+		sb.append(String.format("#EXT-X-STREAM-INF:BANDWIDTH=%d%s%s%s\n%s.m3u8\n", bandwidth, resolution, codecs, audioGroup, streamName));
+		long iFrameBandwidth = appendIFrames(null, streamName, segments);
+		if (iFrameBandwidth > 0L) {
+			sb.append(String.format("#EXT-X-I-FRAME-STREAM-INF:BANDWIDTH=%d%s%s,URI=\"%s%s.m3u8\"\n", iFrameBandwidth, resolution, videoCodecs, streamName, IFRAMES_SUFFIX));
+		}
+	}
+
+	/**
+	 * @param segments
+	 * @return highest bit rate of the segments, in bits per second
+	 */
+	private static long getPeakBandwidth(Segment[] segments) {
+		long bandwidth = 0L;
+		for (Segment segment : segments) {
+			if (segment.getDuration() > 0d) {
+				bandwidth = Math.max(bandwidth, (long) (segment.getSize() * 8L / segment.getDuration()));
+			}
+		}
+		return bandwidth;
+	}
+
+	/**
+	 * Appends an entry for each key frame of the given segments: its duration up to the next key frame and the byte range
+	 * from its first packet up to the next video access unit, found in the segment's packet index. Segments which start with
+	 * a PAT and PMT get a map pointing at them.
+	 * 
+	 * @param sb builder to append to, may be null to only measure
+	 * @param streamName
+	 * @param segments
+	 * @return peak bit rate of the I-frame entries
+	 */
+	private static long appendIFrames(StringBuilder sb, String streamName, Segment[] segments) {
+		long bandwidth = 0L;
+		for (int s = 0; s < segments.length; s++) {
+			Segment segment = segments[s];
+			PacketIndex index = segment.getPacketIndex();
+			int keyFrames = index.getKeyFrameCount();
+			if (keyFrames == 0) {
+				continue;
+			}
+			if (sb != null && segment.isPatWritten() && segment.isPmtWritten()) {
+				sb.append(String.format("#EXT-X-MAP:URI=\"%s_%s.ts\",BYTERANGE=\"%d@0\"\n", streamName, segment.getIndex(), TsPacketParser.PACKET_SIZE * 2));
+			}
+			// pts at which the segment ends, from its first pes and its duration
+			long endPts = index.getPesCount() > 0 ? index.getPesPts(0) + (long) (segment.getDuration() * PTS_CLOCK) : -1L;
+			int pes = 0;
+			for (int k = 0; k < keyFrames; k++) {
+				int offset = index.getKeyFrameOffset(k);
+				long pts = index.getKeyFramePts(k);
+				// the key frame ends where the next video pes starts
+				int pesCount = index.getPesCount();
+				while (pes < pesCount && index.getPesOffset(pes) <= offset) {
+					pes++;
+				}
+				while (pes < pesCount && !index.isPesVideo(pes)) {
+					pes++;
+				}
+				int end = pes < pesCount ? index.getPesOffset(pes) : segment.getSize();
+				// it lasts until the next key frame
+				long nextPts = -1L;
+				if (k + 1 < keyFrames) {
+					nextPts = index.getKeyFramePts(k + 1);
+				} else if (s + 1 < segments.length && segments[s + 1].getPacketIndex().getKeyFrameCount() > 0) {
+					nextPts = segments[s + 1].getPacketIndex().getKeyFramePts(0);
+				} else {
+					nextPts = endPts;
+				}
+				double duration = pts >= 0L && nextPts >= 0L ? ((nextPts - pts) & PTS_MASK) / PTS_CLOCK : 0d;
+				if (duration > segment.getDuration()) {
+					// a gap or a reset of the timestamps
+					duration = segment.getDuration();
+				}
+				int length = end - offset;
+				if (duration > 0d) {
+					bandwidth = Math.max(bandwidth, (long) (length * 8L / duration));
+				}
+				if (sb != null) {
+					sb.append(String.format("#EXTINF:%.3f,\n#EXT-X-BYTERANGE:%d@%d\n%s_%s.ts\n", duration, length, offset, streamName, segment.getIndex()));
+				}
+			}
+			if (sb != null && segment.isLast()) {
+				sb.append("#EXT-X-ENDLIST\n");
+				break;
+			}
 		}
+		return bandwidth;
 	}
 
 }
@@ -0,0 +1,172 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.http.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.red5.logging.Red5LoggerFactory;
+import org.red5.service.httpstream.AdmissionController;
+import org.red5.service.httpstream.SegmenterService;
+import org.slf4j.Logger;
+import org.springframework.context.ApplicationContext;
+import org.springframework.web.context.WebApplicationContext;
+
+/**
+ * Base of the servlets describing the segment window of a stream, the HLS playlist and the DASH manifest. It starts a
+ * stream registered to start on request, waits for the minimum segment count and answers requests for a stream which is
+ * not available, so that both protocols behave the same.
+ * 
+ * Init parameters:
+ * <pre>
+ *  minimumSegmentCount number of segments that must exist before any is listed, 2 by default
+ *  startupWaitTime extra time to wait for segments when the request started the stream, in milliseconds
+ * </pre>
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public abstract class SegmentWindowServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 978137415L;
+
+	private static Logger log = Red5LoggerFactory.getLogger(SegmentWindowServlet.class);
+
+	protected static SegmenterService service;
+
+	// number of segments that must exist before displaying any
+	protected int minimumSegmentCount = 2;
+
+	// extra time to wait for segments when the request started the stream, in milliseconds
+	protected long startupWaitTime = 10000L;
+
+	@Override
+	public void init(ServletConfig config) throws ServletException {
+		super.init(config);
+		String minimumSegmentCountParam = getInitParameter("minimumSegmentCount");
+		if (!StringUtils.isEmpty(minimumSegmentCountParam)) {
+			minimumSegmentCount = Integer.valueOf(minimumSegmentCountParam);
+		}
+		log.debug("Minimum segment count - param: {} value: {}", minimumSegmentCountParam, minimumSegmentCount);
+		String startupWaitTimeParam = getInitParameter("startupWaitTime");
+		if (!StringUtils.isEmpty(startupWaitTimeParam)) {
+			startupWaitTime = Long.valueOf(startupWaitTimeParam);
+		}
+	}
+
+	/**
+	 * Gets the segmenter from the red5 context, the first time it is needed.
+	 */
+	protected void lookupService() {
+		if (service == null) {
+			ApplicationContext appCtx = (ApplicationContext) getServletContext().getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE);
+			service = (SegmenterService) appCtx.getBean("segmenter.service");
+		}
+	}
+
+	/**
+	 * Starts a stream waiting for its first viewer.
+	 * 
+	 * @param streamName
+	 * @return true if this request started the stream
+	 */
+	protected boolean startOnRequest(String streamName) {
+		if (!service.isAvailable(streamName) && service.isRegistered(streamName)) {
+			return service.startOnRequest(streamName);
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for the minimum segment count of a track, for as long as that many segments take to be written, and longer when
+	 * the request started the stream, to allow for connecting to the source and reaching the first key frame.
+	 * 
+	 * @param trackName stream or track name
+	 * @param started whether the request started the stream
+	 * @return segment count once reached, or when the wait ended
+	 */
+	protected int awaitSegments(String trackName, boolean started) {
+		int count = service.getSegmentCount(trackName);
+		log.debug("Segment count: {}", count);
+		// check for minimum segment count and if we dont match or exceed
+		// wait for (minimum segment count * segment duration) before returning
+		if (count < minimumSegmentCount) {
+			log.debug("Starting wait loop for segment availability");
+			long maxWaitTime = minimumSegmentCount * service.getSegmentTimeLimit();
+			if (started) {
+				maxWaitTime += startupWaitTime;
+			}
+			long start = System.currentTimeMillis();
+			do {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+				}
+				if ((System.currentTimeMillis() - start) >= maxWaitTime) {
+					log.info("Maximum segment wait time exceeded for {}", trackName);
+					break;
+				}
+			} while ((count = service.getSegmentCount(trackName)) < minimumSegmentCount);
+		}
+		return count;
+	}
+
+	/**
+	 * Answers a request for a stream which is available but whose segments are too few to be listed yet.
+	 * 
+	 * @param streamName
+	 * @param count segments available
+	 * @param response
+	 * @throws IOException
+	 */
+	protected void sendNotEnoughSegments(String streamName, int count, HttpServletResponse response) throws IOException {
+		log.trace("Minimum segment count not yet reached, currently at: {}", count);
+		response.setIntHeader("Retry-After", 60);
+		response.sendError(503, "Not enough segments available for " + streamName);
+	}
+
+	/**
+	 * Answers a request for a stream which is not available: 503 with the time after which to retry while it is queued for
+	 * transcoding, 503 if it was rejected for lack of capacity, and 404 if it is unknown.
+	 * 
+	 * @param streamName
+	 * @param description what was requested, for the 404 message
+	 * @param response
+	 * @throws IOException
+	 */
+	protected void sendUnavailable(String streamName, String description, HttpServletResponse response) throws IOException {
+		AdmissionController.Status status = service.getAdmissionStatus(streamName);
+		if (status == AdmissionController.Status.QUEUED) {
+			log.debug("Stream: {} is queued for transcoding", streamName);
+			response.setIntHeader("Retry-After", (int) Math.max(1L, service.getSegmentTimeLimit() / 1000L));
+			response.sendError(503, "Stream " + streamName + " is queued for transcoding");
+		} else if (status == AdmissionController.Status.REJECTED) {
+			log.debug("Stream: {} was rejected", streamName);
+			response.sendError(503, "Stream " + streamName + " was rejected, transcoding capacity is exhausted");
+		} else {
+			log.debug("Stream: {} is not available", streamName);
+			response.sendError(404, "No " + description + " for " + streamName);
+		}
+	}
+
+}
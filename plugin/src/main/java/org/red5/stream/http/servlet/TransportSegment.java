@@ -29,14 +29,19 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.red5.logging.Red5LoggerFactory;
+import org.red5.service.httpstream.SegmentTrack;
 import org.red5.service.httpstream.SegmenterService;
 import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
 import org.slf4j.Logger;
 import org.springframework.context.ApplicationContext;
 import org.springframework.web.context.WebApplicationContext;
 
 /**
- * Servlet implementation class TransportSegment. This servlet handles requests of the extension ".ts".
+ * Servlet implementation class TransportSegment. This servlet handles requests of the extension ".ts", ".m4s" for
+ * fragmented mp4 segments whose init segment is requested as "name_init.mp4", and ".aac" for packed audio. The name is that
+ * of a stream or of a track of it, such as "name_audio" for audio written apart from the video. A request with a single
+ * byte range, such as those of an I-frame only playlist, is answered with 206 and only the bytes asked for.
  * 
  * @author Paul Gregoire (mondain@gmail.com)
  */
@@ -48,6 +53,9 @@ public class TransportSegment extends HttpServlet {
 
 	private static SegmenterService service;
 
+	// name in place of the sequence number which requests the init segment
+	public static final String INIT_SEGMENT = "init";
+
 	/**
 	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
 	 */
@@ -69,9 +77,11 @@ public class TransportSegment extends HttpServlet {
 		String servletPath = request.getServletPath();
 		String[] path = servletPath.split("\\.");
 		log.trace("Path parts: {}", path.length);
+		// byte ranges of the same segment are requested repeatedly
+		String range = request.getHeader("Range");
 		//fail if they request the same segment
 		HttpSession session = ((HttpServletRequest) request).getSession(false);
-		if (session != null) {
+		if (session != null && range == null) {
 			String stream = (String) session.getAttribute("stream");
 			if (path[0].equals(stream)) {
 				log.info("Segment {} was already played by this requester", stream);
@@ -82,12 +92,22 @@ public class TransportSegment extends HttpServlet {
 		// look for underscore char
 		int digitIndex = path[0].lastIndexOf('_') + 1;
 		String streamName = path[0].substring(1, digitIndex - 1);
+		if (INIT_SEGMENT.equals(path[0].substring(digitIndex))) {
+			log.debug("Stream name: {} init segment", streamName);
+			writeInit(streamName, response);
+			return;
+		}
 		int sequenceNumber = Integer.valueOf(path[0].substring(digitIndex));	
 		log.debug("Stream name: {} sequence: {}", streamName, sequenceNumber);
-		if (service.isAvailable(streamName)) {
-			response.setContentType("video/MP2T");
+		if (service.getTrack(streamName) != null) {
 			Segment segment = service.getSegment(streamName, sequenceNumber);
-			if (segment != null) {
+			response.setContentType(segment != null ? segment.getFormat().getContentType() : SegmentFormat.MPEGTS.getContentType());
+			if (segment != null && range != null) {
+				writeRange(segment, range, response);
+			} else if (segment != null && segment.getFormat() != SegmentFormat.MPEGTS) {
+				writeAll(segment, response);
+			} else if (segment != null) {
+				response.setHeader("Accept-Ranges", "bytes");
     			byte[] buf = new byte[188];
     			ByteBuffer buffer = ByteBuffer.allocate(188);
 				ServletOutputStream sos = response.getOutputStream();
@@ -124,4 +144,107 @@ public class TransportSegment extends HttpServlet {
 		
 	}
 
+	/**
+	 * Writes the init segment of a stream or track whose segments need one.
+	 * 
+	 * @param streamName stream or track name
+	 * @param response
+	 * @throws IOException
+	 */
+	private void writeInit(String streamName, HttpServletResponse response) throws IOException {
+		SegmentTrack track = service.getTrack(streamName);
+		byte[] init = track != null ? track.getInitSegment() : null;
+		if (init == null) {
+			response.sendError(404, "Init segment not found");
+			return;
+		}
+		response.setContentType(track.getFacade().getSegmentFormat().getContentType());
+		response.setContentLength(init.length);
+		ServletOutputStream sos = response.getOutputStream();
+		sos.write(init);
+		sos.flush();
+	}
+
+	/**
+	 * Writes all the bytes of a segment which is not made of transport stream packets, up to what has been written so far.
+	 * 
+	 * @param segment
+	 * @param response
+	 * @throws IOException
+	 */
+	private void writeAll(Segment segment, HttpServletResponse response) throws IOException {
+		response.setHeader("Accept-Ranges", "bytes");
+		if (segment.isClosed()) {
+			response.setContentLength(segment.getSize());
+		}
+		ServletOutputStream sos = response.getOutputStream();
+		byte[] buf = new byte[188 * 64];
+		int position = 0;
+		int read;
+		while ((read = segment.read(position, buf, 0, buf.length)) > 0) {
+			sos.write(buf, 0, read);
+			position += read;
+		}
+		if (read < 0) {
+			log.info("Segment {} read failed at {}", segment.getIndex(), position);
+		}
+		sos.flush();
+		segment.cleanupThreadLocal();
+	}
+
+	/**
+	 * Writes a single byte range of a segment, "bytes=first-last", "bytes=first-" or "bytes=-suffix". A range starting past
+	 * the written data is answered with 416. The total length is reported as unknown while the segment is being written.
+	 * 
+	 * @param segment
+	 * @param range value of the Range header
+	 * @param response
+	 * @throws IOException
+	 */
+	private void writeRange(Segment segment, String range, HttpServletResponse response) throws IOException {
+		int size = segment.getSize();
+		long first = -1L, last = -1L;
+		if (range.startsWith("bytes=") && range.indexOf(',') == -1) {
+			String spec = range.substring(6).trim();
+			int dash = spec.indexOf('-');
+			try {
+				if (dash == 0) {
+					first = Math.max(0L, size - Long.parseLong(spec.substring(1).trim()));
+					last = size - 1L;
+				} else if (dash > 0) {
+					first = Long.parseLong(spec.substring(0, dash).trim());
+					String end = spec.substring(dash + 1).trim();
+					last = end.isEmpty() ? size - 1L : Math.min(Long.parseLong(end), size - 1L);
+				}
+			} catch (NumberFormatException e) {
+				log.debug("Invalid range: {}", range);
+				first = -1L;
+			}
+		}
+		if (first < 0L || first >= size || first > last) {
+			log.debug("Range {} not satisfiable for segment {} of {} bytes", new Object[] { range, segment.getIndex(), size });
+			response.setHeader("Content-Range", "bytes */" + size);
+			response.sendError(416, "Range not satisfiable");
+			return;
+		}
+		int length = (int) (last - first + 1L);
+		response.setStatus(206);
+		response.setHeader("Content-Range", String.format("bytes %d-%d/%s", first, last, segment.isClosed() ? String.valueOf(size) : "*"));
+		response.setContentLength(length);
+		ServletOutputStream sos = response.getOutputStream();
+		byte[] buf = new byte[Math.min(length, 188 * 64)];
+		int position = (int) first;
+		while (position <= last) {
+			int read = segment.read(position, buf, 0, (int) Math.min(buf.length, last + 1L - position));
+			if (read <= 0) {
+				log.info("Segment {} read failed at {}", segment.getIndex(), position);
+				break;
+			}
+			sos.write(buf, 0, read);
+			position += read;
+		}
+		sos.flush();
+		segment.cleanupThreadLocal();
+	}
+
 }
@@ -0,0 +1,237 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.http.xuggler;
+
+import java.nio.charset.Charset;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.red5.service.httpstream.MediaPipeline;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.model.Segment;
+import org.red5.stream.util.AdtsFrameParser;
+import org.red5.xuggler.handler.IBoundarySource;
+import org.red5.xuggler.handler.ISegmentSink;
+import org.slf4j.Logger;
+
+/**
+ * Writes the ADTS frames produced by the muxer into the facade's segments as packed audio. Each segment begins with an ID3
+ * tag holding a PRIV frame with the MPEG-2 timestamp of its first frame, which is how a player places packed audio on the
+ * timeline; timestamps are counted from the samples written. Every AAC frame may start a segment, so a new one is started
+ * at the first frame after the segment time limit, and each frame is reported as a boundary.
+ * 
+ * {@link https://tools.ietf.org/html/rfc8216#section-3.4}
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class AdtsIoHandler implements ISegmentSink, IBoundarySource, AdtsFrameParser.Listener {
+
+	private static final byte[] TIMESTAMP_OWNER = "com.apple.streaming.transportStreamTimestamp".getBytes(Charset.forName("US-ASCII"));
+
+	protected Logger log = Red5LoggerFactory.getLogger(this.getClass());
+
+	private final SegmentFacade facade;
+
+	private final AdtsFrameParser parser = new AdtsFrameParser(this);
+
+	private IBoundarySource.Listener boundaryListener;
+
+	// array of the data being parsed, frames from elsewhere are the parser's carry
+	private byte[] data;
+
+	// start and length of the frames of the data waiting to be written to the segment
+	private int runOffset;
+
+	private int runLength;
+
+	// samples written since the first frame, and up to the start of the current segment
+	private long samples;
+
+	private long segmentStartSamples = -1L;
+
+	private int sampleRate;
+
+	// bytes written by the current call
+	private int written;
+
+	public AdtsIoHandler(String url, SegmentFacade facade) {
+		log.trace("ctor url: {} facade: {}", url, facade);
+		this.facade = facade;
+	}
+
+	public void onHeader() {
+		log.debug("[{}] Header", facade);
+	}
+
+	public void setBoundaryListener(IBoundarySource.Listener boundaryListener) {
+		this.boundaryListener = boundaryListener;
+	}
+
+	/**
+	 * Parses the data in place and copies its frames to the segments.
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		long start = System.nanoTime();
+		written = 0;
+		data = buf;
+		runOffset = offset;
+		runLength = 0;
+		parser.parse(buf, offset, length);
+		flushRun();
+		data = null;
+		facade.getPipeline().record(MediaPipeline.Stage.STORE, System.nanoTime() - start);
+		return written;
+	}
+
+	/**
+	 * Closes the last segment with its duration.
+	 */
+	public void onEndOfStream() {
+		log.debug("[{}] End of stream {}", facade, parser);
+		Segment segment = facade.getSegment();
+		if (segment != null) {
+			if (segmentStartSamples >= 0L && sampleRate > 0) {
+				segment.setDuration((samples - segmentStartSamples) / (double) sampleRate);
+			}
+			segment.setLast(true);
+			segment.close();
+		}
+	}
+
+	/**
+	 * Starts a new segment once the time limit has passed, then copies the frame to the segment.
+	 */
+	public void onFrame(AdtsFrameParser parser, byte[] buf, int offset, int length) {
+		if (parser.getSampleRate() == 0) {
+			log.debug("[{}] Frame without a valid sample rate dropped", facade);
+			return;
+		}
+		sampleRate = parser.getSampleRate();
+		if (boundaryListener != null) {
+			boundaryListener.onBoundary(parser.getPosition());
+		}
+		if (segmentStartSamples < 0L) {
+			log.debug("[{}] Stream starts at {} Hz, {} channels", new Object[] { facade, sampleRate, parser.getChannels() });
+			startSegment(facade.getSegment());
+		} else {
+			double elapsed = (samples - segmentStartSamples) / (double) sampleRate;
+			if (elapsed >= facade.getSegmentTimeLimit() / 1000d) {
+				rollover(elapsed);
+			}
+		}
+		samples += parser.getSamples();
+		Segment segment = facade.getSegment();
+		if (segment == null) {
+			log.debug("[{}] Segment not available", facade);
+			return;
+		}
+		if (buf != data || offset != runOffset + runLength) {
+			flushRun();
+			runOffset = offset;
+		}
+		if (buf == data) {
+			runLength += length;
+		} else {
+			// the parser's carry is reused, write it now
+			written += segment.write(buf, offset, length);
+		}
+	}
+
+	/**
+	 * Closes the current segment with its duration and starts the next one.
+	 */
+	private void rollover(double elapsed) {
+		flushRun();
+		Segment segment = facade.getSegment();
+		if (segment != null) {
+			log.debug("[{}] Segment {} ends after {}s", new Object[] { facade, segment.getIndex(), elapsed });
+			segment.setDuration(elapsed);
+		}
+		startSegment(facade.createSegment());
+	}
+
+	/**
+	 * Begins a segment with the ID3 timestamp of its first frame.
+	 */
+	private void startSegment(Segment segment) {
+		segmentStartSamples = samples;
+		if (segment != null) {
+			long pts = samples * 90000L / sampleRate;
+			segment.setStartTime(pts / 90000d);
+			byte[] tag = timestampTag(pts);
+			written += segment.write(tag, 0, tag.length);
+		}
+	}
+
+	/**
+	 * Writes the frames collected from the data to the current segment.
+	 */
+	private void flushRun() {
+		if (runLength > 0) {
+			Segment segment = facade.getSegment();
+			if (segment != null) {
+				int count = segment.write(data, runOffset, runLength);
+				if (count > 0) {
+					log.trace("[{}] Write to segment {} success", facade, segment.getIndex());
+				} else {
+					log.warn("[{}] Write to segment {} failed", facade, segment.getIndex());
+				}
+				written += count;
+			}
+			runOffset += runLength;
+			runLength = 0;
+		}
+	}
+
+	/**
+	 * Builds an ID3v2.4 tag with a single PRIV frame holding a 33 bit timestamp in 90kHz units.
+	 * 
+	 * @param pts
+	 * @return tag
+	 */
+	public static byte[] timestampTag(long pts) {
+		int frameSize = TIMESTAMP_OWNER.length + 1 + 8;
+		byte[] tag = new byte[10 + 10 + frameSize];
+		tag[0] = 'I';
+		tag[1] = 'D';
+		tag[2] = '3';
+		tag[3] = 4;
+		syncSafe(tag, 6, 10 + frameSize);
+		tag[10] = 'P';
+		tag[11] = 'R';
+		tag[12] = 'I';
+		tag[13] = 'V';
+		syncSafe(tag, 14, frameSize);
+		System.arraycopy(TIMESTAMP_OWNER, 0, tag, 20, TIMESTAMP_OWNER.length);
+		// owner is null terminated, then the timestamp big endian
+		int offset = 20 + TIMESTAMP_OWNER.length + 1;
+		long timestamp = pts & 0x1ffffffffL;
+		for (int i = 0; i < 8; i++) {
+			tag[offset + i] = (byte) (timestamp >> (56 - i * 8));
+		}
+		return tag;
+	}
+
+	private static void syncSafe(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) ((value >> 21) & 0x7f);
+		buf[offset + 1] = (byte) ((value >> 14) & 0x7f);
+		buf[offset + 2] = (byte) ((value >> 7) & 0x7f);
+		buf[offset + 3] = (byte) (value & 0x7f);
+	}
+
+}
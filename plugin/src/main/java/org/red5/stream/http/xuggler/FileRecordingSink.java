@@ -0,0 +1,119 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.http.xuggler;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.red5.xuggler.handler.ISegmentSink;
+import org.slf4j.Logger;
+
+/**
+ * Records the muxed stream to a single file, for instance as a branch of the stream's tee next to the segments. Segments of
+ * a container with an init segment are only playable after it, so it may be given to be written first.
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class FileRecordingSink implements ISegmentSink {
+
+	private static Logger log = Red5LoggerFactory.getLogger(FileRecordingSink.class);
+
+	private final String fileName;
+
+	private final byte[] initSegment;
+
+	private FileOutputStream out;
+
+	private long size;
+
+	public FileRecordingSink(String fileName) {
+		this(fileName, null);
+	}
+
+	/**
+	 * @param fileName
+	 * @param initSegment written ahead of the stream, may be null
+	 */
+	public FileRecordingSink(String fileName, byte[] initSegment) {
+		this.fileName = fileName;
+		this.initSegment = initSegment;
+	}
+
+	public void onHeader() {
+		log.debug("Recording to {}", fileName);
+		try {
+			out = new FileOutputStream(fileName);
+			if (initSegment != null) {
+				out.write(initSegment);
+				size += initSegment.length;
+			}
+		} catch (IOException e) {
+			log.warn("Recording to {} failed", fileName, e);
+			close();
+		}
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+		if (out != null) {
+			try {
+				out.write(buf, offset, length);
+				size += length;
+				return length;
+			} catch (IOException e) {
+				log.warn("Recording to {} failed", fileName, e);
+				close();
+			}
+		}
+		return 0;
+	}
+
+	public void onEndOfStream() {
+		log.debug("Recorded {} bytes to {}", size, fileName);
+		close();
+	}
+
+	private void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.warn("Closing {} failed", fileName, e);
+			}
+			out = null;
+		}
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return number of bytes recorded
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "FileRecordingSink [fileName=" + fileName + ", size=" + size + "]";
+	}
+
+}
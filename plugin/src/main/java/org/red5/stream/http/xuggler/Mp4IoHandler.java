@@ -0,0 +1,210 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.http.xuggler;
+
+import java.util.Arrays;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.red5.service.httpstream.MediaPipeline;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.SegmentTrack;
+import org.red5.service.httpstream.model.Segment;
+import org.red5.stream.util.Mp4BoxParser;
+import org.red5.xuggler.handler.IBoundarySource;
+import org.red5.xuggler.handler.ISegmentSink;
+import org.slf4j.Logger;
+
+/**
+ * Writes the fragmented mp4 produced by the muxer into the segments of a track of the facade. The "ftyp" and "moov" boxes
+ * become the track's init segment, and the movie fragments ("moof" and "mdat") are copied to its media segments. Once the segment
+ * time limit has passed, a new segment is started at the next fragment beginning with a video sync sample, any fragment when
+ * the stream has no video; durations are the sum of the durations of the fragments. Fragments ahead of the first sync
+ * sample are discarded, as is the fragment index written at the end of the stream. A muxer is opened per track when the
+ * facade writes its audio apart, so that each track's fragments carry one media type as CMAF requires; a handler copes with
+ * several tracks in a fragment all the same, splitting at the video. Each fragment beginning with a sync sample is
+ * reported as a boundary, where a reader of the same bytes can start after the init segment.
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class Mp4IoHandler implements ISegmentSink, IBoundarySource, Mp4BoxParser.Listener {
+
+	protected Logger log = Red5LoggerFactory.getLogger(this.getClass());
+
+	private final SegmentFacade facade;
+
+	// segments the fragments are copied to
+	private final SegmentTrack track;
+
+	private final Mp4BoxParser parser = new Mp4BoxParser(this);
+
+	private IBoundarySource.Listener boundaryListener;
+
+	// file type box, kept until the movie box completes the init segment
+	private byte[] fileType;
+
+	// whether the fragments reached the first sync sample
+	private boolean started;
+
+	// whether the media data belongs to a fragment which was not written
+	private boolean skipping = true;
+
+	// media time of the current segment in seconds
+	private double elapsed;
+
+	// media time written since the first fragment, for fragments without a decode time
+	private double mediaTime;
+
+	// bytes written by the current call
+	private int written;
+
+	public Mp4IoHandler(String url, SegmentFacade facade) {
+		this(url, facade, facade.getTrack());
+	}
+
+	public Mp4IoHandler(String url, SegmentFacade facade, SegmentTrack track) {
+		log.trace("ctor url: {} facade: {} track: {}", new Object[] { url, facade, track.getName() });
+		this.facade = facade;
+		this.track = track;
+	}
+
+	public void onHeader() {
+		log.debug("[{}] Header", facade);
+	}
+
+	public void setBoundaryListener(IBoundarySource.Listener boundaryListener) {
+		this.boundaryListener = boundaryListener;
+	}
+
+	/**
+	 * Parses the data in place and copies its fragments to the segments.
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		long start = System.nanoTime();
+		written = 0;
+		parser.parse(buf, offset, length);
+		facade.getPipeline().record(MediaPipeline.Stage.STORE, System.nanoTime() - start);
+		return written;
+	}
+
+	/**
+	 * Closes the last segment with its duration.
+	 */
+	public void onEndOfStream() {
+		log.debug("[{}] End of stream {}", facade, parser);
+		Segment segment = track.getSegment();
+		if (segment != null) {
+			if (started) {
+				segment.setDuration(elapsed);
+			}
+			segment.setLast(true);
+			segment.close();
+		}
+	}
+
+	/**
+	 * Builds the init segment, starts a new segment at a split point and copies the fragments.
+	 */
+	public void onBox(Mp4BoxParser parser, byte[] buf, int offset, int length) {
+		int type = parser.getBoxType();
+		if (type == Mp4BoxParser.FTYP) {
+			fileType = Arrays.copyOfRange(buf, offset, offset + length);
+		} else if (type == Mp4BoxParser.MOOV) {
+			int prefix = fileType != null ? fileType.length : 0;
+			byte[] init = new byte[prefix + length];
+			if (fileType != null) {
+				System.arraycopy(fileType, 0, init, 0, prefix);
+			}
+			System.arraycopy(buf, offset, init, prefix, length);
+			log.debug("[{}] Init segment of {} bytes for {}, tracks: {}", new Object[] { facade, init.length, track.getName(), parser.getTrackCount() });
+			track.setInitSegment(init);
+		} else if (type == Mp4BoxParser.MOOF) {
+			boolean keyFrame = parser.isFragmentKeyFrame();
+			if (keyFrame && boundaryListener != null) {
+				boundaryListener.onBoundary(parser.getPosition());
+			}
+			if (!started) {
+				if (keyFrame) {
+					log.debug("[{}] Stream starts at fragment {}", facade, parser.getFragmentCount());
+					started = true;
+					startSegment(track.getSegment(), parser);
+				}
+			} else {
+				double limit = facade.getSegmentTimeLimit() / 1000d;
+				// without a sync sample in twice the limit, any fragment will do
+				if (elapsed >= limit && (keyFrame || elapsed >= limit * 2d)) {
+					rollover(parser);
+				}
+			}
+			// nothing ahead of the first sync sample can be decoded
+			skipping = !started;
+			if (started) {
+				elapsed += parser.getFragmentDuration();
+				mediaTime += parser.getFragmentDuration();
+				store(buf, offset, length);
+			}
+		} else if (type == Mp4BoxParser.MDAT) {
+			if (!skipping) {
+				store(buf, offset, length);
+			}
+		} else if (type == Mp4BoxParser.MFRA || type == Mp4BoxParser.FREE || type == Mp4BoxParser.SKIP) {
+			log.trace("[{}] Box {} dropped", facade, parser.getBoxType());
+		} else if (started) {
+			store(buf, offset, length);
+		}
+	}
+
+	/**
+	 * Closes the current segment with its duration and starts the next one.
+	 */
+	private void rollover(Mp4BoxParser parser) {
+		Segment segment = track.getSegment();
+		if (segment != null) {
+			log.debug("[{}] Segment {} ends after {}s", new Object[] { facade, segment.getIndex(), elapsed });
+			segment.setDuration(elapsed);
+		}
+		startSegment(track.createSegment(), parser);
+		elapsed = 0d;
+	}
+
+	/**
+	 * Sets the start time of a segment from the fragment it starts with.
+	 */
+	private void startSegment(Segment segment, Mp4BoxParser parser) {
+		if (segment != null) {
+			double decodeTime = parser.getFragmentDecodeTime();
+			segment.setStartTime(decodeTime >= 0d ? decodeTime : mediaTime);
+		}
+	}
+
+	private void store(byte[] buf, int offset, int length) {
+		Segment segment = track.getSegment();
+		if (segment != null) {
+			int count = segment.write(buf, offset, length);
+			if (count > 0) {
+				log.trace("[{}] Write to segment {} success", facade, segment.getIndex());
+			} else {
+				log.warn("[{}] Write to segment {} failed", facade, segment.getIndex());
+			}
+			written += count;
+		} else {
+			log.debug("[{}] Segment not available", facade);
+		}
+	}
+
+}
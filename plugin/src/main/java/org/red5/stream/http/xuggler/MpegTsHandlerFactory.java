@@ -20,9 +20,11 @@ package org.red5.stream.http.xuggler;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.red5.logging.Red5LoggerFactory;
-import org.red5.xuggler.handler.IEventIOHandler;
+import org.red5.xuggler.handler.ISegmentSink;
+import org.red5.xuggler.handler.SegmentTee;
 import org.slf4j.Logger;
 
 import com.xuggle.xuggler.ISimpleMediaFile;
@@ -31,7 +33,9 @@ import com.xuggle.xuggler.io.IURLProtocolHandlerFactory;
 import com.xuggle.xuggler.io.URLProtocolManager;
 
 /**
- * Used by XUGGLE.IO to get a new URLProtocolHandler for an mpeg-ts URL.
+ * Used by XUGGLE.IO to get a new URLProtocolHandler for a segment output URL. The handler hands what the muxer writes to the
+ * sink registered for the stream, whatever the container, through a tee to which further sinks may be added while the
+ * stream runs.
  * 
  * @author Paul Gregoire (mondain@gmail.com)
  */
@@ -39,7 +43,7 @@ public class MpegTsHandlerFactory implements IURLProtocolHandlerFactory {
 
 	private static Logger log = Red5LoggerFactory.getLogger(MpegTsHandlerFactory.class);
 
-	private Map<String, MpegTsIoHandler> streams;
+	private Map<String, SegmentTee> streams;
 
 	private Map<String, ISimpleMediaFile> streamsInfo;
 
@@ -81,14 +85,14 @@ public class MpegTsHandlerFactory implements IURLProtocolHandlerFactory {
 	 * without using the Singleton.
 	 */
 	private MpegTsHandlerFactory() {
-		streams = new HashMap<String, MpegTsIoHandler>();
+		streams = new HashMap<String, SegmentTee>();
 		streamsInfo = new HashMap<String, ISimpleMediaFile>();
 	}
 
 	/**
 	 * Called by XUGGLE.IO to get a a handler for a given URL. The handler
 	 * must have been registered via
-	 * {@link #registerStream(IEventIOHandler, ISimpleMediaFile)}
+	 * {@link #registerStream(ISegmentSink, ISimpleMediaFile)}
 	 * 
 	 * WARNING: It really only makes sense to have one active ProtocolHandler
 	 * working on a AVStreamingQueue at a time; it's up to the caller to ensure
@@ -108,7 +112,7 @@ public class MpegTsHandlerFactory implements IURLProtocolHandlerFactory {
 		IURLProtocolHandler result = null;
 		// Note: We need to remove any protocol markers from the url
 		String streamName = URLProtocolManager.getResourceFromURL(url);
-		MpegTsIoHandler handler = streams.get(streamName);
+		SegmentTee handler = streams.get(streamName);
 		if (handler != null) {
 			result = new MpegTsHandler(handler, streamsInfo.get(streamName), url, flags);
 		}
@@ -132,10 +136,10 @@ public class MpegTsHandlerFactory implements IURLProtocolHandlerFactory {
 	 *            information. Can be null in which case we'll assume both audio
 	 *            and video in file. {@link ISimpleMediaFile#getURL()} must
 	 *            return a non null value.
-	 * @return The IRTMPEventIOHandler previously registered for this
+	 * @return The sink previously registered for this
 	 *         streamName, or null if none.
 	 */
-	public synchronized MpegTsIoHandler registerStream(MpegTsIoHandler handler, ISimpleMediaFile streamInfo) {
+	public synchronized ISegmentSink registerStream(ISegmentSink handler, ISimpleMediaFile streamInfo) {
 		log.debug("Register - handler: {} info: {}", handler, streamInfo);
 		if (streamInfo == null) {
 			throw new IllegalArgumentException("Stream info required");
@@ -146,7 +150,37 @@ public class MpegTsHandlerFactory implements IURLProtocolHandlerFactory {
 		}
 		String streamName = URLProtocolManager.getResourceFromURL(streamURL);
 		streamsInfo.put(streamName, streamInfo);
-		return streams.put(streamName, handler);
+		SegmentTee previous = streams.put(streamName, new SegmentTee(streamName, handler));
+		return previous != null ? previous.getPrimary() : null;
+	}
+
+	/**
+	 * Adds a sink fed with the same bytes as the registered sink of a stream, from its own bounded buffer by a task on the
+	 * given executor.
+	 * 
+	 * @param streamName
+	 * @param sink
+	 * @param capacity bytes buffered for the sink
+	 * @param executor runs the task writing to the sink for as long as it is attached
+	 * @return the branch feeding the sink, or null if the stream is not registered
+	 */
+	public synchronized SegmentTee.Branch addSink(String streamName, ISegmentSink sink, int capacity, Executor executor) {
+		log.debug("Add sink - stream: {} sink: {}", streamName, sink);
+		SegmentTee tee = streams.get(streamName);
+		return tee != null ? tee.addSink(sink, capacity, executor) : null;
+	}
+
+	/**
+	 * Removes a sink added to a stream, ending it once its buffer is written.
+	 * 
+	 * @param streamName
+	 * @param sink
+	 * @return true if the sink was removed
+	 */
+	public synchronized boolean removeSink(String streamName, ISegmentSink sink) {
+		log.debug("Remove sink - stream: {} sink: {}", streamName, sink);
+		SegmentTee tee = streams.get(streamName);
+		return tee != null && tee.removeSink(sink);
 	}
 
 	/**
@@ -159,10 +193,34 @@ public class MpegTsHandlerFactory implements IURLProtocolHandlerFactory {
 	 * @return The AVBufferStream previously registered for this streamName, or
 	 *         null if none.
 	 */
-	public synchronized MpegTsIoHandler deleteStream(String streamURL) {
+	public synchronized ISegmentSink deleteStream(String streamURL) {
 		log.debug("Delete - url: {}", streamURL);
 		String streamName = URLProtocolManager.getResourceFromURL(streamURL);
 		streamsInfo.remove(streamName);
-		return streams.remove(streamName);
+		SegmentTee tee = streams.remove(streamName);
+		return tee != null ? tee.getPrimary() : null;
+	}
+
+	/**
+	 * Stop supporting a given streamName if it is still registered with the given sink, so that a writer being closed cannot
+	 * unregister the output of a writer which has since replaced it.
+	 * 
+	 * @param streamURL
+	 *            The stream url to stop supporting.
+	 * @param handler
+	 *            The sink the stream was registered with.
+	 * @return true if the stream was unregistered
+	 */
+	public synchronized boolean deleteStream(String streamURL, ISegmentSink handler) {
+		String streamName = URLProtocolManager.getResourceFromURL(streamURL);
+		SegmentTee tee = streams.get(streamName);
+		if (tee == null || tee.getPrimary() != handler) {
+			log.debug("Delete - url: {} registered by another writer", streamURL);
+			return false;
+		}
+		log.debug("Delete - url: {}", streamURL);
+		streams.remove(streamName);
+		streamsInfo.remove(streamName);
+		return true;
 	}
 }
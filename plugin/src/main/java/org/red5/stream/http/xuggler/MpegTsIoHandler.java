@@ -21,121 +21,369 @@ package org.red5.stream.http.xuggler;
 import java.nio.ByteBuffer;
 
 import org.red5.logging.Red5LoggerFactory;
+import org.red5.service.httpstream.MediaPipeline;
 import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.model.PacketIndex;
 import org.red5.service.httpstream.model.Segment;
+import org.red5.stream.util.TsPacketParser;
 import org.red5.xuggler.Message;
+import org.red5.xuggler.handler.IBoundarySource;
 import org.red5.xuggler.handler.IEventIOHandler;
+import org.red5.xuggler.handler.ISegmentSink;
 import org.slf4j.Logger;
 
-public class MpegTsIoHandler implements IEventIOHandler {
+/**
+ * Writes the transport stream produced by the muxer into the facade's segments, parsing each packet on its way through.
+ * Once the segment time limit has passed, a new segment is started at the next packet beginning a video key frame (any PES
+ * when the stream has no video), so that each segment decodes on its own; durations are taken from the PTS of these split
+ * points. Every segment begins with the latest PAT and PMT, packets ahead of the first split point are discarded, and
+ * continuity counters are rewritten per PID as packets are copied so they follow on across the injected tables and the
+ * segment boundaries. To keep the overhead down, tables are only repeated within a segment when their version changes, and
+ * SDT and null packets are dropped; the elementary stream bytes of each segment are counted to report its overhead. Each
+ * video key frame, or access unit when the stream has no video, is reported as a boundary starting at the latest PAT of the
+ * stream ahead of it, where a reader of the same bytes can start.
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class MpegTsIoHandler implements IEventIOHandler, ISegmentSink, IBoundarySource, TsPacketParser.Listener {
 
 	protected Logger log = Red5LoggerFactory.getLogger(this.getClass());
 
 	private final SegmentFacade facade;
 
+	private final TsPacketParser parser = new TsPacketParser(this);
+
+	private IBoundarySource.Listener boundaryListener;
+
+	// offset in the stream of the latest PAT, -1 until one is parsed
+	private long patPosition = -1L;
+
 	// store the latest PAT data
 	private byte[] patData;
 
 	// store the latest PMT data
 	private byte[] pmtData;
 
-	// store the latest SPS/PPS
-	@SuppressWarnings("unused")
-	private ByteBuffer spData = null;
+	// last continuity counter written per pid, -1 until written
+	private final byte[] counters = new byte[TsPacketParser.NULL_PID + 1];
+
+	// array of the data being parsed, packets from elsewhere are the parser's carry
+	private byte[] data;
+
+	// start and length of the packets of the data waiting to be written to the segment
+	private int runOffset;
+
+	private int runLength;
+
+	// pts of the split point which started the current segment, -1 until the stream reaches its first
+	private long segmentStartPts = -1L;
+
+	// latest pes pts of the current segment
+	private long lastPts = -1L;
+
+	// key frames indexed so far, numbering them across segments
+	private int keyFrames;
+
+	// bytes written by the current message
+	private int written;
+
+	// sdt, null and repeated table packets left out
+	private long dropped;
 
 	public MpegTsIoHandler(String url, SegmentFacade facade) {
 		log.trace("ctor url: {} facade: {}", url, facade);
 		this.facade = facade;
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = -1;
+		}
 	}
 
 	public Message read() throws InterruptedException {
 		return null;
 	}
 
+	/**
+	 * Dispatches a message to the sink methods; the muxer's output handler calls those directly.
+	 */
 	public int write(Message message) throws InterruptedException {
 		log.debug("write");
-		int written = 0;
-		// get current segment
-		Segment segment = facade.getSegment();
+		final Message.Type type = message.getType();
 		// get message data
-		ByteBuffer data = message.getData();
-		if (data != null) {
-			final Message.Type type = message.getType();
-			log.trace("[{}] Writing {} byte {} message to segment", facade, data.limit(), type);
-			switch (type) {
-				case CONFIG_PAT:
-					// keep track of the latest PAT data
+		ByteBuffer buffer = message.getData();
+		switch (type) {
+			case CONFIG_PAT:
+				// keep track of the latest PAT data
+				if (patData == null) {
+					patData = new byte[TsPacketParser.PACKET_SIZE];
+				}
+				buffer.mark();
+				buffer.get(patData);
+				buffer.reset();
+				break;
+			case CONFIG_PMT:
+				// keep track of the latest PMT data
+				if (pmtData == null) {
+					pmtData = new byte[TsPacketParser.PACKET_SIZE];
+				}
+				buffer.mark();
+				buffer.get(pmtData);
+				buffer.reset();
+				break;
+			case CONFIG:
+
+				break;
+			case HEADER:
+				onHeader();
+				break;
+			case END_STREAM:
+				onEndOfStream();
+				break;
+			default:
+				if (buffer != null && buffer.hasArray()) {
+					return write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				}
+				log.warn("[{}] Data without a backing array is not supported", facade);
+		}
+		return 0;
+	}
+
+	public void onHeader() {
+		log.debug("[{}] Header", facade);
+	}
+
+	public void setBoundaryListener(IBoundarySource.Listener boundaryListener) {
+		this.boundaryListener = boundaryListener;
+	}
+
+	/**
+	 * Parses the data in place and copies its packets to the segments.
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		long start = System.nanoTime();
+		written = 0;
+		data = buf;
+		runOffset = offset;
+		runLength = 0;
+		parser.parse(buf, offset, length);
+		flushRun();
+		data = null;
+		facade.getPipeline().record(MediaPipeline.Stage.STORE, System.nanoTime() - start);
+		return written;
+	}
+
+	/**
+	 * Closes the last segment with its duration.
+	 */
+	public void onEndOfStream() {
+		log.debug("[{}] End of stream {} dropped: {}", new Object[] { facade, parser, dropped });
+		Segment segment = facade.getSegment();
+		if (segment != null) {
+			if (segmentStartPts >= 0L && lastPts >= 0L) {
+				segment.setDuration(toSeconds(lastPts - segmentStartPts));
+			}
+			report(segment);
+			segment.setLast(true);
+			segment.close();
+		}
+	}
+
+	/**
+	 * Keeps the latest PAT and PMT, starts a new segment at a split point, then copies the packet to the segment with its
+	 * continuity counter rewritten and indexes it.
+	 */
+	public void onPacket(TsPacketParser parser, byte[] buf, int offset) {
+		TsPacketParser.PacketType type = parser.getPacketType();
+		switch (type) {
+			case PAT:
+				patPosition = parser.getPosition();
+				if (parser.isTableChanged() || patData == null) {
 					if (patData == null) {
-						patData = new byte[188];
+						patData = new byte[TsPacketParser.PACKET_SIZE];
 					}
-					data.mark();
-					data.get(patData);
-					data.reset();
-
-					break;
-				case CONFIG_PMT:
-					// keep track of the latest PMT data
+					System.arraycopy(buf, offset, patData, 0, TsPacketParser.PACKET_SIZE);
+				} else {
+					// the segment already starts with it
+					dropped++;
+					return;
+				}
+				break;
+			case PMT:
+				if (parser.isTableChanged() || pmtData == null) {
 					if (pmtData == null) {
-						pmtData = new byte[188];
-					}
-					data.mark();
-					data.get(pmtData);
-					data.reset();
-
-					break;
-				case CONFIG:
-
-					break;
-				case HEADER:
-
-					break;
-				case END_STREAM:
-					log.debug("[{}] End of stream", facade);
-					if (segment != null) {
-						segment.setLast(true);
-						segment.close();
-					}
-					break;
-				default:
-					if (segment != null) {
-						// first is pat
-						if (!segment.isPatWritten()) {
-							if (patData != null) {
-								// write the PAT
-								if (segment.write(ByteBuffer.wrap(patData)) == patData.length) {
-									segment.setPatWritten(true);
-									// now pmt
-									if (!segment.isPmtWritten()) {
-										if (pmtData != null) {
-											// write the PMT
-											if (segment.write(ByteBuffer.wrap(pmtData)) == pmtData.length) {
-												segment.setPmtWritten(true);
-											} else {
-												log.warn("[{}] Write of PMT to segment failed", facade);
-											}
-										} else {
-											log.warn("[{}] Could not write null PMT", facade);
-										}
-									}
-								} else {
-									log.warn("[{}] Write of PAT to segment failed", facade);
-								}
-							} else {
-								log.warn("[{}] Could not write null PAT", facade);
-							}
-						}
-						// write the data to the segment				
-						if ((written = segment.write(data)) > 0) {
-							log.trace("[{}] Write to segment {} success", facade, segment.getIndex());
-						} else {
-							log.warn("[{}] Write to segment {} failed", facade, segment.getIndex());
-						}
-					} else {
-						log.debug("[{}] Segment not available", facade);
+						pmtData = new byte[TsPacketParser.PACKET_SIZE];
 					}
+					System.arraycopy(buf, offset, pmtData, 0, TsPacketParser.PACKET_SIZE);
+				} else {
+					dropped++;
+					return;
+				}
+				break;
+			case SDT:
+			case NULL:
+				// players need neither the service description nor stuffing
+				dropped++;
+				return;
+			default:
+				break;
+		}
+		boolean pesStart = parser.isPayloadUnitStart() && (type == TsPacketParser.PacketType.VIDEO || type == TsPacketParser.PacketType.AUDIO);
+		long pts = pesStart ? parser.getPts() : -1L;
+		if (pts >= 0L && patPosition >= 0L && boundaryListener != null && isSplitPoint(parser, false)) {
+			boundaryListener.onBoundary(patPosition);
+		}
+		if (pts >= 0L) {
+			if (segmentStartPts < 0L) {
+				if (isSplitPoint(parser, false)) {
+					log.debug("[{}] Stream starts at pts {}", facade, pts);
+					startSegment(facade.getSegment(), pts);
+				}
+			} else {
+				double elapsed = toSeconds(pts - segmentStartPts);
+				double limit = facade.getSegmentTimeLimit() / 1000d;
+				// without a key frame in twice the limit, any access unit will do
+				if (elapsed >= limit && isSplitPoint(parser, elapsed >= limit * 2d)) {
+					rollover(pts, elapsed);
+				}
 			}
 		}
-		return written;
+		if (segmentStartPts < 0L) {
+			// nothing ahead of the first split point can be decoded
+			return;
+		}
+		Segment segment = facade.getSegment();
+		if (segment == null) {
+			log.debug("[{}] Segment not available", facade);
+			return;
+		}
+		if (buf != data || offset != runOffset + runLength) {
+			flushRun();
+			runOffset = offset;
+		}
+		int position = segment.getSize() + runLength;
+		rewriteContinuity(buf, offset);
+		PacketIndex index = segment.getPacketIndex();
+		if (parser.hasPcr()) {
+			index.addPcr(position, parser.getPcr());
+		}
+		if (type == TsPacketParser.PacketType.VIDEO || type == TsPacketParser.PacketType.AUDIO) {
+			segment.addPayload(TsPacketParser.PACKET_SIZE - parser.getDataOffset());
+		}
+		if (pesStart) {
+			index.addPes(position, pts, type == TsPacketParser.PacketType.VIDEO, parser.isKeyFrame());
+			if (parser.isKeyFrame()) {
+				keyFrames++;
+			}
+			if (pts > lastPts) {
+				lastPts = pts;
+			}
+		}
+		if (buf == data) {
+			runLength += TsPacketParser.PACKET_SIZE;
+		} else {
+			// the parser's carry is reused, write it now
+			written += segment.write(buf, offset, TsPacketParser.PACKET_SIZE);
+			runOffset = offset + TsPacketParser.PACKET_SIZE;
+		}
+	}
+
+	/**
+	 * @param parser
+	 * @param force true to split at any access unit
+	 * @return true if a segment may start with the current packet
+	 */
+	private boolean isSplitPoint(TsPacketParser parser, boolean force) {
+		if (parser.getVideoPid() == -1) {
+			return true;
+		}
+		return parser.getPacketType() == TsPacketParser.PacketType.VIDEO && (parser.isKeyFrame() || force);
+	}
+
+	/**
+	 * Closes the current segment with its duration and starts the next one.
+	 */
+	private void rollover(long pts, double elapsed) {
+		flushRun();
+		Segment segment = facade.getSegment();
+		if (segment != null) {
+			log.debug("[{}] Segment {} ends after {}s", new Object[] { facade, segment.getIndex(), elapsed });
+			segment.setDuration(elapsed);
+			report(segment);
+		}
+		startSegment(facade.createSegment(), pts);
+	}
+
+	/**
+	 * Logs the bytes of a finished segment split into payload and overhead.
+	 */
+	private void report(Segment segment) {
+		if (log.isDebugEnabled()) {
+			int size = segment.getSize();
+			log.debug("[{}] Segment {} bytes: {} payload: {} overhead: {} ({}%)", new Object[] { facade, segment.getIndex(), size, segment.getPayloadSize(),
+					segment.getOverheadSize(), size > 0 ? segment.getOverheadSize() * 100 / size : 0 });
+		}
+	}
+
+	/**
+	 * Begins a segment with the PAT and PMT.
+	 */
+	private void startSegment(Segment segment, long pts) {
+		segmentStartPts = pts;
+		lastPts = pts;
+		if (segment != null) {
+			segment.getPacketIndex().setFirstKeyFrame(keyFrames);
+			if (patData != null) {
+				rewriteContinuity(patData, 0);
+				segment.setPatWritten(segment.write(patData, 0, patData.length) == patData.length);
+			}
+			if (pmtData != null) {
+				rewriteContinuity(pmtData, 0);
+				segment.setPmtWritten(segment.write(pmtData, 0, pmtData.length) == pmtData.length);
+			}
+			if (!segment.isPatWritten() || !segment.isPmtWritten()) {
+				log.warn("[{}] Segment {} starts without PAT and PMT", facade, segment.getIndex());
+			}
+		}
+	}
+
+	/**
+	 * Writes the packets collected from the data to the current segment.
+	 */
+	private void flushRun() {
+		if (runLength > 0) {
+			Segment segment = facade.getSegment();
+			if (segment != null) {
+				int count = segment.write(data, runOffset, runLength);
+				if (count > 0) {
+					log.trace("[{}] Write to segment {} success", facade, segment.getIndex());
+				} else {
+					log.warn("[{}] Write to segment {} failed", facade, segment.getIndex());
+				}
+				written += count;
+			}
+			runOffset += runLength;
+			runLength = 0;
+		}
+	}
+
+	/**
+	 * Sets the continuity counter of a packet to follow the last one written on its pid; packets without payload repeat it.
+	 */
+	private void rewriteContinuity(byte[] buf, int offset) {
+		int pid = ((buf[offset + 1] & 0x1f) << 8) | (buf[offset + 2] & 0xff);
+		if (pid != TsPacketParser.NULL_PID) {
+			int control = buf[offset + 3] & 0xff;
+			int last = counters[pid];
+			int counter = (control & 0x10) != 0 ? (last + 1) & 0x0f : Math.max(last, 0);
+			buf[offset + 3] = (byte) ((control & 0xf0) | counter);
+			counters[pid] = (byte) counter;
+		}
+	}
+
+	/**
+	 * @return 90kHz ticks in seconds, allowing for the 33 bit wrap
+	 */
+	private static double toSeconds(long ticks) {
+		return (ticks & 0x1ffffffffL) / 90000d;
 	}
 
 	public boolean hasPAT() {
@@ -0,0 +1,220 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.util;
+
+/**
+ * Streaming parser of AAC frames with ADTS headers. Buffers of any size are parsed in place and a frame split across two
+ * buffers is joined in a carry array. For every frame the listener is called with the buffer, offset and length of the frame
+ * while the parser's getters describe it: sample rate, channels and the number of samples it holds.
+ *
+ * {@link http://wiki.multimedia.cx/index.php?title=ADTS}
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class AdtsFrameParser {
+
+	public static final int HEADER_SIZE = 7;
+
+	public static final int MAX_FRAME_SIZE = 8191;
+
+	private static final int[] SAMPLE_RATES = { 96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350 };
+
+	/**
+	 * Receives each frame parsed.
+	 */
+	public static interface Listener {
+
+		/**
+		 * Called for each frame; the parser's getters describe the frame for the duration of the call. The buffer must not be
+		 * kept, it may be the parser's carry array.
+		 *
+		 * @param parser
+		 * @param buf
+		 * @param offset offset of the frame's header
+		 * @param length length of the frame including its header
+		 */
+		void onFrame(AdtsFrameParser parser, byte[] buf, int offset, int length);
+
+	}
+
+	private final Listener listener;
+
+	// holds a frame split across two buffers
+	private final byte[] carry = new byte[MAX_FRAME_SIZE];
+
+	private int carried;
+
+	// bytes of the stream consumed, frames and skipped bytes
+	private long consumed;
+
+	private long frames;
+
+	private long syncErrors;
+
+	// state of the current frame
+	private long position;
+
+	private int sampleRate;
+
+	private int channels;
+
+	private int samples;
+
+	public AdtsFrameParser(Listener listener) {
+		this.listener = listener;
+		reset();
+	}
+
+	/**
+	 * Forgets all stream state, for a new stream.
+	 */
+	public void reset() {
+		carried = 0;
+		consumed = frames = syncErrors = 0L;
+		sampleRate = channels = samples = 0;
+	}
+
+	/**
+	 * Parses the frames in the given range of a buffer. A trailing partial frame is kept and completed by the next call.
+	 *
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 */
+	public void parse(byte[] buf, int offset, int length) {
+		int end = offset + length;
+		if (carried > 0) {
+			// complete the header first to learn the length of the frame
+			if (carried < HEADER_SIZE) {
+				int count = Math.min(HEADER_SIZE - carried, end - offset);
+				System.arraycopy(buf, offset, carry, carried, count);
+				carried += count;
+				offset += count;
+				if (carried < HEADER_SIZE) {
+					return;
+				}
+			}
+			int frameLength = frameLength(carry, 0);
+			if (!isSync(carry, 0) || frameLength < HEADER_SIZE) {
+				// the carried bytes are not a frame, drop them
+				syncErrors++;
+				consumed += carried;
+				carried = 0;
+			} else {
+				int count = Math.min(frameLength - carried, end - offset);
+				System.arraycopy(buf, offset, carry, carried, count);
+				carried += count;
+				offset += count;
+				if (carried < frameLength) {
+					return;
+				}
+				carried = 0;
+				frame(carry, 0, frameLength);
+			}
+		}
+		while (offset < end) {
+			if ((buf[offset] & 0xff) != 0xff || (offset + 1 < end && (buf[offset + 1] & 0xf6) != 0xf0)) {
+				// lost sync, skip to the next sync word
+				syncErrors++;
+				int skipped = offset++;
+				while (offset < end && (buf[offset] & 0xff) != 0xff) {
+					offset++;
+				}
+				consumed += offset - skipped;
+				continue;
+			}
+			if (end - offset < HEADER_SIZE || end - offset < frameLength(buf, offset)) {
+				carried = end - offset;
+				System.arraycopy(buf, offset, carry, 0, carried);
+				return;
+			}
+			int frameLength = frameLength(buf, offset);
+			if (frameLength < HEADER_SIZE) {
+				syncErrors++;
+				offset++;
+				consumed++;
+				continue;
+			}
+			frame(buf, offset, frameLength);
+			offset += frameLength;
+		}
+	}
+
+	private void frame(byte[] buf, int offset, int length) {
+		position = consumed;
+		consumed += length;
+		frames++;
+		int index = (buf[offset + 2] >> 2) & 0x0f;
+		sampleRate = index < SAMPLE_RATES.length ? SAMPLE_RATES[index] : 0;
+		channels = ((buf[offset + 2] & 0x01) << 2) | ((buf[offset + 3] >> 6) & 0x03);
+		// raw data blocks of 1024 samples
+		samples = ((buf[offset + 6] & 0x03) + 1) * 1024;
+		listener.onFrame(this, buf, offset, length);
+	}
+
+	private static boolean isSync(byte[] buf, int offset) {
+		return (buf[offset] & 0xff) == 0xff && (buf[offset + 1] & 0xf6) == 0xf0;
+	}
+
+	/**
+	 * @return length of the frame including its header, from the header at the offset
+	 */
+	private static int frameLength(byte[] buf, int offset) {
+		return ((buf[offset + 3] & 0x03) << 11) | ((buf[offset + 4] & 0xff) << 3) | ((buf[offset + 5] & 0xff) >> 5);
+	}
+
+	/**
+	 * @return offset in the stream of the current frame
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return sample rate of the current frame in Hz, 0 if its index is not valid
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return samples per channel in the current frame
+	 */
+	public int getSamples() {
+		return samples;
+	}
+
+	public long getFrameCount() {
+		return frames;
+	}
+
+	public long getSyncErrors() {
+		return syncErrors;
+	}
+
+	@Override
+	public String toString() {
+		return "AdtsFrameParser [consumed=" + consumed + ", frames=" + frames + ", syncErrors=" + syncErrors + "]";
+	}
+
+}
@@ -0,0 +1,556 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.util;
+
+import java.util.Arrays;
+
+/**
+ * Streaming parser of the top level boxes of a fragmented mp4 stream, as written by the mp4 muxer with fragments. Boxes
+ * are read into memory and given to the listener whole, except the media data which is given as it arrives, so the bytes of
+ * a "mdat" are never copied. The tracks of the "moov" (id, timescale, handler and defaults) are kept, and each "moof" is
+ * described while the listener is called: its duration, decode time and whether it starts with a sync sample.
+ *
+ * {@link http://standards.iso.org/ittf/PubliclyAvailableStandards/c068960_ISO_IEC_14496-12_2015.zip}
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class Mp4BoxParser {
+
+	public static final int FTYP = type("ftyp");
+
+	public static final int MOOV = type("moov");
+
+	public static final int MOOF = type("moof");
+
+	public static final int MDAT = type("mdat");
+
+	public static final int STYP = type("styp");
+
+	public static final int SIDX = type("sidx");
+
+	public static final int MFRA = type("mfra");
+
+	public static final int FREE = type("free");
+
+	public static final int SKIP = type("skip");
+
+	private static final int TRAK = type("trak");
+
+	private static final int TKHD = type("tkhd");
+
+	private static final int MDIA = type("mdia");
+
+	private static final int MDHD = type("mdhd");
+
+	private static final int HDLR = type("hdlr");
+
+	private static final int MVEX = type("mvex");
+
+	private static final int TREX = type("trex");
+
+	private static final int TRAF = type("traf");
+
+	private static final int TFHD = type("tfhd");
+
+	private static final int TFDT = type("tfdt");
+
+	private static final int TRUN = type("trun");
+
+	private static final int VIDE = type("vide");
+
+	private static final int AVCC = type("avcC");
+
+	private static final int MP4A = type("mp4a");
+
+	// sample_is_non_sync_sample in the sample flags
+	private static final int NON_SYNC_SAMPLE = 0x00010000;
+
+	// boxes larger than this are streamed like media data
+	private static final int MAX_BUFFERED_SIZE = 1024 * 1024;
+
+	private static final int MAX_TRACKS = 8;
+
+	/**
+	 * Receives the boxes parsed.
+	 */
+	public static interface Listener {
+
+		/**
+		 * Called with each whole box, or with each part of a streamed box as it arrives, the first part being its header; the
+		 * parser's getters describe the box for the duration of the call. The buffer must not be kept, it may be the parser's.
+		 *
+		 * @param parser
+		 * @param buf
+		 * @param offset
+		 * @param length
+		 */
+		void onBox(Mp4BoxParser parser, byte[] buf, int offset, int length);
+
+	}
+
+	private final Listener listener;
+
+	// holds the header of the next box, which may be split across buffers
+	private final byte[] header = new byte[16];
+
+	private int headerLength;
+
+	// holds a buffered box until it is complete
+	private byte[] box = new byte[4096];
+
+	private int boxLength;
+
+	// bytes of the current box not yet parsed
+	private long remaining;
+
+	private boolean streamed;
+
+	private long consumed;
+
+	private long boxErrors;
+
+	// state of the current box
+	private long position;
+
+	private int boxType;
+
+	private long boxSize;
+
+	private boolean boxStart;
+
+	private boolean boxEnd;
+
+	// tracks of the movie
+	private int trackCount;
+
+	private final int[] trackIds = new int[MAX_TRACKS];
+
+	private final long[] timescales = new long[MAX_TRACKS];
+
+	private final boolean[] videoTracks = new boolean[MAX_TRACKS];
+
+	private final long[] defaultDurations = new long[MAX_TRACKS];
+
+	private final int[] defaultFlags = new int[MAX_TRACKS];
+
+	// track of the trak or traf being walked
+	private int track = -1;
+
+	// state of the track fragment being walked
+	private long trafDuration;
+
+	private long trafDefaultDuration;
+
+	private int trafDefaultFlags;
+
+	private long trafDecodeTime;
+
+	private int trafFirstFlags;
+
+	private boolean trafHasSamples;
+
+	// state of the latest movie fragment
+	private long fragments;
+
+	private double fragmentDuration;
+
+	private double fragmentDecodeTime;
+
+	private boolean fragmentKeyFrame;
+
+	public Mp4BoxParser(Listener listener) {
+		this.listener = listener;
+		reset();
+	}
+
+	/**
+	 * Forgets all stream state, for a new stream.
+	 */
+	public void reset() {
+		headerLength = boxLength = 0;
+		remaining = 0L;
+		streamed = false;
+		consumed = boxErrors = fragments = 0L;
+		trackCount = 0;
+		fragmentDuration = 0d;
+		fragmentDecodeTime = -1d;
+		fragmentKeyFrame = false;
+	}
+
+	/**
+	 * Parses the boxes in the given range of a buffer. A partial box is kept, or streamed, and completed by the next call.
+	 *
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 */
+	public void parse(byte[] buf, int offset, int length) {
+		int end = offset + length;
+		while (offset < end) {
+			if (remaining == 0L) {
+				// a box header, eight bytes or sixteen with a 64 bit size
+				int needed = (headerLength >= 8 && readInt(header, 0) == 1 ? 16 : 8) - headerLength;
+				int count = Math.min(needed, end - offset);
+				System.arraycopy(buf, offset, header, headerLength, count);
+				headerLength += count;
+				offset += count;
+				if (count == needed && (headerLength == 16 || readInt(header, 0) != 1)) {
+					startBox();
+				}
+				continue;
+			}
+			int count = (int) Math.min(remaining, end - offset);
+			remaining -= count;
+			consumed += count;
+			if (streamed) {
+				boxEnd = remaining == 0L;
+				listener.onBox(this, buf, offset, count);
+			} else {
+				System.arraycopy(buf, offset, box, boxLength, count);
+				boxLength += count;
+				if (remaining == 0L) {
+					endBox();
+				}
+			}
+			offset += count;
+		}
+	}
+
+	private void startBox() {
+		int length = headerLength;
+		headerLength = 0;
+		long size = readInt(header, 0) & 0xffffffffL;
+		boxType = readInt(header, 4);
+		if (size == 1L) {
+			size = ((long) readInt(header, 8) << 32) | (readInt(header, 12) & 0xffffffffL);
+		} else if (size == 0L) {
+			// the box extends to the end of the stream
+			size = Long.MAX_VALUE;
+		}
+		if (size < length) {
+			// nothing can be trusted after this, take the header as an empty box
+			boxErrors++;
+			size = length;
+		}
+		position = consumed;
+		consumed += length;
+		boxSize = size;
+		remaining = size - length;
+		streamed = boxType == MDAT || size > MAX_BUFFERED_SIZE;
+		boxStart = true;
+		if (streamed) {
+			boxEnd = remaining == 0L;
+			listener.onBox(this, header, 0, length);
+			boxStart = false;
+		} else {
+			if (box.length < size) {
+				box = Arrays.copyOf(box, (int) size);
+			}
+			System.arraycopy(header, 0, box, 0, length);
+			boxLength = length;
+			if (remaining == 0L) {
+				endBox();
+			}
+		}
+	}
+
+	private void endBox() {
+		boxEnd = true;
+		if (boxType == MOOV) {
+			trackCount = 0;
+			walk(box, 8, boxLength);
+		} else if (boxType == MOOF) {
+			fragments++;
+			fragmentDuration = 0d;
+			fragmentDecodeTime = -1d;
+			fragmentKeyFrame = !hasVideo();
+			walk(box, 8, boxLength);
+		}
+		listener.onBox(this, box, 0, boxLength);
+		boxLength = 0;
+	}
+
+	/**
+	 * Walks the child boxes of a movie or a movie fragment, keeping what describes the tracks and the fragment.
+	 */
+	private void walk(byte[] b, int offset, int end) {
+		while (offset + 8 <= end) {
+			int size = readInt(b, offset);
+			int type = readInt(b, offset + 4);
+			if (size < 8 || size > end - offset) {
+				boxErrors++;
+				return;
+			}
+			int content = offset + 8;
+			int next = offset + size;
+			if (type == TRAK) {
+				track = trackCount < MAX_TRACKS ? trackCount++ : -1;
+				if (track >= 0) {
+					trackIds[track] = 0;
+					timescales[track] = 0L;
+					videoTracks[track] = false;
+					defaultDurations[track] = 0L;
+					defaultFlags[track] = 0;
+					walk(b, content, next);
+				}
+			} else if (type == MDIA || type == MVEX) {
+				walk(b, content, next);
+			} else if (type == TKHD && track >= 0) {
+				trackIds[track] = readInt(b, content + (b[content] == 1 ? 20 : 12));
+			} else if (type == MDHD && track >= 0) {
+				timescales[track] = readInt(b, content + (b[content] == 1 ? 20 : 12)) & 0xffffffffL;
+			} else if (type == HDLR && track >= 0) {
+				videoTracks[track] = readInt(b, content + 8) == VIDE;
+			} else if (type == TREX) {
+				int t = findTrack(readInt(b, content + 4));
+				if (t >= 0) {
+					defaultDurations[t] = readInt(b, content + 12) & 0xffffffffL;
+					defaultFlags[t] = readInt(b, content + 20);
+				}
+			} else if (type == TRAF) {
+				track = -1;
+				trafDuration = trafDefaultDuration = 0L;
+				trafDefaultFlags = 0;
+				trafDecodeTime = -1L;
+				trafHasSamples = false;
+				walk(b, content, next);
+				endTrackFragment();
+			} else if (type == TFHD) {
+				int flags = readInt(b, content) & 0xffffff;
+				track = findTrack(readInt(b, content + 4));
+				if (track >= 0) {
+					trafDefaultDuration = defaultDurations[track];
+					trafDefaultFlags = defaultFlags[track];
+				}
+				int p = content + 8;
+				if ((flags & 0x01) != 0) {
+					p += 8;
+				}
+				if ((flags & 0x02) != 0) {
+					p += 4;
+				}
+				if ((flags & 0x08) != 0) {
+					trafDefaultDuration = readInt(b, p) & 0xffffffffL;
+					p += 4;
+				}
+				if ((flags & 0x10) != 0) {
+					p += 4;
+				}
+				if ((flags & 0x20) != 0) {
+					trafDefaultFlags = readInt(b, p);
+				}
+			} else if (type == TFDT) {
+				trafDecodeTime = b[content] == 1 ? ((long) readInt(b, content + 4) << 32) | (readInt(b, content + 8) & 0xffffffffL) : readInt(b, content + 4) & 0xffffffffL;
+			} else if (type == TRUN && track >= 0) {
+				run(b, content, next);
+			}
+			offset = next;
+		}
+	}
+
+	/**
+	 * Adds the samples of a track run to the track fragment.
+	 */
+	private void run(byte[] b, int content, int end) {
+		int flags = readInt(b, content) & 0xffffff;
+		int count = readInt(b, content + 4);
+		int p = content + 8;
+		if ((flags & 0x01) != 0) {
+			p += 4;
+		}
+		int firstFlags = trafDefaultFlags;
+		if ((flags & 0x04) != 0) {
+			firstFlags = readInt(b, p);
+			p += 4;
+		}
+		// duration, size, flags and composition offset of each sample, those present
+		int stride = Integer.bitCount(flags & 0xf00) * 4;
+		if ((flags & 0x100) != 0) {
+			for (int i = 0; i < count && p + 4 <= end; i++, p += stride) {
+				trafDuration += readInt(b, p) & 0xffffffffL;
+			}
+		} else {
+			trafDuration += count * trafDefaultDuration;
+		}
+		if (!trafHasSamples && count > 0) {
+			if ((flags & 0x04) == 0 && (flags & 0x400) != 0) {
+				// the flags of the first sample come after its duration and size
+				int q = content + 8 + ((flags & 0x01) != 0 ? 4 : 0) + Integer.bitCount(flags & 0x300) * 4;
+				if (q + 4 <= end) {
+					firstFlags = readInt(b, q);
+				}
+			}
+			trafFirstFlags = firstFlags;
+			trafHasSamples = true;
+		}
+	}
+
+	private void endTrackFragment() {
+		if (track < 0 || timescales[track] == 0L) {
+			return;
+		}
+		double duration = trafDuration / (double) timescales[track];
+		if (videoTracks[track]) {
+			fragmentDuration = duration;
+			fragmentKeyFrame = trafHasSamples && (trafFirstFlags & NON_SYNC_SAMPLE) == 0;
+			if (trafDecodeTime >= 0L) {
+				fragmentDecodeTime = trafDecodeTime / (double) timescales[track];
+			}
+		} else if (!hasVideo()) {
+			fragmentDuration = Math.max(fragmentDuration, duration);
+			if (trafDecodeTime >= 0L && fragmentDecodeTime < 0d) {
+				fragmentDecodeTime = trafDecodeTime / (double) timescales[track];
+			}
+		}
+	}
+
+	private int findTrack(int id) {
+		for (int t = 0; t < trackCount; t++) {
+			if (trackIds[t] == id) {
+				return t;
+			}
+		}
+		return -1;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Finds the codecs of the sample entries of an init segment, as used in a codecs attribute: "avc1" with the profile,
+	 * compatibility and level of its decoder configuration, and "mp4a.40.2" for AAC.
+	 *
+	 * @param init
+	 * @return comma separated codecs, empty if none is recognized
+	 */
+	public static String getCodecs(byte[] init) {
+		StringBuilder codecs = new StringBuilder();
+		for (int i = 8; i + 8 <= init.length; i++) {
+			String codec = null;
+			int type = readInt(init, i);
+			if (type == AVCC) {
+				codec = String.format("avc1.%02x%02x%02x", init[i + 5] & 0xff, init[i + 6] & 0xff, init[i + 7] & 0xff);
+			} else if (type == MP4A) {
+				codec = "mp4a.40.2";
+			}
+			if (codec != null && codecs.indexOf(codec) == -1) {
+				if (codecs.length() > 0) {
+					codecs.append(',');
+				}
+				codecs.append(codec);
+			}
+		}
+		return codecs.toString();
+	}
+
+	/**
+	 * @param name four character code
+	 * @return box type as an int
+	 */
+	public static int type(String name) {
+		return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+	}
+
+	/**
+	 * @return offset in the stream of the current box
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public int getBoxType() {
+		return boxType;
+	}
+
+	/**
+	 * @return size of the current box including its header, Long.MAX_VALUE if it extends to the end of the stream
+	 */
+	public long getBoxSize() {
+		return boxSize;
+	}
+
+	/**
+	 * @return true if the data given starts the box
+	 */
+	public boolean isBoxStart() {
+		return boxStart;
+	}
+
+	/**
+	 * @return true if the data given ends the box
+	 */
+	public boolean isBoxEnd() {
+		return boxEnd;
+	}
+
+	public int getTrackCount() {
+		return trackCount;
+	}
+
+	public boolean hasVideo() {
+		for (int t = 0; t < trackCount; t++) {
+			if (videoTracks[t]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of movie fragments parsed
+	 */
+	public long getFragmentCount() {
+		return fragments;
+	}
+
+	/**
+	 * @return duration of the latest movie fragment in seconds, that of its video track if there is one
+	 */
+	public double getFragmentDuration() {
+		return fragmentDuration;
+	}
+
+	/**
+	 * @return decode time of the latest movie fragment in seconds, -1 if it has none
+	 */
+	public double getFragmentDecodeTime() {
+		return fragmentDecodeTime;
+	}
+
+	/**
+	 * @return true if the latest movie fragment starts with a video sync sample, or there is no video
+	 */
+	public boolean isFragmentKeyFrame() {
+		return fragmentKeyFrame;
+	}
+
+	/**
+	 * @return number of boxes with sizes that did not fit
+	 */
+	public long getBoxErrors() {
+		return boxErrors;
+	}
+
+	@Override
+	public String toString() {
+		return "Mp4BoxParser [consumed=" + consumed + ", tracks=" + trackCount + ", fragments=" + fragments + ", boxErrors=" + boxErrors + "]";
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.util;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Fixed size ring of interleaved 16 bit PCM samples. Writers append any number of samples and readers take them out in
+ * whatever block size they need, so no arrays are created per call. When a write does not fit, the oldest samples are
+ * discarded to keep latency bounded and the overrun is counted. The ring keeps the stream position of every sample, so a
+ * reader can tell how many samples were lost ahead of the ones it read.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class PcmRingBuffer {
+
+	private final short[] buffer;
+
+	// next position to read from
+	private int readPos;
+
+	// next position to write to
+	private int writePos;
+
+	// number of samples held
+	private int available;
+
+	// number of samples discarded because the ring was full
+	private long overruns;
+
+	// samples read or discarded since the ring was created, which is the stream position of the next sample to read
+	private long position;
+
+	// stream position of the first sample returned by the last read
+	private long lastReadPosition;
+
+	/**
+	 * @param capacity number of samples (not frames) the ring can hold
+	 */
+	public PcmRingBuffer(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		buffer = new short[capacity];
+	}
+
+	/**
+	 * Appends samples, discarding the oldest ones if there is not enough room.
+	 *
+	 * @param samples
+	 * @param offset
+	 * @param length
+	 */
+	public synchronized void write(short[] samples, int offset, int length) {
+		if (length > buffer.length) {
+			// only the newest samples can be kept
+			overruns += length - buffer.length;
+			position += length - buffer.length;
+			offset += length - buffer.length;
+			length = buffer.length;
+		}
+		int free = buffer.length - available;
+		if (length > free) {
+			skip(length - free);
+			overruns += length - free;
+		}
+		int first = Math.min(length, buffer.length - writePos);
+		System.arraycopy(samples, offset, buffer, writePos, first);
+		if (first < length) {
+			System.arraycopy(samples, offset + first, buffer, 0, length - first);
+		}
+		writePos = (writePos + length) % buffer.length;
+		available += length;
+	}
+
+	/**
+	 * Appends the remaining samples of a buffer, such as a native buffer viewed with asShortBuffer(), discarding the oldest
+	 * samples if there is not enough room. The buffer position is advanced past the samples consumed.
+	 *
+	 * @param samples
+	 */
+	public synchronized void write(ShortBuffer samples) {
+		int length = samples.remaining();
+		if (length > buffer.length) {
+			// only the newest samples can be kept
+			overruns += length - buffer.length;
+			position += length - buffer.length;
+			samples.position(samples.position() + length - buffer.length);
+			length = buffer.length;
+		}
+		int free = buffer.length - available;
+		if (length > free) {
+			skip(length - free);
+			overruns += length - free;
+		}
+		int first = Math.min(length, buffer.length - writePos);
+		samples.get(buffer, writePos, first);
+		if (first < length) {
+			samples.get(buffer, 0, length - first);
+		}
+		writePos = (writePos + length) % buffer.length;
+		available += length;
+	}
+
+	/**
+	 * Reads up to the given number of samples.
+	 *
+	 * @param samples destination
+	 * @param offset
+	 * @param length
+	 * @return number of samples read
+	 */
+	public synchronized int read(short[] samples, int offset, int length) {
+		length = Math.min(length, available);
+		int first = Math.min(length, buffer.length - readPos);
+		System.arraycopy(buffer, readPos, samples, offset, first);
+		if (first < length) {
+			System.arraycopy(buffer, 0, samples, offset + first, length - first);
+		}
+		readPos = (readPos + length) % buffer.length;
+		available -= length;
+		lastReadPosition = position;
+		position += length;
+		return length;
+	}
+
+	/**
+	 * Discards up to the given number of samples.
+	 *
+	 * @param length
+	 * @return number of samples discarded
+	 */
+	public synchronized int skip(int length) {
+		length = Math.min(length, available);
+		readPos = (readPos + length) % buffer.length;
+		available -= length;
+		position += length;
+		return length;
+	}
+
+	/**
+	 * @return number of samples which may be read
+	 */
+	public synchronized int available() {
+		return available;
+	}
+
+	/**
+	 * @return total number of samples the ring can hold
+	 */
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return number of samples discarded because the ring was full
+	 */
+	public synchronized long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @return stream position of the first sample returned by the last read, counting samples discarded on overrun
+	 */
+	public synchronized long getLastReadPosition() {
+		return lastReadPosition;
+	}
+
+	public synchronized void clear() {
+		position += available;
+		readPos = 0;
+		writePos = 0;
+		available = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "PcmRingBuffer [capacity=" + buffer.length + ", available=" + available() + ", overruns=" + getOverruns() + "]";
+	}
+
+}
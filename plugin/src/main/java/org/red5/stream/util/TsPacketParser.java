@@ -0,0 +1,536 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.stream.util;
+
+/**
+ * Streaming parser of 188 byte MPEG transport stream packets. Buffers of any size are parsed in place, a packet split
+ * across two buffers is joined in a single fixed carry array, and nothing else is allocated. For every packet the listener is
+ * called with the buffer and offset of the packet while the parser's getters describe it: PID and type, payload unit start,
+ * random access and discontinuity indicators, PCR, PTS of a PES start and whether a video PES starts a key frame. The PMT
+ * PID is taken from the PAT and the elementary PIDs from the PMT, so no PID is assumed. Continuity counters are checked per
+ * PID.
+ * <br />
+ * Stream types recognized in the PMT:
+ * <ul>
+ * <li>0x01 11172 Video (mpeg-1)</li>
+ * <li>0x02 13818-2 Video (mpeg-2)</li>
+ * <li>0x03 11172 Audio (mpeg-1)</li>
+ * <li>0x04 13818-3 Audio (mpeg-2)</li>
+ * <li>0x0F 13818-7 Audio ADTS / AAC</li>
+ * <li>0x11 14496-3 Audio LATM</li>
+ * <li>0x1B AVC / h.264 Video</li>
+ * <li>0x24 HEVC / h.265 Video</li>
+ * </ul>
+ *
+ * {@link http://neuron2.net/library/mpeg2/iso13818-1.pdf}
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class TsPacketParser {
+
+	public static final int PACKET_SIZE = 188;
+
+	public static final byte SYNC_BYTE = 0x47;
+
+	public static final int PAT_PID = 0x0000;
+
+	public static final int SDT_PID = 0x0011;
+
+	public static final int NULL_PID = 0x1fff;
+
+	public static enum PacketType {
+		PAT, PMT, SDT, VIDEO, AUDIO, NULL, OTHER;
+	}
+
+	/**
+	 * Receives each packet parsed.
+	 */
+	public static interface Listener {
+
+		/**
+		 * Called for each packet; the parser's getters describe the packet for the duration of the call. The buffer must not
+		 * be kept, it may be the parser's carry array.
+		 *
+		 * @param parser
+		 * @param buf
+		 * @param offset offset of the packet's sync byte
+		 */
+		void onPacket(TsPacketParser parser, byte[] buf, int offset);
+
+	}
+
+	private final Listener listener;
+
+	// holds a packet split across two buffers
+	private final byte[] carry = new byte[PACKET_SIZE];
+
+	private int carried;
+
+	// last continuity counter per pid, -1 until seen
+	private final byte[] continuity = new byte[NULL_PID + 1];
+
+	private int pmtPid = -1;
+
+	private int pcrPid = -1;
+
+	private int videoPid = -1;
+
+	private int videoStreamType;
+
+	private int audioPid = -1;
+
+	private int audioStreamType;
+
+	private int patVersion = -1;
+
+	private int pmtVersion = -1;
+
+	// bytes of the stream consumed, packets and skipped bytes
+	private long consumed;
+
+	private long packets;
+
+	private long continuityErrors;
+
+	private long syncErrors;
+
+	// state of the current packet
+	private long position;
+
+	private int pid;
+
+	private PacketType type;
+
+	private boolean payloadUnitStart;
+
+	private boolean randomAccess;
+
+	private boolean discontinuity;
+
+	private boolean pcrPresent;
+
+	private long pcr;
+
+	private long pts;
+
+	private boolean keyFrame;
+
+	private boolean tableChanged;
+
+	private int payloadOffset;
+
+	private int dataOffset;
+
+	public TsPacketParser(Listener listener) {
+		this.listener = listener;
+		reset();
+	}
+
+	/**
+	 * Forgets all stream state, for a new stream.
+	 */
+	public void reset() {
+		carried = 0;
+		for (int i = 0; i < continuity.length; i++) {
+			continuity[i] = -1;
+		}
+		pmtPid = pcrPid = videoPid = audioPid = -1;
+		videoStreamType = audioStreamType = 0;
+		patVersion = pmtVersion = -1;
+		consumed = packets = continuityErrors = syncErrors = 0L;
+	}
+
+	/**
+	 * Parses the packets in the given range of a buffer. A trailing partial packet is kept and completed by the next call.
+	 *
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 */
+	public void parse(byte[] buf, int offset, int length) {
+		int end = offset + length;
+		if (carried > 0) {
+			int count = Math.min(PACKET_SIZE - carried, length);
+			System.arraycopy(buf, offset, carry, carried, count);
+			carried += count;
+			offset += count;
+			if (carried < PACKET_SIZE) {
+				return;
+			}
+			carried = 0;
+			packet(carry, 0);
+		}
+		while (offset < end) {
+			if (buf[offset] != SYNC_BYTE) {
+				// lost sync, skip to the next sync byte
+				syncErrors++;
+				int skipped = offset;
+				while (offset < end && buf[offset] != SYNC_BYTE) {
+					offset++;
+				}
+				consumed += offset - skipped;
+				continue;
+			}
+			if (end - offset < PACKET_SIZE) {
+				carried = end - offset;
+				System.arraycopy(buf, offset, carry, 0, carried);
+				return;
+			}
+			packet(buf, offset);
+			offset += PACKET_SIZE;
+		}
+	}
+
+	private void packet(byte[] buf, int offset) {
+		position = consumed;
+		consumed += PACKET_SIZE;
+		packets++;
+		int end = offset + PACKET_SIZE;
+		int flags = buf[offset + 1] & 0xff;
+		pid = ((flags & 0x1f) << 8) | (buf[offset + 2] & 0xff);
+		payloadUnitStart = (flags & 0x40) != 0;
+		int control = buf[offset + 3] & 0xff;
+		boolean hasAdaptation = (control & 0x20) != 0;
+		boolean hasPayload = (control & 0x10) != 0;
+		int counter = control & 0x0f;
+		randomAccess = discontinuity = pcrPresent = keyFrame = tableChanged = false;
+		pcr = pts = -1L;
+		int pos = offset + 4;
+		if (hasAdaptation) {
+			int adaptationLength = buf[pos] & 0xff;
+			if (adaptationLength > 0 && pos + 1 < end) {
+				int adaptationFlags = buf[pos + 1] & 0xff;
+				discontinuity = (adaptationFlags & 0x80) != 0;
+				randomAccess = (adaptationFlags & 0x40) != 0;
+				if ((adaptationFlags & 0x10) != 0 && adaptationLength >= 7) {
+					pcrPresent = true;
+					pcr = readPcr(buf, pos + 2);
+				}
+			}
+			pos += 1 + adaptationLength;
+		}
+		if (pos > end) {
+			// malformed adaptation field
+			pos = end;
+			hasPayload = false;
+		}
+		payloadOffset = pos - offset;
+		dataOffset = hasPayload ? payloadOffset : PACKET_SIZE;
+		if (hasPayload && pid != NULL_PID) {
+			int last = continuity[pid];
+			// a repeated counter is a legal duplicate
+			if (last >= 0 && !discontinuity && counter != ((last + 1) & 0x0f) && counter != last) {
+				continuityErrors++;
+			}
+			continuity[pid] = (byte) counter;
+		}
+		if (pid == PAT_PID) {
+			type = PacketType.PAT;
+			if (payloadUnitStart && hasPayload) {
+				parsePat(buf, pos, end);
+			}
+		} else if (pid == pmtPid) {
+			type = PacketType.PMT;
+			if (payloadUnitStart && hasPayload) {
+				parsePmt(buf, pos, end);
+			}
+		} else if (pid == videoPid) {
+			type = PacketType.VIDEO;
+			if (payloadUnitStart && hasPayload) {
+				int data = parsePesHeader(buf, pos, end);
+				keyFrame = randomAccess || (data > 0 && hasKeyFrameUnit(buf, data, end));
+				dataOffset = data > 0 ? data - offset : PACKET_SIZE;
+			}
+		} else if (pid == audioPid) {
+			type = PacketType.AUDIO;
+			if (payloadUnitStart && hasPayload) {
+				int data = parsePesHeader(buf, pos, end);
+				dataOffset = data > 0 ? data - offset : PACKET_SIZE;
+			}
+		} else if (pid == SDT_PID) {
+			type = PacketType.SDT;
+		} else if (pid == NULL_PID) {
+			type = PacketType.NULL;
+		} else {
+			type = PacketType.OTHER;
+		}
+		if (listener != null) {
+			listener.onPacket(this, buf, offset);
+		}
+	}
+
+	private void parsePat(byte[] buf, int pos, int end) {
+		// skip the pointer field
+		pos += 1 + (buf[pos] & 0xff);
+		if (pos + 8 > end || buf[pos] != 0x00) {
+			return;
+		}
+		int sectionEnd = Math.min(end, pos + 3 + (((buf[pos + 1] & 0x0f) << 8) | (buf[pos + 2] & 0xff))) - 4;
+		int version = (buf[pos + 5] >> 1) & 0x1f;
+		if (version != patVersion) {
+			patVersion = version;
+			tableChanged = true;
+		}
+		for (int entry = pos + 8; entry + 4 <= sectionEnd; entry += 4) {
+			int program = ((buf[entry] & 0xff) << 8) | (buf[entry + 1] & 0xff);
+			// program 0 points at the network pid
+			if (program != 0) {
+				int pid = ((buf[entry + 2] & 0x1f) << 8) | (buf[entry + 3] & 0xff);
+				if (pid != pmtPid) {
+					pmtPid = pid;
+					pmtVersion = -1;
+				}
+				break;
+			}
+		}
+	}
+
+	private void parsePmt(byte[] buf, int pos, int end) {
+		pos += 1 + (buf[pos] & 0xff);
+		if (pos + 12 > end || buf[pos] != 0x02) {
+			return;
+		}
+		int sectionEnd = Math.min(end, pos + 3 + (((buf[pos + 1] & 0x0f) << 8) | (buf[pos + 2] & 0xff))) - 4;
+		int version = (buf[pos + 5] >> 1) & 0x1f;
+		if (version != pmtVersion) {
+			pmtVersion = version;
+			tableChanged = true;
+		}
+		pcrPid = ((buf[pos + 8] & 0x1f) << 8) | (buf[pos + 9] & 0xff);
+		int infoLength = ((buf[pos + 10] & 0x0f) << 8) | (buf[pos + 11] & 0xff);
+		videoPid = audioPid = -1;
+		for (int entry = pos + 12 + infoLength; entry + 5 <= sectionEnd;) {
+			int streamType = buf[entry] & 0xff;
+			int pid = ((buf[entry + 1] & 0x1f) << 8) | (buf[entry + 2] & 0xff);
+			int infoLen = ((buf[entry + 3] & 0x0f) << 8) | (buf[entry + 4] & 0xff);
+			switch (streamType) {
+				case 0x01:
+				case 0x02:
+				case 0x1b:
+				case 0x24:
+					if (videoPid == -1) {
+						videoPid = pid;
+						videoStreamType = streamType;
+					}
+					break;
+				case 0x03:
+				case 0x04:
+				case 0x0f:
+				case 0x11:
+					if (audioPid == -1) {
+						audioPid = pid;
+						audioStreamType = streamType;
+					}
+					break;
+				default:
+					break;
+			}
+			entry += 5 + infoLen;
+		}
+	}
+
+	/**
+	 * Reads the PTS of a PES header.
+	 *
+	 * @return offset of the PES data or -1 if the header does not fit the packet
+	 */
+	private int parsePesHeader(byte[] buf, int pos, int end) {
+		if (pos + 9 > end || buf[pos] != 0 || buf[pos + 1] != 0 || buf[pos + 2] != 1) {
+			return -1;
+		}
+		int headerLength = buf[pos + 8] & 0xff;
+		if ((buf[pos + 7] & 0x80) != 0 && pos + 14 <= end) {
+			pts = readTimestamp(buf, pos + 9);
+		}
+		int data = pos + 9 + headerLength;
+		return data < end ? data : -1;
+	}
+
+	/**
+	 * Looks for an IDR slice or a parameter set in the start of an access unit.
+	 */
+	private boolean hasKeyFrameUnit(byte[] buf, int pos, int end) {
+		for (int i = pos; i + 3 < end; i++) {
+			if (buf[i] == 0 && buf[i + 1] == 0 && buf[i + 2] == 1) {
+				int header = buf[i + 3] & 0xff;
+				if (videoStreamType == 0x24) {
+					int unitType = (header >> 1) & 0x3f;
+					// irap slices and the vps
+					if ((unitType >= 16 && unitType <= 23) || unitType == 32) {
+						return true;
+					}
+				} else {
+					int unitType = header & 0x1f;
+					// idr slice or sps
+					if (unitType == 5 || unitType == 7) {
+						return true;
+					}
+				}
+				i += 2;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return PCR in 27MHz units
+	 */
+	private static long readPcr(byte[] buf, int pos) {
+		long base = ((buf[pos] & 0xffL) << 25) | ((buf[pos + 1] & 0xffL) << 17) | ((buf[pos + 2] & 0xffL) << 9) | ((buf[pos + 3] & 0xffL) << 1) | ((buf[pos + 4] & 0xffL) >> 7);
+		long extension = ((buf[pos + 4] & 0x01L) << 8) | (buf[pos + 5] & 0xffL);
+		return base * 300L + extension;
+	}
+
+	/**
+	 * @return PTS or DTS in 90kHz units
+	 */
+	private static long readTimestamp(byte[] buf, int pos) {
+		return ((buf[pos] & 0x0eL) << 29) | ((buf[pos + 1] & 0xffL) << 22) | ((buf[pos + 2] & 0xfeL) << 14) | ((buf[pos + 3] & 0xffL) << 7) | ((buf[pos + 4] & 0xffL) >> 1);
+	}
+
+	/**
+	 * @return offset of the current packet in the stream
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public int getPid() {
+		return pid;
+	}
+
+	public PacketType getPacketType() {
+		return type;
+	}
+
+	public boolean isPayloadUnitStart() {
+		return payloadUnitStart;
+	}
+
+	public boolean isRandomAccess() {
+		return randomAccess;
+	}
+
+	public boolean isDiscontinuity() {
+		return discontinuity;
+	}
+
+	public boolean hasPcr() {
+		return pcrPresent;
+	}
+
+	/**
+	 * @return PCR of the current packet in 27MHz units, -1 if it has none
+	 */
+	public long getPcr() {
+		return pcr;
+	}
+
+	/**
+	 * @return PTS of the PES starting in the current packet in 90kHz units, -1 if none
+	 */
+	public long getPts() {
+		return pts;
+	}
+
+	/**
+	 * @return true if the current packet starts a video access unit which can be decoded on its own
+	 */
+	public boolean isKeyFrame() {
+		return keyFrame;
+	}
+
+	/**
+	 * @return true if the current packet carries a PAT or PMT with a new version
+	 */
+	public boolean isTableChanged() {
+		return tableChanged;
+	}
+
+	/**
+	 * @return offset of the payload from the start of the current packet, after any adaptation field
+	 */
+	public int getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	/**
+	 * @return offset of the elementary stream data from the start of the current packet, after any adaptation field and PES
+	 *         header; the packet size if it carries none
+	 */
+	public int getDataOffset() {
+		return dataOffset;
+	}
+
+	/**
+	 * @param pid
+	 * @return last continuity counter seen on the pid, -1 if none
+	 */
+	public int getContinuityCounter(int pid) {
+		return continuity[pid];
+	}
+
+	public int getPmtPid() {
+		return pmtPid;
+	}
+
+	public int getPcrPid() {
+		return pcrPid;
+	}
+
+	public int getVideoPid() {
+		return videoPid;
+	}
+
+	public int getVideoStreamType() {
+		return videoStreamType;
+	}
+
+	public int getAudioPid() {
+		return audioPid;
+	}
+
+	public int getAudioStreamType() {
+		return audioStreamType;
+	}
+
+	public long getPacketCount() {
+		return packets;
+	}
+
+	/**
+	 * @return packets whose continuity counter did not follow the previous one on their pid
+	 */
+	public long getContinuityErrors() {
+		return continuityErrors;
+	}
+
+	/**
+	 * @return times sync was lost and bytes were skipped
+	 */
+	public long getSyncErrors() {
+		return syncErrors;
+	}
+
+	@Override
+	public String toString() {
+		return "TsPacketParser [pmtPid=" + pmtPid + ", videoPid=" + videoPid + ", audioPid=" + audioPid + ", packets=" + packets + ", continuityErrors=" + continuityErrors + ", syncErrors=" + syncErrors + "]";
+	}
+
+}
@@ -0,0 +1,280 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.xuggler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Pool of native Xuggler objects used on the encode path. Each make() on IPacket, IAudioSamples or IVideoPicture is a JNI
+ * call plus a native malloc and an entry in the JNIMemoryManager reference tracker; reusing them keeps that cost out of the
+ * per-frame path.
+ *
+ * A pool size of zero disables reuse, which is useful to compare allocation rates with and without pooling.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class NativeObjectPool {
+
+	private final ConcurrentLinkedQueue<IPacket> packets = new ConcurrentLinkedQueue<IPacket>();
+
+	private final ConcurrentLinkedQueue<IAudioSamples> samples = new ConcurrentLinkedQueue<IAudioSamples>();
+
+	private final ConcurrentLinkedQueue<IVideoPicture> pictures = new ConcurrentLinkedQueue<IVideoPicture>();
+
+	// counts kept alongside the queues, since ConcurrentLinkedQueue.size() is not constant time
+	private final AtomicInteger packetCount = new AtomicInteger();
+
+	private final AtomicInteger samplesCount = new AtomicInteger();
+
+	private final AtomicInteger pictureCount = new AtomicInteger();
+
+	// maximum number of objects of each type to keep
+	private final int maxPooled;
+
+	// samples per audio frame expected by the audio coder
+	private long audioFrameSize;
+
+	private int audioChannels;
+
+	private int pictureWidth;
+
+	private int pictureHeight;
+
+	private IPixelFormat.Type pixelType = IPixelFormat.Type.YUV420P;
+
+	// total native objects created by this pool
+	private final AtomicLong allocations = new AtomicLong();
+
+	// total requests satisfied from the pool
+	private final AtomicLong reuses = new AtomicLong();
+
+	private long lastSampleTime = System.currentTimeMillis();
+
+	private long lastSampleAllocations;
+
+	private volatile boolean disposed;
+
+	public NativeObjectPool(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Sets the audio frame dimensions; samples of any other size are not pooled.
+	 *
+	 * @param audioFrameSize samples per channel in a coder frame
+	 * @param audioChannels
+	 */
+	public void setAudioFormat(long audioFrameSize, int audioChannels) {
+		this.audioFrameSize = audioFrameSize;
+		this.audioChannels = audioChannels;
+	}
+
+	/**
+	 * Sets the picture dimensions; pictures of any other size are not pooled.
+	 *
+	 * @param pixelType
+	 * @param width
+	 * @param height
+	 */
+	public void setPictureFormat(IPixelFormat.Type pixelType, int width, int height) {
+		this.pixelType = pixelType;
+		this.pictureWidth = width;
+		this.pictureHeight = height;
+	}
+
+	/**
+	 * Returns an empty packet.
+	 *
+	 * @return packet
+	 */
+	public IPacket getPacket() {
+		IPacket packet = packets.poll();
+		if (packet != null) {
+			packetCount.decrementAndGet();
+			reuses.incrementAndGet();
+			packet.reset();
+			return packet;
+		}
+		allocations.incrementAndGet();
+		return IPacket.make();
+	}
+
+	/**
+	 * Returns audio samples able to hold at least the given number of samples per channel.
+	 *
+	 * @param sampleCount
+	 * @param channels
+	 * @return audio samples
+	 */
+	public IAudioSamples getAudioSamples(long sampleCount, int channels) {
+		if (channels == audioChannels && sampleCount <= audioFrameSize) {
+			IAudioSamples audioSamples = samples.poll();
+			if (audioSamples != null) {
+				samplesCount.decrementAndGet();
+				reuses.incrementAndGet();
+				return audioSamples;
+			}
+			sampleCount = audioFrameSize;
+		}
+		allocations.incrementAndGet();
+		return IAudioSamples.make(sampleCount, channels);
+	}
+
+	/**
+	 * Returns a picture of the given dimensions.
+	 *
+	 * @param width
+	 * @param height
+	 * @return picture
+	 */
+	public IVideoPicture getPicture(int width, int height) {
+		if (width == pictureWidth && height == pictureHeight) {
+			IVideoPicture picture = pictures.poll();
+			if (picture != null) {
+				pictureCount.decrementAndGet();
+				reuses.incrementAndGet();
+				return picture;
+			}
+		}
+		allocations.incrementAndGet();
+		return IVideoPicture.make(pixelType, width, height);
+	}
+
+	/**
+	 * Returns a packet to the pool, or deletes it if the pool is full.
+	 *
+	 * @param packet
+	 */
+	public void release(IPacket packet) {
+		if (packet != null) {
+			if (!disposed) {
+				if (packetCount.incrementAndGet() <= maxPooled) {
+					packets.offer(packet);
+					return;
+				}
+				packetCount.decrementAndGet();
+			}
+			packet.delete();
+		}
+	}
+
+	/**
+	 * Returns audio samples to the pool, or deletes them if they are not of the pooled size or the pool is full.
+	 *
+	 * @param audioSamples
+	 */
+	public void release(IAudioSamples audioSamples) {
+		if (audioSamples != null) {
+			if (!disposed && audioSamples.getMaxSamples() == audioFrameSize && audioSamples.getChannels() == audioChannels) {
+				if (samplesCount.incrementAndGet() <= maxPooled) {
+					samples.offer(audioSamples);
+					return;
+				}
+				samplesCount.decrementAndGet();
+			}
+			audioSamples.delete();
+		}
+	}
+
+	/**
+	 * Returns a picture to the pool, or deletes it if it is not of the pooled size or the pool is full.
+	 *
+	 * @param picture
+	 */
+	public void release(IVideoPicture picture) {
+		if (picture != null) {
+			if (!disposed && picture.getWidth() == pictureWidth && picture.getHeight() == pictureHeight) {
+				if (pictureCount.incrementAndGet() <= maxPooled) {
+					pictures.offer(picture);
+					return;
+				}
+				pictureCount.decrementAndGet();
+			}
+			picture.delete();
+		}
+	}
+
+	/**
+	 * Returns the total number of native objects created by this pool.
+	 *
+	 * @return allocations
+	 */
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	/**
+	 * Returns the total number of requests which were satisfied by a pooled object.
+	 *
+	 * @return reuses
+	 */
+	public long getReuses() {
+		return reuses.get();
+	}
+
+	/**
+	 * Returns the number of native allocations per second since the previous call to this method.
+	 *
+	 * @return allocations per second
+	 */
+	public synchronized double getAllocationsPerSecond() {
+		long now = System.currentTimeMillis();
+		long total = allocations.get();
+		long elapsed = now - lastSampleTime;
+		double rate = elapsed > 0 ? (total - lastSampleAllocations) * 1000d / elapsed : 0d;
+		lastSampleTime = now;
+		lastSampleAllocations = total;
+		return rate;
+	}
+
+	/**
+	 * Deletes all pooled objects. Objects released after this call are deleted instead of pooled.
+	 */
+	public void dispose() {
+		disposed = true;
+		IPacket packet;
+		while ((packet = packets.poll()) != null) {
+			packet.delete();
+		}
+		IAudioSamples audioSamples;
+		while ((audioSamples = samples.poll()) != null) {
+			audioSamples.delete();
+		}
+		IVideoPicture picture;
+		while ((picture = pictures.poll()) != null) {
+			picture.delete();
+		}
+		packetCount.set(0);
+		samplesCount.set(0);
+		pictureCount.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "NativeObjectPool [allocations=" + allocations.get() + ", reuses=" + reuses.get() + "]";
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.xuggler.handler;
+
+/**
+ * Implemented by a sink which parses the bytes it is given, to tell where in the stream another reader of the same bytes could
+ * start decoding: a segment, key frame or fragment boundary.
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public interface IBoundarySource {
+
+	/**
+	 * @param listener told of each boundary, on the thread writing to the sink; null for none
+	 */
+	void setBoundaryListener(Listener listener);
+
+	/**
+	 * Receives the boundaries found.
+	 */
+	interface Listener {
+
+		/**
+		 * Called while the data holding the start of the boundary is written, or a later write.
+		 * 
+		 * @param position offset in the stream of the first byte of the boundary
+		 */
+		void onBoundary(long position);
+
+	}
+
+}
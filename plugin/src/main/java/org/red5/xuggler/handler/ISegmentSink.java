@@ -0,0 +1,49 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.xuggler.handler;
+
+/**
+ * Receives the bytes written by the muxer, straight from its write callback. Data arrives on the hot path and must be
+ * consumed without allocating; the header and end of stream are infrequent control events.
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public interface ISegmentSink {
+
+	/**
+	 * Called when the muxer opens its output, before any data.
+	 */
+	void onHeader();
+
+	/**
+	 * Consumes muxed data. The buffer belongs to the caller and is only valid for the duration of the call.
+	 *
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 * @return number of bytes stored
+	 */
+	int write(byte[] buf, int offset, int length);
+
+	/**
+	 * Called when the muxer closes its output, after the last data.
+	 */
+	void onEndOfStream();
+
+}
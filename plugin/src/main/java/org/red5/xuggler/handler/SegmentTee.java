@@ -0,0 +1,481 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.xuggler.handler;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Fans the bytes written by the muxer out to several sinks, so one encode can feed the segments, a recorder, a re-publish or a
+ * probe. The primary sink, which writes the segments, is called on the muxer's thread as before. Every other sink gets its own
+ * bounded byte ring, drained by a task on the executor it was added with: writes are copied into the ring and a write which
+ * does not fit is dropped whole and counted, so a slow sink never stalls the encoder.
+ * <p>
+ * A branch only starts at a boundary, where decoding can start, so a sink never gets a partial packet or fragment: a sink
+ * added mid-stream waits for the next one, and a branch which dropped a write skips everything up to the next one after
+ * it. A primary sink which is an {@link IBoundarySource} reports its segment and key frame boundaries, and the tee keeps the
+ * latest {@value #HISTORY_SIZE} bytes so a branch may start at a boundary which began in an earlier write; with any other
+ * primary sink, every write starts at a boundary.
+ * 
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class SegmentTee implements ISegmentSink, IBoundarySource.Listener {
+
+	/**
+	 * Bytes of the stream kept for branches starting at a boundary found after it began.
+	 */
+	public static final int HISTORY_SIZE = 64 * 1024;
+
+	private static Logger log = Red5LoggerFactory.getLogger(SegmentTee.class);
+
+	private final String name;
+
+	private final ISegmentSink primary;
+
+	private final CopyOnWriteArrayList<Branch> branches = new CopyOnWriteArrayList<Branch>();
+
+	// whether the primary sink reports boundaries
+	private final boolean boundaries;
+
+	// offset in the stream of the next write and of the latest boundary, the start of the stream being one
+	private long position;
+
+	private long boundary;
+
+	// latest bytes of the stream, kept while there are branches
+	private byte[] history;
+
+	private int historyEnd;
+
+	private int historyLength;
+
+	/**
+	 * @param name name of the stream
+	 * @param primary sink called on the muxer's thread
+	 */
+	public SegmentTee(String name, ISegmentSink primary) {
+		this.name = name;
+		this.primary = primary;
+		boundaries = primary instanceof IBoundarySource;
+		if (boundaries) {
+			((IBoundarySource) primary).setBoundaryListener(this);
+		}
+	}
+
+	/**
+	 * Adds a sink fed by a task of its own. A sink added after the muxer opened its output joins mid-stream at the next
+	 * boundary; its header call still comes before any data. The task runs until the sink is removed or the stream ends, so the executor must not queue
+	 * it behind other work.
+	 * 
+	 * @param sink
+	 * @param capacity bytes buffered for the sink
+	 * @param executor runs the task writing to the sink
+	 * @return the branch feeding the sink
+	 */
+	public Branch addSink(ISegmentSink sink, int capacity, Executor executor) {
+		Branch branch = new Branch(sink, capacity);
+		branches.add(branch);
+		executor.execute(branch.future);
+		log.debug("Added {} to {}", branch, name);
+		return branch;
+	}
+
+	/**
+	 * Removes a sink; its end of stream is called once what it has buffered is written.
+	 * 
+	 * @param sink
+	 * @return true if the sink was fed by this tee
+	 */
+	public boolean removeSink(ISegmentSink sink) {
+		for (Branch branch : branches) {
+			if (branch.sink == sink) {
+				branches.remove(branch);
+				branch.end();
+				log.debug("Removed {} from {}", branch, name);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public ISegmentSink getPrimary() {
+		return primary;
+	}
+
+	/**
+	 * @return branches feeding the sinks other than the primary
+	 */
+	public Branch[] getBranches() {
+		return branches.toArray(new Branch[0]);
+	}
+
+	public void onHeader() {
+		primary.onHeader();
+	}
+
+	/**
+	 * Writes to the primary sink, which may report boundaries as it goes, and queues a copy for each branch.
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		if (!boundaries) {
+			boundary = position;
+		}
+		int written = primary.write(buf, offset, length);
+		if (branches.isEmpty()) {
+			historyLength = 0;
+		} else {
+			for (Branch branch : branches) {
+				feed(branch, buf, offset, length);
+			}
+			if (boundaries) {
+				remember(buf, offset, length);
+			}
+		}
+		position += length;
+		return written;
+	}
+
+	/**
+	 * Notes a boundary reported by the primary sink.
+	 */
+	public void onBoundary(long position) {
+		if (position > boundary) {
+			boundary = position;
+		}
+	}
+
+	/**
+	 * Queues a write for a branch, or starts the branch at the latest boundary if it is waiting for one and the bytes from the
+	 * boundary on are still at hand.
+	 */
+	private void feed(Branch branch, byte[] buf, int offset, int length) {
+		if (branch.offer(buf, offset, length, position)) {
+			return;
+		}
+		long start = Math.max(branch.getLostAt(), position - historyLength);
+		if (boundary >= start && !branch.isSynchronized()) {
+			// bytes of the boundary from earlier writes, and bytes of this write ahead of it
+			int count = (int) Math.max(0L, position - boundary);
+			int skip = (int) Math.min(length, Math.max(0L, boundary - position));
+			int from = count > 0 ? (historyEnd - count + history.length) % history.length : 0;
+			if (branch.resume(history, from, count, buf, offset + skip, length - skip)) {
+				log.debug("Started {} of {} at {}", new Object[] { branch, name, boundary });
+			}
+		}
+	}
+
+	/**
+	 * Keeps the latest bytes of the stream.
+	 */
+	private void remember(byte[] buf, int offset, int length) {
+		if (history == null) {
+			history = new byte[HISTORY_SIZE];
+		}
+		if (length >= history.length) {
+			System.arraycopy(buf, offset + length - history.length, history, 0, history.length);
+			historyEnd = 0;
+			historyLength = history.length;
+		} else {
+			int first = Math.min(length, history.length - historyEnd);
+			System.arraycopy(buf, offset, history, historyEnd, first);
+			System.arraycopy(buf, offset + first, history, 0, length - first);
+			historyEnd = (historyEnd + length) % history.length;
+			historyLength = Math.min(history.length, historyLength + length);
+		}
+	}
+
+	/**
+	 * Ends the primary sink, then lets each branch drain and end.
+	 */
+	public void onEndOfStream() {
+		primary.onEndOfStream();
+		for (Branch branch : branches) {
+			branches.remove(branch);
+			branch.end();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SegmentTee [name=" + name + ", primary=" + primary + ", branches=" + branches + "]";
+	}
+
+	/**
+	 * Ring of bytes waiting for a sink and the task writing them to it. Until the branch is synchronized at a boundary, nothing
+	 * is queued.
+	 */
+	public static class Branch implements Runnable {
+
+		// largest block handed to the sink at once
+		private static final int BLOCK_SIZE = 32 * 1024;
+
+		private final ISegmentSink sink;
+
+		private final byte[] ring;
+
+		// completes once the sink has been ended
+		private final FutureTask<Void> future;
+
+		// next position to read from and number of bytes held
+		private int readPos;
+
+		private int available;
+
+		private boolean ended;
+
+		private boolean synced;
+
+		// offset in the stream of the write dropped, -1 while joining
+		private long lostAt = -1L;
+
+		private long writes;
+
+		private long bytes;
+
+		private long droppedWrites;
+
+		private long droppedBytes;
+
+		Branch(ISegmentSink sink, int capacity) {
+			if (capacity <= 0) {
+				throw new IllegalArgumentException("Invalid capacity " + capacity);
+			}
+			this.sink = sink;
+			ring = new byte[capacity];
+			future = new FutureTask<Void>(this, null);
+		}
+
+		/**
+		 * Copies a write into the ring. A write which does not fit is dropped whole and the branch loses its synchronization;
+		 * writes offered until it is resumed are counted as dropped bytes.
+		 * 
+		 * @param buf
+		 * @param offset
+		 * @param length
+		 * @param position offset of the write in the stream
+		 * @return true if the write was queued
+		 */
+		synchronized boolean offer(byte[] buf, int offset, int length, long position) {
+			if (ended) {
+				return false;
+			}
+			if (synced) {
+				if (length <= ring.length - available) {
+					put(buf, offset, length);
+					writes++;
+					bytes += length;
+					notify();
+					return true;
+				}
+				droppedWrites++;
+				synced = false;
+				lostAt = position;
+				log.debug("{} lost its synchronization at {}", this, position);
+			}
+			if (lostAt >= 0L) {
+				droppedBytes += length;
+			}
+			return false;
+		}
+
+		/**
+		 * Synchronizes the branch at a boundary, queueing the bytes from it which were written earlier and those of the current
+		 * write, if they all fit.
+		 * 
+		 * @param history ring holding the earlier bytes, may be null if there are none
+		 * @param from position in the history of the boundary
+		 * @param count number of earlier bytes
+		 * @param buf current write from the boundary on
+		 * @param offset
+		 * @param length
+		 * @return true if the branch is synchronized
+		 */
+		synchronized boolean resume(byte[] history, int from, int count, byte[] buf, int offset, int length) {
+			if (ended || synced || count + length > ring.length - available) {
+				return false;
+			}
+			if (count > 0) {
+				int first = Math.min(count, history.length - from);
+				put(history, from, first);
+				put(history, 0, count - first);
+			}
+			put(buf, offset, length);
+			if (lostAt >= 0L) {
+				// offered while waiting, then queued after all
+				droppedBytes -= count + length;
+			}
+			synced = true;
+			writes++;
+			bytes += count + length;
+			notify();
+			return true;
+		}
+
+		private void put(byte[] buf, int offset, int length) {
+			int writePos = (readPos + available) % ring.length;
+			int first = Math.min(length, ring.length - writePos);
+			System.arraycopy(buf, offset, ring, writePos, first);
+			if (first < length) {
+				System.arraycopy(buf, offset + first, ring, 0, length - first);
+			}
+			available += length;
+		}
+
+		synchronized void end() {
+			ended = true;
+			notify();
+		}
+
+		/**
+		 * Takes up to a block of bytes, waiting for some unless the branch has ended.
+		 * 
+		 * @param block destination
+		 * @return number of bytes taken, -1 once the branch has ended and is drained
+		 */
+		synchronized int take(byte[] block) throws InterruptedException {
+			while (available == 0 && !ended) {
+				wait();
+			}
+			if (available == 0) {
+				return -1;
+			}
+			int length = Math.min(block.length, available);
+			int first = Math.min(length, ring.length - readPos);
+			System.arraycopy(ring, readPos, block, 0, first);
+			if (first < length) {
+				System.arraycopy(ring, 0, block, first, length - first);
+			}
+			readPos = (readPos + length) % ring.length;
+			available -= length;
+			return length;
+		}
+
+		public void run() {
+			byte[] block = new byte[Math.min(BLOCK_SIZE, ring.length)];
+			try {
+				sink.onHeader();
+				int length;
+				while ((length = take(block)) > 0) {
+					sink.write(block, 0, length);
+				}
+			} catch (InterruptedException e) {
+				log.debug("Interrupted {}", this);
+			} catch (Exception e) {
+				log.warn("Exception in {}", this, e);
+				synchronized (this) {
+					// stop buffering for a sink which has failed
+					ended = true;
+					available = 0;
+				}
+			} finally {
+				try {
+					sink.onEndOfStream();
+				} catch (Exception e) {
+					log.warn("Exception ending {}", this, e);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the sink to be ended after the branch has been.
+		 * 
+		 * @param millis longest wait
+		 * @return true if the sink has been ended
+		 */
+		public boolean join(long millis) throws InterruptedException {
+			try {
+				future.get(millis, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				log.warn("Exception in {}", this, e.getCause());
+			} catch (TimeoutException e) {
+				return false;
+			}
+			return true;
+		}
+
+		public ISegmentSink getSink() {
+			return sink;
+		}
+
+		/**
+		 * @return bytes waiting for the sink
+		 */
+		public synchronized int getAvailable() {
+			return available;
+		}
+
+		public synchronized long getWrites() {
+			return writes;
+		}
+
+		public synchronized long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return writes dropped because the ring was full, each losing the synchronization
+		 */
+		public synchronized long getDroppedWrites() {
+			return droppedWrites;
+		}
+
+		/**
+		 * @return bytes of the stream missing from what the sink got, since each drop up to the boundary it resumed at
+		 */
+		public synchronized long getDroppedBytes() {
+			return droppedBytes;
+		}
+
+		/**
+		 * @return true while the branch queues what is written, false until its first boundary and from a drop to the next
+		 */
+		public synchronized boolean isSynchronized() {
+			return synced;
+		}
+
+		/**
+		 * @return offset in the stream of the latest write dropped, -1 if none
+		 */
+		synchronized long getLostAt() {
+			return lostAt;
+		}
+
+		/**
+		 * @return true once the branch has been ended, its sink may still be draining
+		 */
+		public synchronized boolean isEnded() {
+			return ended;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Branch [sink=" + sink + ", capacity=" + ring.length + ", available=" + available + ", synced=" + synced + ", writes=" + writes + ", droppedWrites=" + droppedWrites
+					+ ", droppedBytes=" + droppedBytes + "]";
+		}
+
+	}
+
+}
@@ -18,6 +18,8 @@
 
 package org.red5.xuggler.reader;
 
+import org.red5.service.httpstream.MediaPipeline;
+import org.red5.service.httpstream.MediaPipeline.Stage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +28,7 @@ import com.xuggle.mediatool.MediaToolAdapter;
 import com.xuggle.mediatool.ToolFactory;
 import com.xuggle.mediatool.event.IAudioSamplesEvent;
 import com.xuggle.mediatool.event.ICloseEvent;
+import com.xuggle.mediatool.event.IReadPacketEvent;
 import com.xuggle.mediatool.event.IVideoPictureEvent;
 import com.xuggle.xuggler.IContainer;
 import com.xuggle.xuggler.IError;
@@ -68,6 +71,15 @@ public class RTMPReader extends MediaToolAdapter implements GenericReader {
 
 	private boolean closed = true;
 
+	// per stage counters, optional
+	private MediaPipeline pipeline;
+
+	// when the current packet read started, in nanoseconds
+	private long readStart;
+
+	// when decoding of the current packet started, 0 once its output has been seen
+	private long decodeStart;
+
 	public RTMPReader() {
 	}
 
@@ -155,7 +167,7 @@ public class RTMPReader extends MediaToolAdapter implements GenericReader {
 		IError err = null;
 		try {
 			// packet read loop
-			while ((err = reader.readPacket()) == null) {
+			while ((err = readPacket()) == null) {
 				long elapsedMillis = (System.currentTimeMillis() - startTime);
 				log.debug("Reads - frames: {} samples: {}", videoFramesRead, audioSamplesRead);
 				if (log.isTraceEnabled()) {
@@ -173,14 +185,49 @@ public class RTMPReader extends MediaToolAdapter implements GenericReader {
 		log.trace("RTMPReader - end");
 	}
 
+	/**
+	 * Reads, decodes and dispatches one packet; the media reader does all three from within this call.
+	 * 
+	 * @return error or null
+	 */
+	private IError readPacket() {
+		readStart = System.nanoTime();
+		return reader.readPacket();
+	}
+
+	@Override
+	public void onReadPacket(IReadPacketEvent event) {
+		if (pipeline != null) {
+			long now = System.nanoTime();
+			pipeline.record(Stage.DEMUX, now - readStart);
+			decodeStart = now;
+		}
+		super.onReadPacket(event);
+	}
+
+	/**
+	 * Records the decode of the current packet once its first output appears.
+	 */
+	private void decoded() {
+		if (pipeline != null && decodeStart != 0L) {
+			pipeline.record(Stage.DECODE, System.nanoTime() - decodeStart);
+			decodeStart = 0L;
+		}
+	}
+
 	@Override
 	public void onAudioSamples(IAudioSamplesEvent event) {
 		log.trace("Reader onAudioSamples");
 		if (audioEnabled) {
+			decoded();
 			// increment our count
 			audioSamplesRead += event.getAudioSamples().getNumSamples();
 			// pass the even up the chain
+			long start = System.nanoTime();
 			super.onAudioSamples(event);
+			if (pipeline != null) {
+				pipeline.record(Stage.SCALE, System.nanoTime() - start);
+			}
 		}
 	}
 
@@ -192,8 +239,13 @@ public class RTMPReader extends MediaToolAdapter implements GenericReader {
 			keyFrameReceived = event.getPicture().isKeyFrame() ? true : keyFrameReceived;
 			// once we have had one, proceed
 			if (keyFrameReceived) {
+				decoded();
 				videoFramesRead += 1;
+				long start = System.nanoTime();
 				super.onVideoPicture(event);
+				if (pipeline != null) {
+					pipeline.record(Stage.SCALE, System.nanoTime() - start);
+				}
 			}
 		}
 	}
@@ -240,6 +292,13 @@ public class RTMPReader extends MediaToolAdapter implements GenericReader {
 		return inputChannels;
 	}
 
+	/**
+	 * @param pipeline counters to record the demux, decode and scale stages in
+	 */
+	public void setPipeline(MediaPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
 	/**
 	 * @return the reader
 	 */
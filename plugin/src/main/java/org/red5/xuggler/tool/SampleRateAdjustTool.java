@@ -76,7 +76,8 @@ public class SampleRateAdjustTool extends MediaToolAdapter implements GenericToo
     			log.trace("Out - samples: {} rate: {} channels: {}", out.getNumSamples(), out.getSampleRate(), out.getChannels());
     			// queue audio
     			facade.queueAudio(out, event.getTimeStamp(), event.getTimeUnit());
-    			//out.delete();
+    			// the facade copied the samples
+    			out.delete();
     			samples.delete();
     		} else {
     			facade.queueAudio(samples, event.getTimeStamp(), event.getTimeUnit());
@@ -19,6 +19,7 @@
 package org.red5.xuggler.tool;
 
 import org.red5.service.httpstream.SegmentFacade;
+import org.red5.xuggler.NativeObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -75,12 +76,18 @@ public class VideoAdjustTool extends MediaToolAdapter implements GenericTool {
 				log.debug("Video resampler: {}", resampler);
 			}
 			if (resampler != null) {
-				IVideoPicture out = IVideoPicture.make(pixelType, width, height);
+				// resample into a picture from the writer's pool, which is handed to the facade without a copy
+				NativeObjectPool pool = facade.getNativeObjectPool();
+				IVideoPicture out = pool.getPicture(width, height);
 				if (resampler.resample(out, in) >= 0) {
 					//check complete
 					if (out.isComplete()) {
-						// queue video
-						facade.queueVideo(out, event.getTimeStamp(), event.getTimeUnit());
+						// carry the frame type over for the queue overload policy
+						out.setKeyFrame(in.isKeyFrame());
+						out.setPictureType(in.getPictureType());
+						// queue video, the facade now owns the picture
+						facade.queuePooledVideo(out, event.getTimeStamp(), event.getTimeUnit());
+						out = null;
 						in.delete();
 					} else {
 						log.warn("Resampled picture was not marked as complete");
@@ -88,13 +95,15 @@ public class VideoAdjustTool extends MediaToolAdapter implements GenericTool {
 				} else {
 					log.warn("Resample failed");
 				}
-				out.delete();
+				if (out != null) {
+					pool.release(out);
+				}
 			} else {
 				log.debug("Resampler was null");
 			}
 			log.debug("VideoAdjustTool onVideoPicture - end");
 		} else {
-			// queue video
+			// queue video, the facade holds its own reference to the decoded picture
 			facade.queueVideo(in, event.getTimeStamp(), event.getTimeUnit());
 		}
 	}
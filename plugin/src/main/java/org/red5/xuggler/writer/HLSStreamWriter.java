@@ -22,15 +22,32 @@ import static java.util.concurrent.TimeUnit.MICROSECONDS;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
+import org.red5.service.httpstream.EncoderProfile;
+import org.red5.service.httpstream.MediaPipeline;
+import org.red5.service.httpstream.MediaPipeline.Stage;
 import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.SegmentTrack;
 import org.red5.service.httpstream.SegmenterService;
 import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
 import org.red5.stream.http.xuggler.MpegTsHandlerFactory;
+import org.red5.stream.http.xuggler.AdtsIoHandler;
+import org.red5.stream.http.xuggler.Mp4IoHandler;
 import org.red5.stream.http.xuggler.MpegTsIoHandler;
+import org.red5.stream.util.PcmRingBuffer;
+import org.red5.xuggler.NativeObjectPool;
+import org.red5.xuggler.handler.ISegmentSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +66,7 @@ import com.xuggle.xuggler.ISimpleMediaFile;
 import com.xuggle.xuggler.IStream;
 import com.xuggle.xuggler.IStreamCoder;
 import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.SimpleMediaFile;
 
 /**
  * An writer that encodes and decodes media to containers. Based on MediaWriter class from Xuggler.
@@ -81,6 +99,9 @@ public class HLSStreamWriter implements IStreamWriter {
 
 	private static final Logger log = LoggerFactory.getLogger(HLSStreamWriter.class);
 
+	// container options which shape the segments, warned about when the muxer does not take them
+	private static final List<String> MUXER_OPTIONS = Arrays.asList("movflags", "frag_duration", "pes_payload_size", "max_delay", "pcr_period");
+
 	static {
 		com.xuggle.ferry.JNIMemoryManager.setMemoryModel(com.xuggle.ferry.JNIMemoryManager.MemoryModel.NATIVE_BUFFERS);
 	}
@@ -98,6 +119,22 @@ public class HLSStreamWriter implements IStreamWriter {
 	// the container format
 	private IContainerFormat containerFormat;
 
+	// container written into the segments
+	private SegmentFormat segmentFormat = SegmentFormat.MPEGTS;
+
+	// container of the audio when the facade writes it to a track of its own, null when it is muxed with the video
+	private IContainer audioContainer;
+
+	private IContainerFormat audioContainerFormat;
+
+	private String audioOutputUrl;
+
+	// sink registered for the audio output url
+	private ISegmentSink audioOutputHandler;
+
+	// index of the audio packets in the interleaver, which differs from that of the audio stream in its own container
+	private int audioIndex;
+
 	private IStream audioStream;
 
 	private IStream videoStream;
@@ -108,22 +145,95 @@ public class HLSStreamWriter implements IStreamWriter {
 
 	private ISimpleMediaFile outputStreamInfo;
 
-	// true if the writer should ask FFMPEG to interleave media
+	// sink registered for the output url, which only this writer may unregister
+	private ISegmentSink outputHandler;
+
+	// true if the writer should ask FFMPEG to interleave media, not needed since packets pass through our interleaver
 	private boolean forceInterleave = false;
 
+	// orders audio and video packets by dts before they reach the container
+	private PacketInterleaver interleaver;
+
+	// maximum time a packet is held waiting for the other stream, in milliseconds
+	private long maxInterleaveDelay = 500L;
+
+	// media time between container flushes, in milliseconds
+	private long flushInterval = 200L;
+
+	// runs the mux and store stages on a task of their own, behind a bounded packet queue, when set
+	private Executor muxExecutor;
+
+	// packets queued for the mux task before the encoder waits for it
+	private int muxQueueSize = 64;
+
+	private BlockingQueue<IPacket> muxQueue;
+
+	private FutureTask<Void> muxTask;
+
+	// tells the mux task to end once its queue is empty
+	private volatile boolean muxEnding;
+
+	// most elementary stream bytes the transport stream muxer packs into one PES, zero for the muxer default
+	private int pesPayloadSize;
+
+	// longest the transport stream muxer holds audio to pack it into one PES, in milliseconds, zero for the muxer default
+	private long pesMaxDelay;
+
+	// time between PCRs written by the transport stream muxer, in milliseconds, zero for the muxer default
+	private long pcrInterval;
+
+	// dts of the packet which last triggered a flush, in microseconds
+	private long lastFlushDts;
+
+	// packets written and container flushes issued
+	private long packetsWritten;
+
+	private long containerFlushes;
+
 	private boolean audioComplete = false;
 
 	private boolean videoComplete = false;
 
-	private volatile double audioDuration;
+	private int videoBitRate = 360000;
 
-	private volatile double videoDuration;
+	// h.264 options for this stream
+	private EncoderProfile encoderProfile;
 
-	private int videoBitRate = 360000;
+	// moving average of the time spent encoding a picture, in nanoseconds
+	private volatile long averageVideoEncodeTime;
+
+	// moving average of the time spent encoding an audio frame, in nanoseconds
+	private volatile long averageAudioEncodeTime;
+
+	// samples per channel handed to the audio coder per call
+	private int audioFrameSize;
+
+	// accumulates incoming pcm until a full coder frame is available
+	private PcmRingBuffer audioAccumulator;
+
+	// holds one frame on its way from the accumulator to the native samples
+	private short[] audioFrameSamples;
+
+	// time of the first audio received, in microseconds
+	private volatile long audioStartTime = Global.NO_PTS;
+
+	// samples per channel since the start time, encoded or lost to an accumulator overrun
+	private long audioSamplesEncoded;
+
+	// samples per channel the accumulator discarded on overrun
+	private long audioSamplesDropped;
 
-	private long prevAudioTime = 0L;
+	// maximum number of native objects of each type to keep for reuse, zero disables pooling
+	private int nativePoolSize = 8;
 
-	private long prevVideoTime = 0L;
+	// reusable packets, samples and pictures for the encode path
+	private NativeObjectPool pool;
+
+	// last time the pool allocation rate was logged
+	private long lastPoolStats;
+
+	// per stage counters of the stream, taken from the facade
+	private MediaPipeline pipeline;
 
 	/**
 	 * Create a MediaWriter which will require subsequent calls to {@link #addVideoStream} and/or {@link #addAudioStream} to configure the
@@ -139,17 +249,39 @@ public class HLSStreamWriter implements IStreamWriter {
 		log.debug("setup {}", outputUrl);
 		this.outputStreamInfo = outputStreamInfo;
 		this.facade = facade;
+		this.pipeline = facade.getPipeline();
 		// output to a custom handler
 		outputStreamInfo.setURL(outputUrl);
-		// setup our mpeg-ts io handler
-		MpegTsIoHandler outputHandler = new MpegTsIoHandler(outputUrl, facade);
+		// setup the io handler for the segment format
+		segmentFormat = facade.getSegmentFormat();
+		if (segmentFormat == SegmentFormat.FMP4) {
+			outputHandler = new Mp4IoHandler(outputUrl, facade);
+		} else if (segmentFormat == SegmentFormat.AAC) {
+			outputHandler = new AdtsIoHandler(outputUrl, facade);
+		} else {
+			outputHandler = new MpegTsIoHandler(outputUrl, facade);
+		}
 		MpegTsHandlerFactory.getFactory().registerStream(outputHandler, outputStreamInfo);
 		// create a container
 		container = IContainer.make();
 		log.trace("Container buffer length: {}", container.getInputBufferLength());
 		// create format 
 		containerFormat = IContainerFormat.make();
-		containerFormat.setOutputFormat("mpegts", outputUrl, null);
+		containerFormat.setOutputFormat(segmentFormat.getMuxer(), outputUrl, null);
+		SegmentTrack audioTrack = facade.getAudioTrack();
+		if (audioTrack != null) {
+			// the audio gets a muxer of its own, so each track's fragments and init segment carry a single media type
+			audioOutputUrl = outputUrl + SegmentTrack.AUDIO_SUFFIX;
+			audioOutputHandler = new Mp4IoHandler(audioOutputUrl, facade, audioTrack);
+			ISimpleMediaFile audioStreamInfo = new SimpleMediaFile();
+			audioStreamInfo.setURL(audioOutputUrl);
+			audioStreamInfo.setHasAudio(true);
+			audioStreamInfo.setHasVideo(false);
+			MpegTsHandlerFactory.getFactory().registerStream(audioOutputHandler, audioStreamInfo);
+			audioContainer = IContainer.make();
+			audioContainerFormat = IContainerFormat.make();
+			audioContainerFormat.setOutputFormat(segmentFormat.getMuxer(), audioOutputUrl, null);
+		}
 	}
 
 	/** 
@@ -181,8 +313,8 @@ public class HLSStreamWriter implements IStreamWriter {
 		if (sampleRate <= 0) {
 			throw new IllegalArgumentException("Invalid sample rate " + sampleRate);
 		}
-		// add the new stream at the correct index
-		audioStream = container.addNewStream(streamId);
+		// add the new stream at the correct index, in the audio's own container if it has one
+		audioStream = (audioContainer != null ? audioContainer : container).addNewStream(streamId);
 		if (audioStream == null) {
 			throw new RuntimeException("Unable to create stream id " + streamId + ", codec " + codec);
 		}
@@ -190,6 +322,10 @@ public class HLSStreamWriter implements IStreamWriter {
 		audioCoder = audioStream.getStreamCoder();
 		audioCoder.setStandardsCompliance(IStreamCoder.CodecStandardsCompliance.COMPLIANCE_EXPERIMENTAL);
 		audioCoder.setCodec(codec);
+		if (segmentFormat.hasGlobalHeader()) {
+			// the decoder configuration goes in the init segment or the adts headers rather than in band
+			audioCoder.setFlag(IStreamCoder.Flags.FLAG_GLOBAL_HEADER, true);
+		}
 		audioCoder.setTimeBase(IRational.make(1, sampleRate));
 		audioCoder.setChannels(channelCount);
 		audioCoder.setSampleRate(sampleRate);
@@ -258,6 +394,10 @@ public class HLSStreamWriter implements IStreamWriter {
 		videoCoder = videoStream.getStreamCoder();
 		videoCoder.setStandardsCompliance(IStreamCoder.CodecStandardsCompliance.COMPLIANCE_EXPERIMENTAL);
 		videoCoder.setCodec(codec);
+		if (segmentFormat.hasInitSegment()) {
+			// sps and pps go in the init segment rather than in band
+			videoCoder.setFlag(IStreamCoder.Flags.FLAG_GLOBAL_HEADER, true);
+		}
 		IRational timeBase = IRational.make(frameRate.getDenominator(), frameRate.getNumerator());
 		videoCoder.setTimeBase(timeBase);
 		timeBase.delete();
@@ -266,28 +406,26 @@ public class HLSStreamWriter implements IStreamWriter {
 		videoCoder.setHeight(height);
 		videoCoder.setPixelType(IPixelFormat.Type.YUV420P);
 		if (videoCoder.getCodecID().equals(ICodec.ID.CODEC_ID_H264)) {
-			log.debug("H.264 codec detected, attempting configure with preset file");
+			log.debug("H.264 codec detected, attempting configure with encoder profile: {}", encoderProfile.getName());
 			videoCoder.setFlag(IStreamCoder.Flags.FLAG_QSCALE, false);
-			try {
-				InputStream in = SegmenterService.class.getResourceAsStream("mpegts-ipod320.properties");
-				Properties props = new Properties();
-				props.load(in);
-				int retval = Configuration.configure(props, videoCoder);
-				if (retval < 0) {
-					throw new RuntimeException("Could not configure coder from preset file");
+			int retval = Configuration.configure(encoderProfile.getOptions(), videoCoder);
+			if (retval < 0) {
+				throw new RuntimeException("Could not configure coder from encoder profile " + encoderProfile.getName());
+			}
+			// preset and tune are private to libx264, a build which cannot reach them through the coder keeps its defaults
+			Properties privateOptions = encoderProfile.getPrivateOptions();
+			for (String key : privateOptions.stringPropertyNames()) {
+				if (videoCoder.setProperty(key, privateOptions.getProperty(key)) < 0) {
+					log.warn("Encoder profile {} option {} not accepted by the coder, ignored", encoderProfile.getName(), key);
 				}
-				videoCoder.setProperty("nr", 0);
-				videoCoder.setProperty("mbd", 0);
-				// g / gop should be less than a segment so at least one key frame is in a segment
-				int gops = (int) (frameRate.getValue() / (facade.getSegmentTimeLimit() / 1000)); // (fps / segment length) == gops
-				videoCoder.setProperty("g", gops);
-				videoCoder.setNumPicturesInGroupOfPictures(gops);
-				// previously used with mpeg-ts
-				videoCoder.setProperty("level", 30);
-				videoCoder.setProperty("async", 2);
-			} catch (IOException e) {
-				log.warn("Exception attempting to configure", e);
 			}
+			videoCoder.setProperty("nr", 0);
+			videoCoder.setProperty("mbd", 0);
+			// g / gop should be less than a segment so at least one key frame is in a segment
+			int gops = (int) (frameRate.getValue() / (facade.getSegmentTimeLimit() / 1000)); // (fps / segment length) == gops
+			videoCoder.setProperty("g", gops);
+			videoCoder.setNumPicturesInGroupOfPictures(gops);
+			videoBitRate = encoderProfile.getVideoBitRate();
 		} else if (videoCoder.getCodecID().equals(ICodec.ID.CODEC_ID_THEORA)) {
 			log.debug("Theora codec detected, attempting configure with presets");
 			videoCoder.setFlag(IStreamCoder.Flags.FLAG_QSCALE, false);
@@ -318,8 +456,15 @@ public class HLSStreamWriter implements IStreamWriter {
 		return videoStream.getIndex();
 	}
 
-	private long audioTs;
-
+	/**
+	 * Queues audio samples for encoding. Samples are accumulated and handed to the coder in blocks of exactly one codec frame,
+	 * so the coder is called once per frame and never sees a partial frame. Timestamps are derived from the number of samples
+	 * encoded since the first timestamp received.
+	 * 
+	 * @param samples interleaved 16 bit samples
+	 * @param timeStamp
+	 * @param timeUnit
+	 */
 	public void encodeAudio(short[] samples, long timeStamp, TimeUnit timeUnit) {
 		log.debug("encodeAudio {}", outputUrl);
 		// verify parameters
@@ -329,84 +474,128 @@ public class HLSStreamWriter implements IStreamWriter {
 		if (IAudioSamples.Format.FMT_S16 != audioCoder.getSampleFormat()) {
 			throw new IllegalArgumentException("stream is not 16 bit audio");
 		}
-		// establish the number of samples
-		long sampleCount = samples.length / audioCoder.getChannels();
-		// XXX dont encode until we have 2048 total samples (2048 mono / 4096 stereo)
-		audioTs += samples.length;
-		log.trace("Audio pts using samples: {} {}", audioTs, (audioCoder.getChannels() * 2));
-		// create the audio samples object and extract the internal buffer as an array
-		IAudioSamples audioFrame = IAudioSamples.make(sampleCount, audioCoder.getChannels());
-		// We allow people to pass in a null timeUnit for audio as a signal that time stamps are unknown.  This is a common
-		// case for audio data, and Xuggler should handle it if we set a invalid time stamp on the audio.
-		final long timeStampMicro;
-		if (timeUnit == null) {
-			timeStampMicro = Global.NO_PTS;
-		} else {
-			timeStampMicro = MICROSECONDS.convert(timeStamp, timeUnit);
+		setAudioStartTime(timeStamp, timeUnit);
+		audioAccumulator.write(samples, 0, samples.length);
+		encodeAudioFrames();
+	}
+
+	/**
+	 * Encodes the complete frames which have been written to the audio buffer by the facade.
+	 */
+	public void encodeAudio() {
+		if (audioStartTime != Global.NO_PTS) {
+			encodeAudioFrames();
+		}
+	}
+
+	/**
+	 * Sets the time of the first audio; later calls are ignored. Must be called before samples are written to the audio
+	 * buffer.
+	 * 
+	 * @param timeStamp
+	 * @param timeUnit null if time stamps are unknown
+	 */
+	public void setAudioStartTime(long timeStamp, TimeUnit timeUnit) {
+		// the first time stamp anchors the sample clock; a null timeUnit signals that time stamps are unknown
+		if (audioStartTime == Global.NO_PTS) {
+			audioStartTime = timeUnit == null ? 0L : MICROSECONDS.convert(timeStamp, timeUnit);
+			log.debug("Audio start time: {} us", audioStartTime);
 		}
-		// put the samples into the frame
-		audioFrame.put(samples, 0, 0, samples.length);
-		// set complete
-		audioFrame.setComplete(true, sampleCount, audioCoder.getSampleRate(), audioCoder.getChannels(), audioCoder.getSampleFormat(), audioTs / (audioCoder.getChannels() * 2));
-		for (int consumed = 0; consumed < audioFrame.getNumSamples();) {
+	}
+
+	/**
+	 * Sets the buffer that audio frames are taken from. Must be set before {@link #start()}; if none is set the writer creates
+	 * one holding a second of audio.
+	 * 
+	 * @param audioBuffer
+	 */
+	public void setAudioBuffer(PcmRingBuffer audioBuffer) {
+		this.audioAccumulator = audioBuffer;
+	}
+
+	/**
+	 * @return number of interleaved samples in one frame of the audio coder, 0 until the writer is started
+	 */
+	public int getAudioFrameLength() {
+		return audioFrameSamples != null ? audioFrameSamples.length : 0;
+	}
+
+	/**
+	 * @return samples per channel lost to audio buffer overruns, which the audio pts skips over
+	 */
+	public long getAudioSamplesDropped() {
+		return audioSamplesDropped;
+	}
+
+	/**
+	 * @return packets waiting for the mux stage, in the interleaver and in the mux queue
+	 */
+	public int getMuxBacklog() {
+		BlockingQueue<IPacket> queue = muxQueue;
+		return getInterleavedPackets() + (queue != null ? queue.size() : 0);
+	}
+
+	/**
+	 * @return packets held by the interleaver waiting for the other stream
+	 */
+	public int getInterleavedPackets() {
+		return interleaver != null ? interleaver.size() : 0;
+	}
+
+	/**
+	 * Encodes every complete frame held in the accumulator.
+	 */
+	private void encodeAudioFrames() {
+		int channels = audioCoder.getChannels();
+		int sampleRate = audioCoder.getSampleRate();
+		int frameLength = audioFrameSize * channels;
+		while (audioAccumulator.available() >= frameLength) {
+			audioAccumulator.read(audioFrameSamples, 0, frameLength);
+			// samples discarded on overrun still took up time, count them so audio stays in step with video
+			long position = audioAccumulator.getLastReadPosition() / channels;
+			if (position > audioSamplesEncoded) {
+				long lost = position - audioSamplesEncoded;
+				audioSamplesDropped += lost;
+				audioSamplesEncoded = position;
+				log.warn("Audio buffer overrun, {} samples lost, pts advanced by {} us", lost, lost * 1000000L / sampleRate);
+			}
+			// pts in microseconds from the count of samples already taken from the accumulator
+			long pts = audioStartTime + (audioSamplesEncoded * 1000000L / sampleRate);
+			audioSamplesEncoded += audioFrameSize;
+			// get an audio samples object from the pool and put the frame into it
+			IAudioSamples audioFrame = pool.getAudioSamples(audioFrameSize, channels);
+			audioFrame.put(audioFrameSamples, 0, 0, frameLength);
+			audioFrame.setComplete(true, audioFrameSize, sampleRate, channels, audioCoder.getSampleFormat(), pts);
 			// convert the samples into a packet
-			IPacket audioPacket = IPacket.make();
+			IPacket audioPacket = pool.getPacket();
 			// encode
-			int result = audioCoder.encodeAudio(audioPacket, audioFrame, consumed);
+			long start = System.nanoTime();
+			int result = audioCoder.encodeAudio(audioPacket, audioFrame, 0);
+			long elapsed = System.nanoTime() - start;
+			averageAudioEncodeTime += (elapsed - averageAudioEncodeTime) / 8;
+			pipeline.record(Stage.ENCODE, elapsed);
 			//System.out.printf("Flags a: %08x\n", audioCoder.getFlags());
 			if (result < 0) {
 				log.error("Failed to encode audio: {} samples: {}", getErrorMessage(result), audioFrame);
-				audioPacket.delete();
-				break;
-			}
-			consumed += result;
-			audioComplete = audioPacket.isComplete();
-			if (audioComplete) {
-				log.trace("Audio timestamp {} us sample time: {}", timeStampMicro, (audioTs / 4) / 44.100);
-				// write the packet
-				writePacket(audioPacket);
-				// add the duration of our audio
-				double dur = (timeStampMicro + audioPacket.getDuration() - prevAudioTime) / 1000000d;
-				audioDuration += dur;
-				log.trace("Duration - audio: {}", dur);
-				prevAudioTime = timeStampMicro;
-				audioPacket.delete();
+				pool.release(audioPacket);
 			} else {
-				log.warn("Audio packet was not complete");
-			}
-		}
-		audioFrame.delete();
-
-		/**
-		// convert the samples into a packet
-		IPacket audioPacket = IPacket.make();
-		for (int consumed = 0; consumed < audioFrame.getNumSamples(); ) {
-			while ((consumed < audioFrame.getNumSamples()) && (!audioPacket.isComplete())) {
-				int result = audioCoder.encodeAudio(audioPacket, audioFrame, consumed);
-				//System.out.printf("Flags a: %08x\n", audioCoder.getFlags());
-				if (result < 0) {
-					log.error("Failed to encode audio: {} samples: {}", getErrorMessage(result), audioFrame);
-					audioPacket.delete();
-					return;
-				}
-				consumed += result;
 				audioComplete = audioPacket.isComplete();
+				if (audioComplete) {
+					log.trace("Audio timestamp {} us", pts);
+					if (audioContainer != null) {
+						// tells the audio apart from the video, both being the first stream of their containers
+						audioPacket.setStreamIndex(audioIndex);
+					}
+					// write the packet, it is released once the interleaver hands it to the container
+					writePacket(audioPacket);
+				} else {
+					// the coder is still filling its delay line
+					log.trace("Audio packet was not complete");
+					pool.release(audioPacket);
+				}
 			}
-			if (audioComplete) {				
-				log.trace("Audio timestamp {} us", timeStampMicro);
-				// write the packet
-				writePacket(audioPacket);
-				// add the duration of our audio
-				double dur = (timeStampMicro + audioPacket.getDuration() - prevAudioTime) / 1000000d;
-				audioDuration += dur;
-				log.trace("Duration - audio: {}", dur);
-				prevAudioTime = timeStampMicro;
-				audioPacket.delete();
-			} else {
-				log.warn("Audio packet was not complete");
-			}
+			pool.release(audioFrame);
 		}
-		*/
 	}
 
 	public void encodeVideo(IVideoPicture picture) {
@@ -417,13 +606,17 @@ public class HLSStreamWriter implements IStreamWriter {
 		log.debug("encodeVideo {}", outputUrl);
 		// establish the stream, return silently if no stream returned
 		if (null != picture) {
-			IPacket videoPacket = IPacket.make();
+			IPacket videoPacket = pool.getPacket();
 			// encode video picture
+			long start = System.nanoTime();
 			int result = videoCoder.encodeVideo(videoPacket, picture, 0);
+			long elapsed = System.nanoTime() - start;
+			averageVideoEncodeTime += (elapsed - averageVideoEncodeTime) / 8;
+			pipeline.record(Stage.ENCODE, elapsed);
 			//System.out.printf("Flags v: %08x\n", videoCoder.getFlags());
 			if (result < 0) {
 				log.error("{} Failed to encode video: {} picture: {}", new Object[] { result, getErrorMessage(result), picture });
-				videoPacket.delete();
+				pool.release(videoPacket);
 				return;
 			}
 			videoComplete = videoPacket.isComplete();
@@ -435,18 +628,11 @@ public class HLSStreamWriter implements IStreamWriter {
 					timeStampMicro = MICROSECONDS.convert(timeStamp, timeUnit);
 				}
 				log.trace("Video timestamp {} us", timeStampMicro);
-				// write packet
+				// write packet, it is released once the interleaver hands it to the container
 				writePacket(videoPacket);
-				// add the duration of our video
-				double dur = (timeStampMicro + videoPacket.getDuration() - prevVideoTime) / 1000000d;
-				videoDuration += dur;
-				log.trace("Duration - video: {}", dur);
-				//double videoPts = (double) videoPacket.getDuration() * videoCoder.getTimeBase().getNumerator() / videoCoder.getTimeBase().getDenominator();
-				//log.trace("Video pts - calculated: {} reported: {}", videoPts, videoPacket.getPts());
-				prevVideoTime = timeStampMicro;
-				videoPacket.delete();
 			} else {
 				log.warn("Video packet was not complete");
+				pool.release(videoPacket);
 			}
 		} else {
 			throw new IllegalArgumentException("No picture");
@@ -454,41 +640,194 @@ public class HLSStreamWriter implements IStreamWriter {
 	}
 
 	/**
-	 * Write packet to the output container
+	 * Queue a packet for the output container; packets are written in dts order once the interleaver releases them.
 	 * 
 	 * @param packet the packet to write out
 	 */
 	private void writePacket(IPacket packet) {
+		interleaver.add(packet);
+		IPacket next;
+		while ((next = interleaver.poll(false)) != null) {
+			mux(next);
+		}
+	}
+
+	/**
+	 * Hands an interleaved packet to the mux stage: written at once, or queued for the mux task when there is one. A full
+	 * queue makes the encoder wait rather than lose a packet of the encoded stream, for as long as the mux task runs; should it
+	 * have ended, what it left queued and the packet are written on this thread from then on.
+	 * 
+	 * @param packet the packet to write out
+	 */
+	private void mux(IPacket packet) {
+		if (muxQueue == null) {
+			writeInterleavedPacket(packet);
+		} else {
+			try {
+				while (!muxQueue.offer(packet, 100L, TimeUnit.MILLISECONDS)) {
+					if (muxTask.isDone()) {
+						log.warn("Mux task of {} has ended, muxing on the encoder's thread", outputUrl);
+						endMux();
+						writeInterleavedPacket(packet);
+						break;
+					}
+				}
+			} catch (InterruptedException e) {
+				log.warn("Interrupted queueing a packet for the muxer of {}", outputUrl);
+				pool.release(packet);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Lets the mux task write what is queued and waits for it to end; the container is then used from this thread again, and
+	 * writes whatever the task left queued if it ended early.
+	 */
+	private void endMux() {
+		if (muxTask != null) {
+			muxEnding = true;
+			// the container must not be touched while the task may still use it, so an interrupt does not end the wait
+			boolean interrupted = false;
+			while (true) {
+				try {
+					muxTask.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					log.warn("Exception in the mux task of {}", outputUrl, e.getCause());
+					break;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			BlockingQueue<IPacket> queue = muxQueue;
+			muxTask = null;
+			muxQueue = null;
+			IPacket packet;
+			while ((packet = queue.poll()) != null) {
+				try {
+					writeInterleavedPacket(packet);
+				} catch (Exception e) {
+					log.warn("Exception muxing a packet for {}", outputUrl, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write packet to the output container. The container is flushed once per flush interval of media time rather than per
+	 * packet; segments are split by the output handler at key frames.
+	 * 
+	 * @param packet the packet to write out
+	 */
+	private void writeInterleavedPacket(IPacket packet) {
 		log.trace("write packet - duration: {} timestamp: {}", packet.getDuration(), packet.getTimeStamp());
-		if (createNewSegment()) {
-			log.trace("New segment created: {}", facade.getActiveSegmentIndex());
+		// the container hands data to the segments from within these calls, so store time is taken out of mux time
+		long start = System.nanoTime();
+		long storeTime = pipeline.getMetrics(Stage.STORE).getTotalTime();
+		try {
+			long dts = interleaver.getDts(packet);
+			IContainer output = container;
+			if (audioContainer != null && packet.getStreamIndex() == audioIndex) {
+				packet.setStreamIndex(audioStream.getIndex());
+				output = audioContainer;
+			}
+			if (output.writePacket(packet, forceInterleave) < 0) {
+				log.warn("Failed to write packet: {} force interleave: {}", packet, forceInterleave);
+			}
+			packetsWritten++;
+			if (dts - lastFlushDts >= flushInterval * 1000L) {
+				flushContainer();
+				lastFlushDts = dts;
+			}
+			pipeline.record(Stage.MUX, System.nanoTime() - start - (pipeline.getMetrics(Stage.STORE).getTotalTime() - storeTime));
+		} finally {
+			// the packet goes back to the pool even when the container throws
+			pool.release(packet);
 		}
-		if (container.writePacket(packet, forceInterleave) < 0) {
-			log.warn("Failed to write packet: {} force interleave: {}", packet, forceInterleave);
+		if (log.isDebugEnabled()) {
+			long now = System.currentTimeMillis();
+			if (now - lastPoolStats >= 10000L) {
+				log.debug("Native allocations/s: {} {} pool size: {}", new Object[] { pool.getAllocationsPerSecond(), pool, nativePoolSize });
+				log.debug("Packets written: {} container flushes: {}", packetsWritten, containerFlushes);
+				if (audioAccumulator != null) {
+					log.debug("Audio frames encoded: {} samples lost: {} accumulator: {}", new Object[] { (audioSamplesEncoded - audioSamplesDropped) / audioFrameSize, audioSamplesDropped, audioAccumulator });
+				}
+				log.debug("{}", pipeline);
+				lastPoolStats = now;
+			}
 		}
+	}
+
+	/**
+	 * Flushes packets buffered in the container to the output handler.
+	 */
+	private void flushContainer() {
 		container.flushPackets();
-		//packet.delete();
+		if (audioContainer != null) {
+			audioContainer.flushPackets();
+		}
+		containerFlushes++;
 	}
 
 	public void open() {
 		log.debug("open {}", outputUrl);
+		openContainer(container, outputUrl, containerFormat, false);
+		if (audioContainer != null) {
+			openContainer(audioContainer, audioOutputUrl, audioContainerFormat, true);
+		}
+	}
+
+	/**
+	 * Opens a container for writing with the options of the segment format.
+	 * 
+	 * @param output container to open
+	 * @param url
+	 * @param format
+	 * @param audioTrack true for the container of an audio track written apart from the video
+	 */
+	private void openContainer(IContainer output, String url, IContainerFormat format, boolean audioTrack) {
 		// create metadata
 		IMetaData meta = IMetaData.make();
 		meta.setValue("service_provider", "Red5 HLS");
-		meta.setValue("title", outputUrl.substring(outputUrl.indexOf(':') + 1));
+		meta.setValue("title", url.substring(url.indexOf(':') + 1));
 		meta.setValue("map", "0");
 		meta.setValue("segment_time", "" + facade.getSegmentTimeLimit() / 1000);
-		meta.setValue("segment_format", "mpegts");
+		meta.setValue("segment_format", segmentFormat.getMuxer());
+		if (segmentFormat == SegmentFormat.FMP4) {
+			// an empty moov followed by a fragment per key frame, written without seeking
+			meta.setValue("movflags", "frag_keyframe+empty_moov");
+			if (audioTrack) {
+				// audio has no key frames to start fragments at, so they are cut by time, four to a segment
+				meta.setValue("frag_duration", "" + facade.getSegmentTimeLimit() * 1000L / 4L);
+			}
+		} else if (segmentFormat == SegmentFormat.MPEGTS) {
+			// several audio frames per PES and fewer PCRs, options the muxer does not know are reported below
+			if (pesPayloadSize > 0) {
+				meta.setValue("pes_payload_size", "" + pesPayloadSize);
+			}
+			if (pesMaxDelay > 0L) {
+				meta.setValue("max_delay", "" + pesMaxDelay * 1000L);
+			}
+			if (pcrInterval > 0L) {
+				meta.setValue("pcr_period", "" + pcrInterval);
+			}
+		}
 		//meta.setValue("reset_timestamps", "0"); // 1 or 0
 		IMetaData metaFail = IMetaData.make();
 		// open the container
-		if (container.open(outputUrl, IContainer.Type.WRITE, containerFormat, true, false, meta, metaFail) < 0) {
-			throw new IllegalArgumentException("Could not open: " + outputUrl);
+		if (output.open(url, IContainer.Type.WRITE, format, true, false, meta, metaFail) < 0) {
+			throw new IllegalArgumentException("Could not open: " + url);
 		} else {
-			if (log.isTraceEnabled()) {
-				if (metaFail.getNumKeys() > 0) {
-					Collection<String> keys = metaFail.getKeys();
-					for (String key : keys) {
+			if (metaFail.getNumKeys() > 0) {
+				Collection<String> keys = metaFail.getKeys();
+				for (String key : keys) {
+					if (MUXER_OPTIONS.contains(key)) {
+						log.warn("Muxer of {} does not support {}, the output is written without it", url, key);
+					} else {
 						log.trace("Failed to set {}", key);
 					}
 				}
@@ -527,6 +866,45 @@ public class HLSStreamWriter implements IStreamWriter {
 			}
 			log.debug("Video coder opened");
 		}
+		// size the native object pool from the opened coders
+		pool = new NativeObjectPool(nativePoolSize);
+		if (outputStreamInfo.hasAudio()) {
+			// the frame size is known once the coder is open; fall back to the codec defaults if it does not report one
+			audioFrameSize = audioCoder.getAudioFrameSize();
+			if (audioFrameSize <= 0) {
+				audioFrameSize = ICodec.ID.CODEC_ID_MP3.equals(audioCoder.getCodecID()) ? 1152 : 1024;
+			}
+			int channels = audioCoder.getChannels();
+			log.debug("Audio frame size: {}", audioFrameSize);
+			pool.setAudioFormat(audioFrameSize, channels);
+			audioFrameSamples = new short[audioFrameSize * channels];
+			if (audioAccumulator == null) {
+				// hold up to a second of audio, and never less than a few frames
+				audioAccumulator = new PcmRingBuffer(Math.max(audioCoder.getSampleRate(), audioFrameSize * 4) * channels);
+			}
+		}
+		if (outputStreamInfo.hasVideo()) {
+			pool.setPictureFormat(videoCoder.getPixelType(), videoCoder.getWidth(), videoCoder.getHeight());
+		}
+		// packets leave the coders in their time base, which the interleaver needs to compare them; audio written apart follows
+		// the streams of the video container
+		int streamCount = container.getNumStreams();
+		if (audioContainer != null) {
+			audioIndex = streamCount++;
+		} else if (outputStreamInfo.hasAudio()) {
+			audioIndex = audioStream.getIndex();
+		}
+		interleaver = new PacketInterleaver(streamCount, maxInterleaveDelay * 1000L);
+		if (outputStreamInfo.hasAudio()) {
+			IRational timeBase = audioCoder.getTimeBase();
+			interleaver.setTimeBase(audioIndex, timeBase.getNumerator(), timeBase.getDenominator());
+			timeBase.delete();
+		}
+		if (outputStreamInfo.hasVideo()) {
+			IRational timeBase = videoCoder.getTimeBase();
+			interleaver.setTimeBase(videoStream.getIndex(), timeBase.getNumerator(), timeBase.getDenominator());
+			timeBase.delete();
+		}
 		// write the header
 		rv = container.writeHeader();
 		if (rv >= 0) {
@@ -534,6 +912,21 @@ public class HLSStreamWriter implements IStreamWriter {
 		} else {
 			throw new RuntimeException("Error " + IError.make(rv) + ", failed to write header to container " + container);
 		}
+		if (audioContainer != null) {
+			rv = audioContainer.writeHeader();
+			if (rv >= 0) {
+				log.debug("Wrote header {}", audioOutputUrl);
+			} else {
+				throw new RuntimeException("Error " + IError.make(rv) + ", failed to write header to container " + audioContainer);
+			}
+		}
+		// from here on the container may be driven by the mux task
+		if (muxExecutor != null) {
+			muxQueue = new ArrayBlockingQueue<IPacket>(muxQueueSize);
+			muxTask = new FutureTask<Void>(new MuxTask(), null);
+			muxExecutor.execute(muxTask);
+			log.debug("Mux and store run on their own task, queue: {} packets", muxQueueSize);
+		}
 	}
 
 	/** 
@@ -544,45 +937,60 @@ public class HLSStreamWriter implements IStreamWriter {
 		// flush coders
 		if (outputStreamInfo.hasAudio()) {
 			if (audioCoder.isOpen()) {
-				IPacket packet = IPacket.make();
+				IPacket packet = pool.getPacket();
 				while (!packet.isComplete()) {
 					if (audioCoder.encodeAudio(packet, null, 0) < 0) {
 						break;
 					}
 				}
-				packet.delete();
+				pool.release(packet);
 			}
 		}
 		// flush video coder
 		if (outputStreamInfo.hasVideo()) {
 			if (videoCoder.isOpen()) {
 				log.debug("Dropped frames: {} predicted pts: {}", videoCoder.getNumDroppedFrames(), videoCoder.getNextPredictedPts());
-				IPacket packet = IPacket.make();
+				IPacket packet = pool.getPacket();
 				while (!packet.isComplete()) {
 					if (videoCoder.encodeVideo(packet, null, 0) < 0) {
 						break;
 					}
 				}
-				packet.delete();
+				pool.release(packet);
 			}
 		}
+		// write out anything held for interleaving
+		IPacket packet;
+		while ((packet = interleaver.poll(true)) != null) {
+			mux(packet);
+		}
+		endMux();
 		// flush the container
-		container.flushPackets();
+		flushContainer();
 	}
 
 	/** {@inheritDoc} */
 	public void close() {
 		log.debug("close {}", outputUrl);
-		MpegTsHandlerFactory.getFactory().deleteStream(outputUrl);
+		// a writer restarted for the stream may have registered the url again meanwhile
+		MpegTsHandlerFactory.getFactory().deleteStream(outputUrl, outputHandler);
+		if (audioOutputHandler != null) {
+			MpegTsHandlerFactory.getFactory().deleteStream(audioOutputUrl, audioOutputHandler);
+		}
 		int rv;
-		// flush coders
-		flush();
+		// flush coders, unless start() failed before they could be used
+		if (pool != null) {
+			flush();
+		}
 		// write the trailer on the output container
 		if ((rv = container.writeTrailer()) < 0) {
 			log.error("Error {}, failed to write trailer to {}", IError.make(rv), outputUrl);
 		}
+		if (audioContainer != null && (rv = audioContainer.writeTrailer()) < 0) {
+			log.error("Error {}, failed to write trailer to {}", IError.make(rv), audioOutputUrl);
+		}
 		// close the coders opened by this MediaWriter
-		if (outputStreamInfo.hasVideo()) {
+		if (outputStreamInfo.hasVideo() && videoCoder != null) {
 			try {
 				if ((rv = videoCoder.close()) < 0) {
 					log.error("Error {}, failed close coder {}", getErrorMessage(rv), videoCoder);
@@ -591,7 +999,7 @@ public class HLSStreamWriter implements IStreamWriter {
 				videoCoder.delete();
 			}
 		}
-		if (outputStreamInfo.hasAudio()) {
+		if (outputStreamInfo.hasAudio() && audioCoder != null) {
 			try {
 				if ((rv = audioCoder.close()) < 0) {
 					log.error("Error {}, failed close coder {}", getErrorMessage(rv), audioCoder);
@@ -600,7 +1008,15 @@ public class HLSStreamWriter implements IStreamWriter {
 				audioCoder.delete();
 			}
 		}
+		// free any pooled native objects
+		log.debug("Native object pool on close: {}", pool);
+		if (pool != null) {
+			pool.dispose();
+		}
 		// if we're supposed to, close the container
+		if (audioContainer != null && (rv = audioContainer.close()) < 0) {
+			log.error("Error {}, failed close IContainer {} for {}", new Object[] { IError.make(rv), audioContainer, audioOutputUrl });
+		}
 		if ((rv = container.close()) < 0) {
 			throw new RuntimeException("error " + IError.make(rv) + ", failed close IContainer " + container + " for " + outputUrl);
 		}
@@ -612,39 +1028,114 @@ public class HLSStreamWriter implements IStreamWriter {
 			segment.setLast(true);
 			segment.close();
 		}
+		if (facade.getAudioTrack() != null) {
+			facade.getAudioTrack().end();
+		}
 	}
 
 	/**
-	 * Decides whether or not to create a new segment based on the current duration of audio or video.
+	 * Returns the pool of native objects used by this writer; only available after {@link #start()}.
 	 * 
-	 * @return true if a new segment is created and false otherwise
+	 * @return pool
 	 */
-	private boolean createNewSegment() {
-		// get the current segment, if one exists
-		Segment segment = facade.getSegment();
-		if (segment != null) {
-			log.trace("Segment returned, check durations");
-			// convert segment limit to seconds
-			double limit = facade.getSegmentTimeLimit() / 1000d;
-			log.debug("Segment limit: {} audio: {} video: {}", limit, audioDuration, videoDuration);
-			if (audioDuration > limit || videoDuration > limit) {
-				log.trace("Duration matched, create new segment");
-				// use the greatest of the two durations
-				segment.setDuration(Math.max(audioDuration, videoDuration));
-				// reset
-				audioDuration -= audioDuration;
-				videoDuration -= videoDuration;
-				// create new segment
-				facade.createSegment();
-				return true;
-			}
-		} else {
-			log.trace("No segment returned, create first segment");
-			// first segment
-			facade.createSegment();
-			return true;
+	public NativeObjectPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Returns a moving average of the time spent encoding a picture.
+	 * 
+	 * @return encode time in nanoseconds
+	 */
+	public long getAverageVideoEncodeTime() {
+		return averageVideoEncodeTime;
+	}
+
+	/**
+	 * Returns a moving average of the time spent encoding a frame of audio.
+	 * 
+	 * @return encode time in nanoseconds
+	 */
+	public long getAverageAudioEncodeTime() {
+		return averageAudioEncodeTime;
+	}
+
+	/**
+	 * Sets the encoder profile used to configure an H.264 coder. Must be set before {@link #addVideoStream}.
+	 * 
+	 * @param encoderProfile
+	 */
+	public void setEncoderProfile(EncoderProfile encoderProfile) {
+		this.encoderProfile = encoderProfile;
+	}
+
+	/**
+	 * Sets the number of packets, samples and pictures to keep for reuse. Must be set before {@link #start()}.
+	 * 
+	 * @param nativePoolSize maximum pooled objects of each type, zero to disable pooling
+	 */
+	public void setNativePoolSize(int nativePoolSize) {
+		this.nativePoolSize = nativePoolSize;
+	}
+
+	/**
+	 * Sets the maximum time a packet is held waiting for packets of the other stream. Must be set before {@link #start()}.
+	 * 
+	 * @param maxInterleaveDelay delay in milliseconds
+	 */
+	public void setMaxInterleaveDelay(long maxInterleaveDelay) {
+		this.maxInterleaveDelay = maxInterleaveDelay;
+	}
+
+	/**
+	 * Runs the mux and store stages on a task of their own, fed through a bounded queue, instead of on the thread encoding.
+	 * The task runs for the life of the stream, so the executor must not queue it. Must be set before {@link #start()}.
+	 * 
+	 * @param muxExecutor executor for the mux task, null to mux on the encoding thread
+	 * @param muxQueueSize packets queued before the encoder waits for the muxer
+	 */
+	public void setMuxExecutor(Executor muxExecutor, int muxQueueSize) {
+		if (muxQueueSize <= 0) {
+			throw new IllegalArgumentException("Invalid mux queue size " + muxQueueSize);
 		}
-		return false;
+		this.muxExecutor = muxExecutor;
+		this.muxQueueSize = muxQueueSize;
+	}
+
+	/**
+	 * Sets the amount of media time written between container flushes.
+	 * 
+	 * @param flushInterval interval in milliseconds, zero flushes after every packet
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Sets the most elementary stream bytes packed into one PES of transport stream segments. Must be set before {@link #open()}.
+	 * 
+	 * @param pesPayloadSize size in bytes, zero for the muxer default
+	 */
+	public void setPesPayloadSize(int pesPayloadSize) {
+		this.pesPayloadSize = pesPayloadSize;
+	}
+
+	/**
+	 * Sets the longest audio is held to be packed into one PES of transport stream segments. Must be set before {@link #open()}.
+	 * 
+	 * @param pesMaxDelay delay in milliseconds, zero for the muxer default
+	 */
+	public void setPesMaxDelay(long pesMaxDelay) {
+		this.pesMaxDelay = pesMaxDelay;
+	}
+
+	/**
+	 * Sets the time between PCRs of transport stream segments. Must be set before {@link #open()}.
+	 * 
+	 * @param pcrInterval interval in milliseconds, zero for the muxer default
+	 */
+	public void setPcrInterval(long pcrInterval) {
+		this.pcrInterval = pcrInterval;
 	}
 
 	/**
@@ -670,4 +1161,33 @@ public class HLSStreamWriter implements IStreamWriter {
 		return errorString;
 	}
 
+
+	/**
+	 * Writes the queued packets through the container until the writer is flushed for closing.
+	 */
+	private final class MuxTask implements Runnable {
+
+		public void run() {
+			log.debug("Mux task - start {}", outputUrl);
+			try {
+				while (true) {
+					IPacket packet = muxQueue.poll(100L, TimeUnit.MILLISECONDS);
+					if (packet != null) {
+						try {
+							writeInterleavedPacket(packet);
+						} catch (Exception e) {
+							log.warn("Exception muxing a packet for {}", outputUrl, e);
+						}
+					} else if (muxEnding) {
+						break;
+					}
+				}
+			} catch (InterruptedException e) {
+				log.debug("Mux task - interrupted {}", outputUrl);
+			}
+			log.debug("Mux task - end {}", outputUrl);
+		}
+
+	}
+
 }
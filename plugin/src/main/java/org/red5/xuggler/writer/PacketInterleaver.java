@@ -0,0 +1,147 @@
+/*
+ * RED5 HLS plugin - https://github.com/mondain/red5-hls-plugin
+ * 
+ * Copyright 2006-2013 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.xuggler.writer;
+
+import java.util.ArrayDeque;
+
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.IPacket;
+
+/**
+ * Orders encoded packets from several streams by decode timestamp before they are written to the container. Packets from
+ * a single coder are already in decode order, so one FIFO per stream is kept and the packet with the lowest DTS across the
+ * stream heads is released. A packet is only released once every stream has something queued, unless the oldest packet has
+ * waited longer than the maximum delay (a stream stalled or has ended).
+ *
+ * Not thread-safe; used from the thread which encodes for the writer.
+ *
+ * @author Paul Gregoire (mondain@gmail.com)
+ */
+public class PacketInterleaver {
+
+	private final ArrayDeque<IPacket>[] queues;
+
+	// time base per stream index, kept as primitives to avoid a native IRational per packet
+	private final long[] timeBaseNum;
+
+	private final long[] timeBaseDen;
+
+	// maximum time in microseconds a packet will be held waiting for the other streams
+	private final long maxDelay;
+
+	// highest dts seen across all streams in microseconds
+	private long maxQueuedDts = Long.MIN_VALUE;
+
+	private int size;
+
+	@SuppressWarnings("unchecked")
+	public PacketInterleaver(int streamCount, long maxDelay) {
+		queues = new ArrayDeque[streamCount];
+		for (int i = 0; i < streamCount; i++) {
+			queues[i] = new ArrayDeque<IPacket>();
+		}
+		timeBaseNum = new long[streamCount];
+		timeBaseDen = new long[streamCount];
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Sets the time base of the packets which will be added for the given stream.
+	 *
+	 * @param streamIndex
+	 * @param numerator
+	 * @param denominator
+	 */
+	public void setTimeBase(int streamIndex, int numerator, int denominator) {
+		timeBaseNum[streamIndex] = numerator;
+		timeBaseDen[streamIndex] = denominator;
+	}
+
+	/**
+	 * Adds an encoded packet; the interleaver owns the packet until it is returned from {@link #poll(boolean)}.
+	 *
+	 * @param packet
+	 */
+	public void add(IPacket packet) {
+		queues[packet.getStreamIndex()].add(packet);
+		size++;
+		long dts = getDts(packet);
+		if (dts > maxQueuedDts) {
+			maxQueuedDts = dts;
+		}
+	}
+
+	/**
+	 * Returns the next packet in decode order or null if none may be released yet.
+	 *
+	 * @param drain if true, queued packets are released without waiting for the other streams
+	 * @return packet or null
+	 */
+	public IPacket poll(boolean drain) {
+		if (size == 0) {
+			return null;
+		}
+		int next = -1;
+		long nextDts = Long.MAX_VALUE;
+		boolean waiting = false;
+		for (int i = 0; i < queues.length; i++) {
+			IPacket head = queues[i].peek();
+			if (head != null) {
+				long dts = getDts(head);
+				if (dts < nextDts) {
+					nextDts = dts;
+					next = i;
+				}
+			} else if (timeBaseDen[i] != 0) {
+				// a configured stream with nothing queued
+				waiting = true;
+			}
+		}
+		if (waiting && !drain && (maxQueuedDts - nextDts) < maxDelay) {
+			return null;
+		}
+		size--;
+		return queues[next].poll();
+	}
+
+	/**
+	 * Returns the decode timestamp of a packet in microseconds, falling back to the presentation timestamp when no dts is set.
+	 *
+	 * @param packet
+	 * @return dts in microseconds
+	 */
+	public long getDts(IPacket packet) {
+		int index = packet.getStreamIndex();
+		long ts = packet.getDts();
+		if (ts == Global.NO_PTS) {
+			ts = packet.getPts();
+		}
+		return timeBaseDen[index] == 0 ? ts : ts * timeBaseNum[index] * 1000000L / timeBaseDen[index];
+	}
+
+	/**
+	 * Returns the number of packets being held.
+	 *
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,80 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.red5.service.httpstream.AdmissionController;
+import org.red5.service.httpstream.AdmissionController.Policy;
+import org.red5.service.httpstream.AdmissionController.Status;
+import org.red5.service.httpstream.SegmenterService;
+
+public class AdmissionControllerTest {
+
+	private String started;
+
+	private AdmissionController.Start start = new AdmissionController.Start() {
+		public void start(String profileName) {
+			started = profileName;
+		}
+	};
+
+	@Test
+	public void testQueue() {
+		AdmissionController controller = new AdmissionController(new SegmenterService(), 0.4d);
+		controller.setDefaultStreamCost(0.5d);
+		assertEquals(Status.QUEUED, controller.admit("a", "balanced", start));
+		assertEquals(Status.QUEUED, controller.admit("a", "balanced", start));
+		assertEquals(1, controller.getQueuedCount());
+		// still over budget
+		controller.run();
+		assertNull(started);
+		assertEquals(Status.QUEUED, controller.getStatus("a"));
+		controller.release("a");
+		assertEquals(0, controller.getQueuedCount());
+		assertNull(controller.getStatus("a"));
+	}
+
+	@Test
+	public void testQueueStartsWhenRoom() {
+		AdmissionController controller = new AdmissionController(new SegmenterService(), 1d);
+		controller.setDefaultStreamCost(2d);
+		assertEquals(Status.QUEUED, controller.admit("a", "efficiency", start));
+		// nothing runs, so the estimate is lowered and the queued stream fits
+		controller.setDefaultStreamCost(0.5d);
+		controller.admit("b", "balanced", start);
+		controller.release("b");
+		controller.run();
+		assertEquals(Status.ADMITTED, controller.getStatus("a"));
+		assertEquals(0, controller.getQueuedCount());
+	}
+
+	@Test
+	public void testAdmittedStreamsCountBeforeTheyStart() {
+		AdmissionController controller = new AdmissionController(new SegmenterService(), 1d);
+		controller.setDefaultStreamCost(0.4d);
+		assertEquals(Status.ADMITTED, controller.admit("a", "balanced", start));
+		assertEquals(0.4d, controller.getLoad(), 0.001d);
+		assertEquals(Status.ADMITTED, controller.admit("b", "balanced", start));
+		// neither has a facade yet, but both are counted
+		assertEquals(Status.QUEUED, controller.admit("c", "balanced", start));
+		controller.release("a");
+		controller.run();
+		assertEquals(Status.ADMITTED, controller.getStatus("c"));
+		assertEquals(0.8d, controller.getLoad(), 0.001d);
+	}
+
+	@Test
+	public void testRejectAndDegrade() {
+		AdmissionController controller = new AdmissionController(new SegmenterService(), 1d);
+		controller.setDefaultStreamCost(2d);
+		controller.setPolicy(Policy.REJECT);
+		assertEquals(Status.REJECTED, controller.admit("a", "balanced", start));
+		controller.setPolicy(Policy.DEGRADE);
+		// the default cost applies to the cheaper profile too until streams have been measured
+		assertEquals(Status.REJECTED, controller.admit("b", "balanced", start));
+		controller.setDefaultStreamCost(0.5d);
+		assertEquals(Status.ADMITTED, controller.admit("c", "balanced", start));
+	}
+
+}
@@ -0,0 +1,146 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static test.Mp4Boxes.concat;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
+import org.red5.stream.http.xuggler.AdtsIoHandler;
+import org.red5.stream.util.AdtsFrameParser;
+
+public class AdtsIoHandlerTest {
+
+	// 8kHz, 1024 samples per frame
+	private static final int RATE_8000 = 11;
+
+	private SegmentFixture fixture;
+
+	private SegmentFacade facade;
+
+	@Before
+	public void setUp() throws Exception {
+		fixture = new SegmentFixture(SegmentFormat.AAC, 2000L);
+		facade = fixture.facade;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		fixture.dispose();
+	}
+
+	@Test
+	public void testParserJoinsSplitFrames() {
+		final List<Integer> lengths = new ArrayList<Integer>();
+		AdtsFrameParser parser = new AdtsFrameParser(new AdtsFrameParser.Listener() {
+			public void onFrame(AdtsFrameParser parser, byte[] buf, int offset, int length) {
+				assertEquals(0xff, buf[offset] & 0xff);
+				assertEquals(8000, parser.getSampleRate());
+				assertEquals(2, parser.getChannels());
+				assertEquals(1024, parser.getSamples());
+				lengths.add(length);
+			}
+		});
+		// garbage before the first frame is skipped
+		byte[] stream = concat(new byte[] { 1, 2, 3 }, frame(RATE_8000, 2, 20), frame(RATE_8000, 2, 30), frame(RATE_8000, 2, 40));
+		// split inside a header and inside a frame
+		int offset = 0;
+		for (int length : new int[] { 5, 30, 3, 20 }) {
+			parser.parse(stream, offset, length);
+			offset += length;
+		}
+		assertEquals(1, lengths.size());
+		parser.parse(stream, offset, stream.length - offset);
+		assertEquals(Arrays.asList(27, 37, 47), lengths);
+		assertEquals(1, parser.getSyncErrors());
+		assertEquals(3L, parser.getFrameCount());
+		assertEquals(3L + 27L + 37L, parser.getPosition());
+	}
+
+	@Test
+	public void testSegmentsStartWithTimestamps() throws Exception {
+		AdtsIoHandler handler = new AdtsIoHandler("junit", facade);
+		// 128ms frames, so the 17th starts the second segment
+		byte[][] frames = new byte[20][];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = frame(RATE_8000, 1, 10 + i);
+		}
+		byte[] stream = concat(frames);
+		int split = stream.length / 2 + 3;
+		handler.onHeader();
+		handler.write(stream, 0, split);
+		handler.write(stream, split, stream.length - split);
+		handler.onEndOfStream();
+		Segment first = facade.getSegment(0);
+		Segment second = facade.getSegment();
+		assertEquals(1, second.getIndex());
+		assertEquals(2.048d, first.getDuration(), 0.0001d);
+		assertEquals(0d, first.getStartTime(), 0.0001d);
+		assertEquals(2.048d, second.getStartTime(), 0.0001d);
+		assertEquals(0.512d, second.getDuration(), 0.0001d);
+		assertTrue(second.isLast());
+		// each segment is its timestamp tag followed by whole frames
+		byte[] tag = AdtsIoHandler.timestampTag(0L);
+		byte[] data = read(first);
+		assertArrayEquals(tag, Arrays.copyOf(data, tag.length));
+		assertArrayEquals(concat(Arrays.copyOf(frames, 16)), Arrays.copyOfRange(data, tag.length, data.length));
+		tag = AdtsIoHandler.timestampTag(184320L);
+		data = read(second);
+		assertArrayEquals(tag, Arrays.copyOf(data, tag.length));
+		assertArrayEquals(concat(Arrays.copyOfRange(frames, 16, 20)), Arrays.copyOfRange(data, tag.length, data.length));
+	}
+
+	@Test
+	public void testTimestampTag() {
+		byte[] tag = AdtsIoHandler.timestampTag(0x1234567890L);
+		assertEquals('I', tag[0]);
+		assertEquals(4, tag[3]);
+		// syncsafe tag size excludes the ten byte header
+		assertEquals(tag.length - 10, tag[9]);
+		assertEquals("PRIV", new String(tag, 10, 4));
+		assertEquals("com.apple.streaming.transportStreamTimestamp", new String(tag, 20, 44));
+		assertEquals(0, tag[64]);
+		// 33 bits kept
+		assertArrayEquals(new byte[] { 0, 0, 0, 0, 0x34, 0x56, 0x78, (byte) 0x90 }, Arrays.copyOfRange(tag, 65, 73));
+	}
+
+	/**
+	 * @return an ADTS frame without crc of a single raw data block with the given payload size
+	 */
+	private static byte[] frame(int rateIndex, int channels, int payload) {
+		int length = AdtsFrameParser.HEADER_SIZE + payload;
+		byte[] frame = new byte[length];
+		frame[0] = (byte) 0xff;
+		frame[1] = (byte) 0xf1;
+		// aac lc
+		frame[2] = (byte) (0x40 | (rateIndex << 2) | (channels >> 2));
+		frame[3] = (byte) (((channels & 0x03) << 6) | (length >> 11));
+		frame[4] = (byte) (length >> 3);
+		frame[5] = (byte) (((length & 0x07) << 5) | 0x1f);
+		frame[6] = (byte) 0xfc;
+		Arrays.fill(frame, AdtsFrameParser.HEADER_SIZE, length, (byte) payload);
+		return frame;
+	}
+
+	private static byte[] read(Segment segment) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(segment.getFileName(), "r");
+		try {
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Properties;
+
+import org.junit.Test;
+import org.red5.service.httpstream.EncoderProfile;
+
+public class EncoderProfileTest {
+
+	@Test
+	public void testAvcCodec() throws Exception {
+		// baseline, level 3.0
+		assertEquals("avc1.42001e", EncoderProfile.load("balanced").getAvcCodec());
+		assertEquals("avc1.42001e", EncoderProfile.load("ultralowlatency").getAvcCodec());
+		// preset medium turns on the 8x8 transform, level 3.1
+		assertEquals("avc1.64001f", EncoderProfile.load("efficiency").getAvcCodec());
+	}
+
+	@Test
+	public void testPresetProfilesSkipBaseOptions() throws Exception {
+		// the base coder options apply to a profile without a preset
+		assertEquals("5", EncoderProfile.load("balanced").getOptions().getProperty("subq"));
+		// and would undo what ultrafast turns off
+		Properties options = EncoderProfile.load("ultralowlatency").getOptions();
+		assertNull(options.getProperty("subq"));
+		assertNull(options.getProperty("trellis"));
+		assertNull(options.getProperty("refs"));
+		assertEquals("0", options.getProperty("bf"));
+		assertEquals("ultrafast", EncoderProfile.load("ultralowlatency").getPrivateOptions().getProperty("preset"));
+	}
+
+}
@@ -0,0 +1,115 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.red5.service.httpstream.FrameQueue;
+import org.red5.service.httpstream.FrameQueue.OverloadPolicy;
+
+public class FrameQueueTest {
+
+	@Test
+	public void testDropSmart() {
+		FrameQueue<TestFrame> queue = new FrameQueue<TestFrame>(500, OverloadPolicy.DROP_SMART);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(queue.add(new TestFrame(true, i, 100)));
+		}
+		// audio is accepted over budget
+		assertTrue(queue.add(new TestFrame(false, -1, 10)));
+		assertEquals(510, queue.getBytes());
+		// every other queued picture goes, oldest first, until the new one fits
+		assertTrue(queue.add(new TestFrame(true, 5, 100)));
+		assertEquals(2, queue.getDroppedQueued());
+		assertEquals(0, queue.getDroppedNewest());
+		assertEquals(410, queue.getBytes());
+		int[] expected = { 1, 3, 4, -1, 5 };
+		for (int id : expected) {
+			assertEquals(id, queue.poll().id);
+		}
+		assertEquals(0, queue.getVideoCount());
+		assertEquals(0, queue.getBytes());
+		// a frame larger than the budget is refused once the queue is drained of video
+		assertTrue(queue.add(new TestFrame(true, 6, 100)));
+		assertFalse(queue.add(new TestFrame(true, 7, 600)));
+		assertEquals(3, queue.getDroppedQueued());
+		assertEquals(1, queue.getDroppedNewest());
+		assertEquals(0, queue.getVideoCount());
+	}
+
+	@Test
+	public void testDropNewest() {
+		FrameQueue<TestFrame> queue = new FrameQueue<TestFrame>(200, OverloadPolicy.DROP_NEWEST);
+		assertTrue(queue.add(new TestFrame(true, 0, 100)));
+		assertTrue(queue.add(new TestFrame(true, 1, 100)));
+		assertFalse(queue.add(new TestFrame(true, 2, 100)));
+		assertEquals(1, queue.getDroppedNewest());
+		assertEquals(2, queue.getVideoCount());
+	}
+
+	@Test
+	public void testBlockTimesOut() {
+		FrameQueue<TestFrame> queue = new FrameQueue<TestFrame>(100, OverloadPolicy.BLOCK);
+		queue.setBlockTimeout(50);
+		assertTrue(queue.add(new TestFrame(true, 0, 100)));
+		long start = System.currentTimeMillis();
+		assertFalse(queue.add(new TestFrame(true, 2, 100)));
+		assertTrue(System.currentTimeMillis() - start >= 40);
+	}
+
+	@Test
+	public void testPollWaits() throws Exception {
+		final FrameQueue<TestFrame> queue = new FrameQueue<TestFrame>(500, OverloadPolicy.DROP_SMART);
+		long start = System.currentTimeMillis();
+		assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+		assertTrue(System.currentTimeMillis() - start >= 40);
+		// a frame added while waiting is returned at once
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				queue.add(new TestFrame(true, 0, 100));
+			}
+		}.start();
+		start = System.currentTimeMillis();
+		assertEquals(0, queue.poll(5, TimeUnit.SECONDS).id);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		// a wake up releases the consumer without a frame
+		queue.wakeUp();
+		assertNull(queue.poll(5, TimeUnit.SECONDS));
+	}
+
+	private static class TestFrame implements FrameQueue.Frame {
+
+		final boolean video;
+
+		final int id;
+
+		final int size;
+
+		TestFrame(boolean video, int id, int size) {
+			this.video = video;
+			this.id = id;
+			this.size = size;
+		}
+
+		public boolean isVideo() {
+			return video;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public void dispose() {
+		}
+
+	}
+
+}
@@ -0,0 +1,84 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.red5.service.httpstream.LoadController;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.SegmenterService;
+
+public class LoadControllerTest {
+
+	@Test
+	public void testLevelSettlesAndRestores() {
+		TestSegmenterService service = new TestSegmenterService();
+		TestFacade facade = new TestFacade(service);
+		service.add(facade);
+		try {
+			settleAndRestore(new LoadController(service), facade);
+		} finally {
+			// the facades are shared by all services
+			service.remove(facade);
+		}
+	}
+
+	private void settleAndRestore(LoadController controller, TestFacade facade) {
+		// 25 fps leaves 40 ms per picture, which a 50 ms encode does not fit
+		facade.encodeTime = 50000000L;
+		controller.run();
+		assertEquals(1, facade.getLoadLevel());
+		assertEquals(1, facade.getDecimation());
+		// one picture in two leaves 80 ms, so the stream stays at that level
+		for (int i = 0; i < 10; i++) {
+			controller.run();
+		}
+		assertEquals(1, facade.getLoadLevel());
+		// room to spare at full rate, restored after the calm checks
+		facade.encodeTime = 20000000L;
+		for (int i = 0; i < 4; i++) {
+			controller.run();
+			assertEquals(1, facade.getLoadLevel());
+		}
+		controller.run();
+		assertEquals(0, facade.getLoadLevel());
+		assertEquals(0, facade.getDecimation());
+	}
+
+	private static class TestSegmenterService extends SegmenterService {
+
+		void add(SegmentFacade facade) {
+			addFacade(facade.getStreamName(), facade);
+		}
+
+		void remove(SegmentFacade facade) {
+			removeFacade(facade);
+		}
+
+	}
+
+	private static class TestFacade extends SegmentFacade {
+
+		long encodeTime;
+
+		TestFacade(SegmenterService service) {
+			super(service, "junit");
+		}
+
+		@Override
+		public boolean hasVideo() {
+			return true;
+		}
+
+		@Override
+		public double getOutputFps() {
+			return 25d;
+		}
+
+		@Override
+		public long getAverageVideoEncodeTime() {
+			return encodeTime;
+		}
+
+	}
+
+}
@@ -0,0 +1,41 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.red5.service.httpstream.MediaPipeline;
+import org.red5.service.httpstream.MediaPipeline.Stage;
+import org.red5.service.httpstream.MediaPipeline.StageMetrics;
+
+public class MediaPipelineTest {
+
+	@Test
+	public void testStageMetrics() {
+		MediaPipeline pipeline = new MediaPipeline("test");
+		pipeline.record(Stage.DECODE, 1000L);
+		pipeline.record(Stage.DECODE, 3000L);
+		pipeline.record(Stage.ENCODE, 5000L);
+		pipeline.record(Stage.ENCODE, 7000L);
+		StageMetrics decode = pipeline.getMetrics(Stage.DECODE);
+		assertEquals(2, decode.getCount());
+		assertEquals(2000L, decode.getAverageTime());
+		assertEquals(3000L, decode.getMaxTime());
+		assertEquals(Thread.currentThread().getName(), decode.getThreadName());
+		assertNull(pipeline.getMetrics(Stage.STORE).getThreadName());
+		assertEquals(Stage.ENCODE, pipeline.getBottleneck());
+	}
+
+	@Test
+	public void testBacklog() {
+		MediaPipeline pipeline = new MediaPipeline("test");
+		assertEquals(0, pipeline.getMetrics(Stage.ENCODE).getBacklog());
+		pipeline.setBacklog(Stage.ENCODE, new MediaPipeline.Backlog() {
+			public int size() {
+				return 3;
+			}
+		});
+		assertEquals(3, pipeline.getMetrics(Stage.ENCODE).getBacklog());
+	}
+
+}
@@ -0,0 +1,119 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static test.Mp4Boxes.box;
+import static test.Mp4Boxes.concat;
+import static test.Mp4Boxes.ftyp;
+import static test.Mp4Boxes.ints;
+import static test.Mp4Boxes.mdat;
+import static test.Mp4Boxes.moof;
+import static test.Mp4Boxes.moov;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.red5.stream.util.Mp4BoxParser;
+
+public class Mp4BoxParserTest {
+
+	@Test
+	public void testFragments() {
+		Recorder recorder = new Recorder();
+		Mp4BoxParser parser = new Mp4BoxParser(recorder);
+		byte[] data = mdat(5000, 1);
+		byte[] stream = concat(ftyp(), moov(), moof(1, 0L, 30, true), data, moof(2, 90000L, 15, false), mdat(10, 2));
+		// in uneven pieces, splitting headers
+		int offset = 0;
+		for (int length : new int[] { 3, 7, 100, 1, 2000 }) {
+			parser.parse(stream, offset, length);
+			offset += length;
+		}
+		parser.parse(stream, offset, stream.length - offset);
+		assertEquals(2, parser.getTrackCount());
+		assertTrue(parser.hasVideo());
+		assertEquals(2L, parser.getFragmentCount());
+		assertEquals(0L, parser.getBoxErrors());
+		// whole boxes, and the media data in parts
+		assertEquals(Mp4BoxParser.FTYP, (int) recorder.types.get(0));
+		assertEquals(ftyp().length, (int) recorder.lengths.get(0));
+		assertEquals(Mp4BoxParser.MOOV, (int) recorder.types.get(1));
+		assertEquals(Mp4BoxParser.MOOF, (int) recorder.types.get(2));
+		assertEquals(1d, recorder.durations.get(2), 0.0001d);
+		assertEquals(0d, recorder.decodeTimes.get(2), 0.0001d);
+		assertTrue(recorder.keyFrames.get(2));
+		int mdat = 0;
+		int i = 3;
+		assertTrue(recorder.starts.get(i));
+		for (; recorder.types.get(i) == Mp4BoxParser.MDAT; i++) {
+			mdat += recorder.lengths.get(i);
+			if (recorder.ends.get(i)) {
+				break;
+			}
+		}
+		assertEquals(data.length, mdat);
+		assertTrue(i > 3);
+		assertEquals(Mp4BoxParser.MOOF, (int) recorder.types.get(i + 1));
+		assertEquals(0.5d, recorder.durations.get(i + 1), 0.0001d);
+		assertEquals(1d, recorder.decodeTimes.get(i + 1), 0.0001d);
+		assertFalse(recorder.keyFrames.get(i + 1));
+		assertEquals(stream.length, recorder.total);
+	}
+
+	@Test
+	public void testLargeSize() {
+		Recorder recorder = new Recorder();
+		Mp4BoxParser parser = new Mp4BoxParser(recorder);
+		// a free box with a 64 bit size, then an empty one
+		byte[] stream = concat(ints(1), "free".getBytes(), ints(0, 20), ints(7), box("skip"));
+		parser.parse(stream, 0, 9);
+		parser.parse(stream, 9, stream.length - 9);
+		assertEquals(2, recorder.types.size());
+		assertEquals(Mp4BoxParser.FREE, (int) recorder.types.get(0));
+		assertEquals(20, (int) recorder.lengths.get(0));
+		assertEquals(Mp4BoxParser.SKIP, (int) recorder.types.get(1));
+		assertEquals(8, (int) recorder.lengths.get(1));
+		assertEquals(0L, parser.getBoxErrors());
+	}
+
+	@Test
+	public void testCodecs() {
+		byte[] init = concat(ftyp(), box("stsd", box("avc1", new byte[78], box("avcC", new byte[] { 1, 0x4d, 0x40, 0x1f })), box("mp4a", new byte[28])));
+		assertEquals("avc1.4d401f,mp4a.40.2", Mp4BoxParser.getCodecs(init));
+		assertEquals("", Mp4BoxParser.getCodecs(moov()));
+	}
+
+	private static class Recorder implements Mp4BoxParser.Listener {
+
+		final List<Integer> types = new ArrayList<Integer>();
+
+		final List<Integer> lengths = new ArrayList<Integer>();
+
+		final List<Boolean> starts = new ArrayList<Boolean>();
+
+		final List<Boolean> ends = new ArrayList<Boolean>();
+
+		final List<Double> durations = new ArrayList<Double>();
+
+		final List<Double> decodeTimes = new ArrayList<Double>();
+
+		final List<Boolean> keyFrames = new ArrayList<Boolean>();
+
+		int total;
+
+		public void onBox(Mp4BoxParser parser, byte[] buf, int offset, int length) {
+			types.add(parser.getBoxType());
+			lengths.add(length);
+			starts.add(parser.isBoxStart());
+			ends.add(parser.isBoxEnd());
+			durations.add(parser.getFragmentDuration());
+			decodeTimes.add(parser.getFragmentDecodeTime());
+			keyFrames.add(parser.isFragmentKeyFrame());
+			total += length;
+		}
+
+	}
+
+}
@@ -0,0 +1,125 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Builds fragmented mp4 boxes for tests: a movie with a 90kHz video track 1 and a 48kHz audio track 2, and fragments of a
+ * track run each, or the audio track alone as written to a track of its own.
+ */
+final class Mp4Boxes {
+
+	static final int VIDEO_TRACK = 1;
+
+	static final int AUDIO_TRACK = 2;
+
+	// sample_is_non_sync_sample
+	static final int NON_SYNC = 0x00010000;
+
+	private Mp4Boxes() {
+	}
+
+	static byte[] ints(int... values) {
+		byte[] bytes = new byte[values.length * 4];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i * 4] = (byte) (values[i] >> 24);
+			bytes[i * 4 + 1] = (byte) (values[i] >> 16);
+			bytes[i * 4 + 2] = (byte) (values[i] >> 8);
+			bytes[i * 4 + 3] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			for (byte[] part : parts) {
+				out.write(part);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	static byte[] box(String type, byte[]... children) {
+		byte[] content = concat(children);
+		return concat(ints(content.length + 8), type.getBytes(), content);
+	}
+
+	static byte[] fullBox(String type, int version, int flags, byte[]... children) {
+		return box(type, ints((version << 24) | flags), concat(children));
+	}
+
+	static byte[] ftyp() {
+		return box("ftyp", "iso5".getBytes(), ints(1), "iso5".getBytes(), "dash".getBytes());
+	}
+
+	static byte[] moov() {
+		return box("moov", fullBox("mvhd", 0, 0, new byte[96]), trak(VIDEO_TRACK, 90000, "vide"), trak(AUDIO_TRACK, 48000, "soun"),
+				box("mvex", trex(VIDEO_TRACK, 3000), trex(AUDIO_TRACK, 1024)));
+	}
+
+	/**
+	 * @return a movie with the audio track only
+	 */
+	static byte[] audioMoov() {
+		return box("moov", fullBox("mvhd", 0, 0, new byte[96]), trak(AUDIO_TRACK, 48000, "soun"), box("mvex", trex(AUDIO_TRACK, 1024)));
+	}
+
+	static byte[] trak(int id, int timescale, String handler) {
+		return box("trak", fullBox("tkhd", 0, 3, ints(0, 0, id), new byte[68]),
+				box("mdia", fullBox("mdhd", 0, 0, ints(0, 0, timescale, 0), new byte[4]), fullBox("hdlr", 0, 0, ints(0), handler.getBytes(), new byte[12])));
+	}
+
+	static byte[] trex(int id, int duration) {
+		return fullBox("trex", 0, 0, ints(id, 1, duration, 0, NON_SYNC));
+	}
+
+	/**
+	 * @param sequence
+	 * @param decodeTime of the video, in 90kHz ticks
+	 * @param videoSamples of 3000 ticks by default, the first one a sync sample if keyFrame is set
+	 * @param keyFrame
+	 * @return a fragment with a video and an audio track run
+	 */
+	static byte[] moof(int sequence, long decodeTime, int videoSamples, boolean keyFrame) {
+		byte[] video = box("traf", fullBox("tfhd", 0, 0x020000, ints(VIDEO_TRACK)), fullBox("tfdt", 1, 0, ints((int) (decodeTime >> 32), (int) decodeTime)),
+				fullBox("trun", 0, 0x04 | 0x200, ints(videoSamples, keyFrame ? 0 : NON_SYNC), new byte[videoSamples * 4]));
+		// audio samples with their durations given
+		int audioSamples = (int) (videoSamples * 3000L * 48000L / 90000L / 1024L);
+		int[] entries = new int[audioSamples * 2];
+		for (int i = 0; i < audioSamples; i++) {
+			entries[i * 2] = 1024;
+			entries[i * 2 + 1] = 10;
+		}
+		byte[] audio = box("traf", fullBox("tfhd", 0, 0x020000, ints(AUDIO_TRACK)), fullBox("trun", 0, 0x100 | 0x200, ints(audioSamples), ints(entries)));
+		return box("moof", fullBox("mfhd", 0, 0, ints(sequence)), video, audio);
+	}
+
+	/**
+	 * @param sequence
+	 * @param decodeTime in 48kHz ticks
+	 * @param samples of 1024 ticks
+	 * @return a fragment with an audio track run only, as written to an audio track of its own
+	 */
+	static byte[] audioMoof(int sequence, long decodeTime, int samples) {
+		int[] entries = new int[samples * 2];
+		for (int i = 0; i < samples; i++) {
+			entries[i * 2] = 1024;
+			entries[i * 2 + 1] = 10;
+		}
+		byte[] audio = box("traf", fullBox("tfhd", 0, 0x020000, ints(AUDIO_TRACK)), fullBox("tfdt", 1, 0, ints((int) (decodeTime >> 32), (int) decodeTime)),
+				fullBox("trun", 0, 0x100 | 0x200, ints(samples), ints(entries)));
+		return box("moof", fullBox("mfhd", 0, 0, ints(sequence)), audio);
+	}
+
+	static byte[] mdat(int length, int fill) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) fill;
+		}
+		return box("mdat", data);
+	}
+
+}
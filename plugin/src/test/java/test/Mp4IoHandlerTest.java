@@ -0,0 +1,113 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static test.Mp4Boxes.audioMoof;
+import static test.Mp4Boxes.audioMoov;
+import static test.Mp4Boxes.concat;
+import static test.Mp4Boxes.ftyp;
+import static test.Mp4Boxes.mdat;
+import static test.Mp4Boxes.moof;
+import static test.Mp4Boxes.moov;
+
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.SegmentTrack;
+import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
+import org.red5.stream.http.xuggler.Mp4IoHandler;
+
+public class Mp4IoHandlerTest {
+
+	private SegmentFixture fixture;
+
+	private SegmentFacade facade;
+
+	@Before
+	public void setUp() throws Exception {
+		fixture = new SegmentFixture(SegmentFormat.FMP4, 2000L);
+		facade = fixture.facade;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		fixture.dispose();
+	}
+
+	@Test
+	public void testSegmentsStartAtSyncSamples() throws Exception {
+		Mp4IoHandler handler = new Mp4IoHandler("junit", facade);
+		// a fragment ahead of the first sync sample is dropped, then one second fragments
+		byte[] header = concat(ftyp(), moov());
+		byte[] first = concat(moof(2, 0L, 30, true), mdat(300, 2));
+		byte[] second = concat(moof(3, 90000L, 30, true), mdat(300, 3));
+		byte[] third = concat(moof(4, 180000L, 30, true), mdat(300, 4));
+		byte[] stream = concat(header, moof(1, 0L, 15, false), mdat(100, 1), first, second, third, Mp4Boxes.box("mfra"));
+		handler.onHeader();
+		int split = header.length + 50;
+		handler.write(stream, 0, split);
+		handler.write(stream, split, stream.length - split);
+		handler.onEndOfStream();
+		assertArrayEquals(header, facade.getInitSegment());
+		Segment segment = facade.getSegment(0);
+		Segment last = facade.getSegment();
+		assertNotNull(segment);
+		assertEquals(1, last.getIndex());
+		assertTrue(segment.getFileName().endsWith("junit_0.m4s"));
+		assertEquals(2d, segment.getDuration(), 0.001d);
+		assertEquals(0d, segment.getStartTime(), 0.001d);
+		assertArrayEquals(concat(first, second), read(segment));
+		assertTrue(last.isLast());
+		assertEquals(1d, last.getDuration(), 0.001d);
+		assertEquals(2d, last.getStartTime(), 0.001d);
+		assertArrayEquals(third, read(last));
+	}
+
+	@Test
+	public void testAudioTrackIsWrittenApart() throws Exception {
+		SegmentTrack audio = facade.addAudioTrack();
+		Mp4IoHandler handler = new Mp4IoHandler("junit_audio", facade, audio);
+		// every audio fragment starts with a sync sample, of 48 samples or 1.024s each
+		byte[] header = concat(ftyp(), audioMoov());
+		byte[] first = concat(audioMoof(1, 0L, 48), mdat(200, 1));
+		byte[] second = concat(audioMoof(2, 49152L, 48), mdat(200, 2));
+		byte[] third = concat(audioMoof(3, 98304L, 48), mdat(200, 3));
+		byte[] stream = concat(header, first, second, third);
+		handler.onHeader();
+		handler.write(stream, 0, stream.length);
+		handler.onEndOfStream();
+		// the stream's own track is left to the video
+		assertNull(facade.getInitSegment());
+		assertEquals(0, facade.getSegment().getSize());
+		assertArrayEquals(header, audio.getInitSegment());
+		Segment segment = audio.getSegment(0);
+		Segment last = audio.getSegment();
+		assertNotNull(segment);
+		assertEquals(1, last.getIndex());
+		assertTrue(segment.getFileName().endsWith("junit" + SegmentTrack.AUDIO_SUFFIX + "_0.m4s"));
+		assertEquals(2.048d, segment.getDuration(), 0.001d);
+		assertArrayEquals(concat(first, second), read(segment));
+		assertTrue(last.isLast());
+		assertEquals(2.048d, last.getStartTime(), 0.001d);
+		assertArrayEquals(third, read(last));
+	}
+
+	private static byte[] read(Segment segment) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(segment.getFileName(), "r");
+		try {
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+}
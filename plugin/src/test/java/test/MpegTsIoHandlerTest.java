@@ -0,0 +1,128 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static test.TsPackets.AUDIO_PID;
+import static test.TsPackets.PMT_PID;
+import static test.TsPackets.VIDEO_PID;
+import static test.TsPackets.audio;
+import static test.TsPackets.concat;
+import static test.TsPackets.packet;
+import static test.TsPackets.pat;
+import static test.TsPackets.pmt;
+import static test.TsPackets.video;
+
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.model.PacketIndex;
+import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
+import org.red5.stream.http.xuggler.MpegTsIoHandler;
+import org.red5.stream.util.TsPacketParser;
+
+public class MpegTsIoHandlerTest {
+
+	private static final long SECOND = 90000L;
+
+	private SegmentFixture fixture;
+
+	private SegmentFacade facade;
+
+	@Before
+	public void setUp() throws Exception {
+		fixture = new SegmentFixture(SegmentFormat.MPEGTS, 10000L);
+		facade = fixture.facade;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		fixture.dispose();
+	}
+
+	@Test
+	public void testSegmentsStartAtKeyFrames() throws Exception {
+		MpegTsIoHandler handler = new MpegTsIoHandler("junit", facade);
+		// audio ahead of the first key frame is dropped, the source counters jump on the video pid
+		byte[] stream = concat(pat(5), pmt(5), audio(4, 0L), video(9, true, SECOND, 0L), video(10, false, -1L, -1L), audio(5, SECOND), video(13, false, 6 * SECOND, -1L),
+				video(14, true, 12 * SECOND, -1L), audio(6, 12 * SECOND));
+		// in two writes which split a packet
+		int split = 4 * TsPacketParser.PACKET_SIZE + 100;
+		handler.onHeader();
+		handler.write(stream, 0, split);
+		handler.write(stream, split, stream.length - split);
+		handler.onEndOfStream();
+		Segment first = facade.getSegment(0);
+		Segment second = facade.getSegment();
+		assertNotNull(first);
+		assertEquals(1, second.getIndex());
+		assertEquals(11d, first.getDuration(), 0.001d);
+		assertTrue(second.isLast());
+		// pat, pmt, three video and one audio packet
+		byte[] data = read(first);
+		assertEquals(6 * TsPacketParser.PACKET_SIZE, data.length);
+		assertPacket(data, 0, TsPacketParser.PAT_PID, 0);
+		assertPacket(data, 1, PMT_PID, 0);
+		assertPacket(data, 2, VIDEO_PID, 0);
+		assertPacket(data, 3, VIDEO_PID, 1);
+		assertPacket(data, 4, AUDIO_PID, 0);
+		assertPacket(data, 5, VIDEO_PID, 2);
+		// the next segment starts with the tables and the key frame, counters following on
+		data = read(second);
+		assertEquals(4 * TsPacketParser.PACKET_SIZE, data.length);
+		assertPacket(data, 0, TsPacketParser.PAT_PID, 1);
+		assertPacket(data, 1, PMT_PID, 1);
+		assertPacket(data, 2, VIDEO_PID, 3);
+		assertPacket(data, 3, AUDIO_PID, 1);
+		PacketIndex index = second.getPacketIndex();
+		assertEquals(1, index.getKeyFrameCount());
+		assertEquals(2 * TsPacketParser.PACKET_SIZE, index.getKeyFrameOffset(0));
+		assertEquals(12 * SECOND, index.getKeyFramePts(0));
+		assertEquals(1, index.getFirstKeyFrame());
+		assertEquals(1, first.getPacketIndex().getPcrCount());
+		// pes and adaptation headers, the tables and the padding of the last pes are overhead
+		assertEquals(162 + 184 + 170 + 170, first.getPayloadSize());
+		assertEquals(6 * TsPacketParser.PACKET_SIZE - first.getPayloadSize(), first.getOverheadSize());
+	}
+
+	@Test
+	public void testRepeatedTablesAndStuffingDropped() throws Exception {
+		MpegTsIoHandler handler = new MpegTsIoHandler("junit", facade);
+		byte[] stream = concat(pat(0), pmt(0), packet(TsPacketParser.SDT_PID, true, 0), video(0, true, 0L, 0L), pat(1), pmt(1),
+				packet(TsPacketParser.NULL_PID, false, 0), audio(0, 0L), packet(TsPacketParser.SDT_PID, true, 1), video(1, false, -1L, -1L));
+		handler.onHeader();
+		handler.write(stream, 0, stream.length);
+		handler.onEndOfStream();
+		// the tables once, then the media packets only
+		byte[] data = read(facade.getSegment());
+		assertEquals(5 * TsPacketParser.PACKET_SIZE, data.length);
+		assertPacket(data, 0, TsPacketParser.PAT_PID, 0);
+		assertPacket(data, 1, PMT_PID, 0);
+		assertPacket(data, 2, VIDEO_PID, 0);
+		assertPacket(data, 3, AUDIO_PID, 0);
+		assertPacket(data, 4, VIDEO_PID, 1);
+	}
+
+	private static void assertPacket(byte[] data, int packet, int pid, int counter) {
+		int offset = packet * TsPacketParser.PACKET_SIZE;
+		assertEquals(TsPacketParser.SYNC_BYTE, data[offset]);
+		assertEquals(pid, ((data[offset + 1] & 0x1f) << 8) | (data[offset + 2] & 0xff));
+		assertEquals(counter, data[offset + 3] & 0x0f);
+	}
+
+	private static byte[] read(Segment segment) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(String.format("%s%s_%s.ts", segment.getSegmentDirectory(), segment.getName(), segment.getIndex()), "r");
+		try {
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.red5.service.httpstream.model.PacketIndex;
+
+public class PacketIndexTest {
+
+	@Test
+	public void testKeyFrames() {
+		PacketIndex index = new PacketIndex();
+		// more entries than the initial capacity
+		for (int i = 0; i < 1000; i++) {
+			index.addPes(i * 376, i * 3000L, true, i % 30 == 0);
+			index.addPes(i * 376 + 188, i * 3000L, false, false);
+			index.addPcr(i * 376, i * 3000L * 300L);
+		}
+		assertEquals(2000, index.getPesCount());
+		assertEquals(34, index.getKeyFrameCount());
+		assertEquals(1000, index.getPcrCount());
+		assertFalse(index.isPesVideo(1));
+		assertEquals(-1, index.findKeyFrame(-1L));
+		assertEquals(0, index.findKeyFrame(89999L));
+		assertEquals(1, index.findKeyFrame(90000L));
+		assertEquals(30 * 376, index.getKeyFrameOffset(1));
+		assertEquals(33, index.findKeyFrame(Long.MAX_VALUE));
+		index.free();
+		assertEquals(0, index.getPesCount());
+		assertEquals(-1, index.findKeyFrame(0L));
+	}
+
+	@Test
+	public void testAddAll() {
+		PacketIndex pending = new PacketIndex();
+		// a packet which started in the previous write
+		pending.addPes(-188, 0L, true, true);
+		pending.addPes(0, 3000L, true, true);
+		pending.addPes(188, 3000L, false, false);
+		pending.addPcr(0, 900000L);
+		PacketIndex index = new PacketIndex();
+		index.addAll(pending, 376);
+		assertEquals(3, index.getPesCount());
+		assertEquals(188, index.getPesOffset(0));
+		assertEquals(2, index.getKeyFrameCount());
+		assertEquals(376, index.getKeyFrameOffset(1));
+		assertTrue(index.isPesVideo(1));
+		assertEquals(376, index.getPcrOffset(0));
+		// at the start of a new segment the earlier packet is not part of it
+		index.clear();
+		index.addAll(pending, 0);
+		assertEquals(2, index.getPesCount());
+		assertEquals(1, index.getKeyFrameCount());
+		assertEquals(0, index.getKeyFrameOffset(0));
+	}
+
+}
@@ -0,0 +1,95 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import org.junit.Test;
+import org.red5.stream.util.PcmRingBuffer;
+
+public class PcmRingBufferTest {
+
+	@Test
+	public void testFrameRelease() {
+		PcmRingBuffer ring = new PcmRingBuffer(4096);
+		short[] chunk = new short[700];
+		short[] frame = new short[2048];
+		int frames = 0;
+		short value = 0;
+		for (int i = 0; i < 10; i++) {
+			for (int s = 0; s < chunk.length; s++) {
+				chunk[s] = value++;
+			}
+			ring.write(chunk, 0, chunk.length);
+			while (ring.available() >= frame.length) {
+				assertEquals(frame.length, ring.read(frame, 0, frame.length));
+				// samples come out in order across the wrap
+				assertEquals((short) (frames * frame.length), frame[0]);
+				assertEquals((short) (frames * frame.length + frame.length - 1), frame[frame.length - 1]);
+				frames++;
+			}
+		}
+		assertEquals(3, frames);
+		assertEquals(7000 - 3 * 2048, ring.available());
+		assertEquals(0, ring.getOverruns());
+	}
+
+	@Test
+	public void testOverrunDropsOldest() {
+		PcmRingBuffer ring = new PcmRingBuffer(8);
+		short[] samples = new short[] { 1, 2, 3, 4, 5, 6 };
+		ring.write(samples, 0, samples.length);
+		ring.write(samples, 0, samples.length);
+		assertEquals(8, ring.available());
+		assertEquals(4, ring.getOverruns());
+		short[] out = new short[8];
+		ring.read(out, 0, out.length);
+		assertEquals(5, out[0]);
+		assertEquals(6, out[7]);
+	}
+
+	@Test
+	public void testReadPositionCountsOverruns() {
+		PcmRingBuffer ring = new PcmRingBuffer(8);
+		short[] samples = new short[4];
+		short[] out = new short[4];
+		ring.write(samples, 0, samples.length);
+		ring.read(out, 0, out.length);
+		assertEquals(0, ring.getLastReadPosition());
+		// twelve samples into a ring of eight, the first four are lost
+		ring.write(samples, 0, samples.length);
+		ring.write(samples, 0, samples.length);
+		ring.write(samples, 0, samples.length);
+		ring.read(out, 0, out.length);
+		assertEquals(8, ring.getLastReadPosition());
+		ring.read(out, 0, out.length);
+		assertEquals(12, ring.getLastReadPosition());
+		// a write larger than the ring keeps only its newest samples
+		ring.write(new short[10], 0, 10);
+		ring.read(out, 0, out.length);
+		assertEquals(18, ring.getLastReadPosition());
+	}
+
+	@Test
+	public void testNativeBufferWrite() {
+		PcmRingBuffer ring = new PcmRingBuffer(6);
+		ByteBuffer bytes = ByteBuffer.allocateDirect(16).order(ByteOrder.LITTLE_ENDIAN);
+		for (short i = 1; i <= 8; i++) {
+			bytes.putShort(i);
+		}
+		bytes.flip();
+		ShortBuffer samples = bytes.asShortBuffer();
+		samples.limit(7);
+		ring.write(samples);
+		assertEquals(6, ring.available());
+		assertEquals(1, ring.getOverruns());
+		assertEquals(7, samples.position());
+		short[] out = new short[6];
+		ring.read(out, 0, out.length);
+		assertEquals(2, out[0]);
+		assertEquals(7, out[5]);
+	}
+
+}
@@ -1,5 +1,6 @@
 package test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
@@ -8,6 +9,8 @@ import org.junit.Test;
 import org.red5.service.httpstream.SegmentFacade;
 import org.red5.service.httpstream.SegmenterService;
 import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
+import org.red5.stream.http.servlet.PlayList;
 
 public class PlayListTest {
 
@@ -47,6 +50,22 @@ public class PlayListTest {
 		*/
 	}
 
+	@Test
+	public void testTargetDurationCoversLongSegments() throws Exception {
+		SegmentFixture fixture = new SegmentFixture(SegmentFormat.MPEGTS, 10000L);
+		try {
+			Segment[] segments = new Segment[] { fixture.facade.getSegment(), fixture.facade.createSegment() };
+			segments[0].setDuration(9.6d);
+			segments[1].setDuration(8.2d);
+			assertEquals(10L, PlayList.getTargetDuration(segments, 10000L));
+			// a segment which ran on to a late key frame
+			segments[1].setDuration(17.2d);
+			assertEquals(18L, PlayList.getTargetDuration(segments, 10000L));
+		} finally {
+			fixture.dispose();
+		}
+	}
+
 	@SuppressWarnings("unused")
 	private void dumpPlaylist() {
 		int count = service.getSegmentCount(streamName);
@@ -55,8 +74,8 @@ public class PlayListTest {
 		if (segments != null && segments.length > 0) {
 			// for the m3u8 content
 			StringBuilder sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-ALLOW-CACHE:NO\n");
-			// get segment duration in seconds
-			long segmentDuration = service.getSegmentTimeLimit() / 1000;
+			// longest segment in seconds
+			long segmentDuration = PlayList.getTargetDuration(segments, service.getSegmentTimeLimit());
 			// create the heading
 			sb.append(String.format("#EXT-X-TARGETDURATION:%s\n#EXT-X-MEDIA-SEQUENCE:%s\n", segmentDuration, segments[0].getIndex()));
 			// loop through them
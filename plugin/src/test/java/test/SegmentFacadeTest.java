@@ -0,0 +1,56 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
+
+public class SegmentFacadeTest {
+
+	@Test
+	public void testConcurrentRolloverLeavesNoGaps() throws Exception {
+		SegmentFixture fixture = new SegmentFixture(SegmentFormat.MPEGTS, 10000L);
+		final SegmentFacade facade = fixture.facade;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			for (int t = 0; t < 4; t++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						for (int i = 0; i < 50; i++) {
+							facade.getSegment().setDuration(1d);
+							facade.createSegment();
+						}
+					}
+				});
+			}
+			start.countDown();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10L, TimeUnit.SECONDS));
+			// the segments kept and the current one follow on from each other
+			Segment[] segments = facade.getSegments();
+			assertTrue(segments.length > 0);
+			for (int s = 1; s < segments.length; s++) {
+				assertEquals(segments[s - 1].getIndex() + 1, segments[s].getIndex());
+			}
+			assertEquals(segments[segments.length - 1].getIndex() + 1, facade.getSegment().getIndex());
+		} finally {
+			executor.shutdownNow();
+			fixture.dispose();
+		}
+	}
+
+}
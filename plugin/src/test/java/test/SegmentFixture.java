@@ -0,0 +1,56 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.red5.service.httpstream.SegmentFacade;
+import org.red5.service.httpstream.model.Segment;
+import org.red5.service.httpstream.model.SegmentFormat;
+
+/**
+ * A facade writing disk based segments of a given format into a temporary directory, for tests; its first segment is
+ * created, and disposing of the fixture removes the segments and the directory with anything left in it.
+ */
+final class SegmentFixture {
+
+	final File directory;
+
+	final SegmentFacade facade;
+
+	SegmentFixture(SegmentFormat format, long segmentTimeLimit) throws IOException {
+		directory = File.createTempFile("segments", "");
+		directory.delete();
+		directory.mkdirs();
+		facade = new SegmentFacade(null, "junit");
+		facade.setMemoryMapped(false);
+		facade.setSegmentDirectory(directory.getPath() + File.separator);
+		facade.setSegmentTimeLimit(segmentTimeLimit);
+		facade.setMaxSegmentsPerFacade(4);
+		facade.setSegmentFormat(format);
+		facade.createSegment();
+	}
+
+	void dispose() {
+		for (Segment segment : facade.getSegments()) {
+			segment.dispose();
+		}
+		if (facade.getSegment() != null) {
+			facade.getSegment().dispose();
+		}
+		if (facade.getAudioTrack() != null) {
+			facade.getAudioTrack().dispose();
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					file.deleteOnExit();
+				}
+			}
+		}
+		if (!directory.delete()) {
+			directory.deleteOnExit();
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.red5.xuggler.handler.IBoundarySource;
+import org.red5.xuggler.handler.ISegmentSink;
+import org.red5.xuggler.handler.SegmentTee;
+
+public class SegmentTeeTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@Test
+	public void testBranchesGetTheSameBytes() throws Exception {
+		Probe primary = new Probe();
+		Probe probe = new Probe();
+		SegmentTee tee = new SegmentTee("junit", primary);
+		SegmentTee.Branch branch = tee.addSink(probe, 100, executor);
+		byte[] data = new byte[250];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		tee.onHeader();
+		// wraps around the ring as the branch drains
+		for (int offset = 0; offset < data.length; offset += 50) {
+			assertEquals(50, tee.write(data, offset, 50));
+			waitForDrain(branch);
+		}
+		tee.onEndOfStream();
+		assertTrue(branch.join(5000L));
+		assertArrayEquals(data, primary.out.toByteArray());
+		assertArrayEquals(data, probe.out.toByteArray());
+		assertTrue(primary.header && primary.ended);
+		assertTrue(probe.header && probe.ended);
+		assertEquals(5L, branch.getWrites());
+		assertEquals(0L, branch.getDroppedWrites());
+		assertEquals(0, tee.getBranches().length);
+	}
+
+	@Test
+	public void testSlowSinkDropsWholeWrites() throws Exception {
+		Probe primary = new Probe();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		Probe slow = new Probe() {
+			@Override
+			public int write(byte[] buf, int offset, int length) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.write(buf, offset, length);
+			}
+		};
+		SegmentTee tee = new SegmentTee("junit", primary);
+		SegmentTee.Branch branch = tee.addSink(slow, 100, executor);
+		byte[] data = new byte[60];
+		tee.onHeader();
+		tee.write(data, 0, 60);
+		assertTrue(blocked.await(5L, TimeUnit.SECONDS));
+		// the sink holds the first write, the ring takes one more and the third does not fit
+		tee.write(data, 0, 60);
+		tee.write(data, 0, 60);
+		assertEquals(3 * 60, primary.out.size());
+		assertEquals(1L, branch.getDroppedWrites());
+		assertEquals(60L, branch.getDroppedBytes());
+		// removing the sink lets it drain what it has and end
+		assertTrue(tee.removeSink(slow));
+		assertFalse(tee.removeSink(slow));
+		release.countDown();
+		assertTrue(branch.join(5000L));
+		assertEquals(2 * 60, slow.out.size());
+		assertTrue(slow.ended);
+		assertFalse(primary.ended);
+	}
+
+	@Test
+	public void testBranchJoinsAtBoundary() throws Exception {
+		Marker primary = new Marker();
+		Probe probe = new Probe();
+		SegmentTee tee = new SegmentTee("junit", primary);
+		byte[] data = sequence(400);
+		tee.onHeader();
+		tee.write(data, 0, 100);
+		SegmentTee.Branch branch = tee.addSink(probe, 1000, executor);
+		// no boundary yet, nothing is queued
+		tee.write(data, 100, 100);
+		assertFalse(branch.isSynchronized());
+		assertEquals(0L, branch.getWrites());
+		// a boundary which began in the previous write
+		primary.boundary = 150L;
+		tee.write(data, 200, 100);
+		assertTrue(branch.isSynchronized());
+		tee.write(data, 300, 100);
+		tee.onEndOfStream();
+		assertTrue(branch.join(5000L));
+		assertArrayEquals(data, primary.out.toByteArray());
+		assertArrayEquals(Arrays.copyOfRange(data, 150, 400), probe.out.toByteArray());
+		assertEquals(0L, branch.getDroppedBytes());
+	}
+
+	@Test
+	public void testBranchResumesAtBoundaryAfterDrop() throws Exception {
+		Marker primary = new Marker();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		Probe slow = new Probe() {
+			@Override
+			public int write(byte[] buf, int offset, int length) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.write(buf, offset, length);
+			}
+		};
+		SegmentTee tee = new SegmentTee("junit", primary);
+		// added before any data, the start of the stream is a boundary
+		SegmentTee.Branch branch = tee.addSink(slow, 100, executor);
+		byte[] data = sequence(300);
+		tee.onHeader();
+		tee.write(data, 0, 60);
+		assertTrue(blocked.await(5L, TimeUnit.SECONDS));
+		tee.write(data, 60, 60);
+		// does not fit, the branch skips to the next boundary
+		tee.write(data, 120, 60);
+		assertFalse(branch.isSynchronized());
+		tee.write(data, 180, 60);
+		primary.boundary = 270L;
+		tee.write(data, 240, 60);
+		assertTrue(branch.isSynchronized());
+		assertEquals(1L, branch.getDroppedWrites());
+		assertEquals(150L, branch.getDroppedBytes());
+		tee.onEndOfStream();
+		release.countDown();
+		assertTrue(branch.join(5000L));
+		byte[] expected = new byte[150];
+		System.arraycopy(data, 0, expected, 0, 120);
+		System.arraycopy(data, 270, expected, 120, 30);
+		assertArrayEquals(expected, slow.out.toByteArray());
+	}
+
+	private static byte[] sequence(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	private static void waitForDrain(SegmentTee.Branch branch) throws InterruptedException {
+		for (int i = 0; i < 500 && branch.getAvailable() > 0; i++) {
+			Thread.sleep(10L);
+		}
+	}
+
+	private static class Probe implements ISegmentSink {
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		volatile boolean header;
+
+		volatile boolean ended;
+
+		public void onHeader() {
+			header = true;
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			synchronized (out) {
+				out.write(buf, offset, length);
+			}
+			return length;
+		}
+
+		public void onEndOfStream() {
+			ended = true;
+		}
+
+	}
+
+	/**
+	 * Reports a boundary set by the test while the next write goes through.
+	 */
+	private static class Marker extends Probe implements IBoundarySource {
+
+		IBoundarySource.Listener listener;
+
+		long boundary = -1L;
+
+		public void setBoundaryListener(IBoundarySource.Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public int write(byte[] buf, int offset, int length) {
+			if (boundary >= 0L) {
+				listener.onBoundary(boundary);
+				boundary = -1L;
+			}
+			return super.write(buf, offset, length);
+		}
+
+	}
+
+}
@@ -0,0 +1,120 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static test.TsPackets.AUDIO_PID;
+import static test.TsPackets.PMT_PID;
+import static test.TsPackets.VIDEO_PID;
+import static test.TsPackets.audio;
+import static test.TsPackets.concat;
+import static test.TsPackets.pat;
+import static test.TsPackets.pmt;
+import static test.TsPackets.video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.red5.stream.util.TsPacketParser;
+import org.red5.stream.util.TsPacketParser.PacketType;
+
+public class TsPacketParserTest {
+
+	@Test
+	public void testStructure() {
+		Recorder recorder = new Recorder();
+		TsPacketParser parser = new TsPacketParser(recorder);
+		byte[] stream = concat(pat(0), pmt(0), video(0, true, 90000L, 2700000L), video(1, false, -1L, -1L), audio(0, 93000L));
+		parser.parse(stream, 0, stream.length);
+		assertEquals(PMT_PID, parser.getPmtPid());
+		assertEquals(VIDEO_PID, parser.getVideoPid());
+		assertEquals(0x1b, parser.getVideoStreamType());
+		assertEquals(AUDIO_PID, parser.getAudioPid());
+		assertEquals(VIDEO_PID, parser.getPcrPid());
+		assertEquals(5, recorder.types.size());
+		assertEquals(PacketType.PAT, recorder.types.get(0));
+		assertEquals(PacketType.PMT, recorder.types.get(1));
+		assertEquals(PacketType.VIDEO, recorder.types.get(2));
+		assertEquals(PacketType.AUDIO, recorder.types.get(4));
+		assertTrue(recorder.tableChanged.get(0));
+		assertTrue(recorder.tableChanged.get(1));
+		// the key frame
+		assertTrue(recorder.keyFrames.get(2));
+		assertEquals(90000L, (long) recorder.pts.get(2));
+		assertEquals(2700000L, (long) recorder.pcrs.get(2));
+		assertEquals(2L * TsPacketParser.PACKET_SIZE, (long) recorder.positions.get(2));
+		assertFalse(recorder.keyFrames.get(3));
+		assertEquals(93000L, (long) recorder.pts.get(4));
+		assertEquals(0, parser.getContinuityErrors());
+		// tables repeated with the same version are not changes
+		recorder.clear();
+		byte[] tables = concat(pat(1), pmt(1));
+		parser.parse(tables, 0, tables.length);
+		assertFalse(recorder.tableChanged.get(0));
+		assertFalse(recorder.tableChanged.get(1));
+	}
+
+	@Test
+	public void testSplitPacketsAndContinuity() {
+		Recorder recorder = new Recorder();
+		TsPacketParser parser = new TsPacketParser(recorder);
+		// counter 3 follows 1 on the video pid
+		byte[] stream = concat(pat(0), pmt(0), video(0, true, 0L, -1L), video(1, false, -1L, -1L), video(3, false, -1L, -1L));
+		// in uneven pieces
+		int offset = 0;
+		for (int length : new int[] { 100, 200, 1, 300 }) {
+			parser.parse(stream, offset, length);
+			offset += length;
+		}
+		assertEquals(3, recorder.types.size());
+		parser.parse(stream, offset, stream.length - offset);
+		assertEquals(5, recorder.types.size());
+		assertEquals(3L * TsPacketParser.PACKET_SIZE, (long) recorder.positions.get(3));
+		assertEquals(1, parser.getContinuityErrors());
+		assertEquals(3, parser.getContinuityCounter(VIDEO_PID));
+		// garbage before a packet is skipped
+		byte[] garbage = concat(new byte[] { 1, 2, 3 }, video(4, false, -1L, -1L));
+		parser.parse(garbage, 0, garbage.length);
+		assertEquals(1, parser.getSyncErrors());
+		assertEquals(6, recorder.types.size());
+		assertEquals(5L * TsPacketParser.PACKET_SIZE + 3L, (long) recorder.positions.get(5));
+		assertEquals(1, parser.getContinuityErrors());
+	}
+
+	private static class Recorder implements TsPacketParser.Listener {
+
+		final List<PacketType> types = new ArrayList<PacketType>();
+
+		final List<Boolean> keyFrames = new ArrayList<Boolean>();
+
+		final List<Boolean> tableChanged = new ArrayList<Boolean>();
+
+		final List<Long> pts = new ArrayList<Long>();
+
+		final List<Long> pcrs = new ArrayList<Long>();
+
+		final List<Long> positions = new ArrayList<Long>();
+
+		public void onPacket(TsPacketParser parser, byte[] buf, int offset) {
+			assertEquals(TsPacketParser.SYNC_BYTE, buf[offset]);
+			types.add(parser.getPacketType());
+			keyFrames.add(parser.isKeyFrame());
+			tableChanged.add(parser.isTableChanged());
+			pts.add(parser.getPts());
+			pcrs.add(parser.getPcr());
+			positions.add(parser.getPosition());
+		}
+
+		void clear() {
+			types.clear();
+			keyFrames.clear();
+			tableChanged.clear();
+			pts.clear();
+			pcrs.clear();
+			positions.clear();
+		}
+
+	}
+
+}
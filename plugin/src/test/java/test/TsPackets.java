@@ -0,0 +1,100 @@
+package test;
+
+import org.red5.stream.util.TsPacketParser;
+
+/**
+ * Builds transport stream packets for tests: a PAT, a PMT with h.264 video and AAC audio, and PES starts with a PTS.
+ */
+final class TsPackets {
+
+	static final int PMT_PID = 0x0100;
+
+	static final int VIDEO_PID = 0x0200;
+
+	static final int AUDIO_PID = 0x0201;
+
+	private TsPackets() {
+	}
+
+	static byte[] packet(int pid, boolean start, int counter) {
+		byte[] packet = new byte[TsPacketParser.PACKET_SIZE];
+		for (int i = 4; i < packet.length; i++) {
+			packet[i] = (byte) 0xff;
+		}
+		packet[0] = TsPacketParser.SYNC_BYTE;
+		packet[1] = (byte) ((start ? 0x40 : 0) | (pid >> 8));
+		packet[2] = (byte) pid;
+		packet[3] = (byte) (0x10 | counter);
+		return packet;
+	}
+
+	static byte[] pat(int counter) {
+		byte[] packet = packet(TsPacketParser.PAT_PID, true, counter);
+		byte[] section = { 0, 0x00, (byte) 0xb0, 13, 0, 1, (byte) 0xc1, 0, 0, 0, 1, (byte) (0xe0 | (PMT_PID >> 8)), (byte) PMT_PID, 0, 0, 0, 0 };
+		System.arraycopy(section, 0, packet, 4, section.length);
+		return packet;
+	}
+
+	static byte[] pmt(int counter) {
+		byte[] packet = packet(PMT_PID, true, counter);
+		byte[] section = { 0, 0x02, (byte) 0xb0, 23, 0, 1, (byte) 0xc1, 0, 0, (byte) (0xe0 | (VIDEO_PID >> 8)), (byte) VIDEO_PID, (byte) 0xf0, 0, 0x1b,
+				(byte) (0xe0 | (VIDEO_PID >> 8)), (byte) VIDEO_PID, (byte) 0xf0, 0, 0x0f, (byte) (0xe0 | (AUDIO_PID >> 8)), (byte) AUDIO_PID, (byte) 0xf0, 0, 0, 0, 0,
+				0 };
+		System.arraycopy(section, 0, packet, 4, section.length);
+		return packet;
+	}
+
+	static byte[] video(int counter, boolean keyFrame, long pts, long pcr) {
+		byte[] packet = packet(VIDEO_PID, pts >= 0L, counter);
+		int pos = 4;
+		if (pcr >= 0L) {
+			packet[3] |= 0x20;
+			packet[4] = 7;
+			packet[5] = (byte) (0x10 | (keyFrame ? 0x40 : 0));
+			long base = pcr / 300L;
+			long extension = pcr % 300L;
+			packet[6] = (byte) (base >> 25);
+			packet[7] = (byte) (base >> 17);
+			packet[8] = (byte) (base >> 9);
+			packet[9] = (byte) (base >> 1);
+			packet[10] = (byte) (((base & 1) << 7) | 0x7e | (extension >> 8));
+			packet[11] = (byte) extension;
+			pos = 12;
+		}
+		if (pts >= 0L) {
+			pos = pes(packet, pos, 0xe0, pts);
+			// access unit delimiter, then an idr slice or a non-idr slice
+			byte[] units = { 0, 0, 1, 0x09, (byte) 0xf0, 0, 0, 1, (byte) (keyFrame ? 0x65 : 0x41) };
+			System.arraycopy(units, 0, packet, pos, units.length);
+		}
+		return packet;
+	}
+
+	static byte[] audio(int counter, long pts) {
+		byte[] packet = packet(AUDIO_PID, true, counter);
+		pes(packet, 4, 0xc0, pts);
+		return packet;
+	}
+
+	static int pes(byte[] packet, int pos, int streamId, long pts) {
+		byte[] header = { 0, 0, 1, (byte) streamId, 0, 0, (byte) 0x80, (byte) 0x80, 5, (byte) (0x21 | ((pts >> 29) & 0x0e)), (byte) (pts >> 22),
+				(byte) (((pts >> 14) & 0xfe) | 1), (byte) (pts >> 7), (byte) (((pts << 1) & 0xfe) | 1) };
+		System.arraycopy(header, 0, packet, pos, header.length);
+		return pos + header.length;
+	}
+
+	static byte[] concat(byte[]... arrays) {
+		int length = 0;
+		for (byte[] array : arrays) {
+			length += array.length;
+		}
+		byte[] result = new byte[length];
+		int pos = 0;
+		for (byte[] array : arrays) {
+			System.arraycopy(array, 0, result, pos, array.length);
+			pos += array.length;
+		}
+		return result;
+	}
+
+}